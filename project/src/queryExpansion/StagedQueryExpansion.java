@@ -42,6 +42,26 @@ public class StagedQueryExpansion {
 		chv = new CHVQueryExpansion(CHVPath);
 	}
 	
+	/* Shares the CHV thesaurus, which is only read once it's loaded */
+	private StagedQueryExpansion(Index index, CHVQueryExpansion chv) {
+		porterStemmer = new PorterStemmer();
+		stopwords = new Stopwords(null);
+		
+		qe = new EMIMQueryExpansion(index);
+		this.chv = chv;
+	}
+	
+	/**
+	 * Creates an object that expands queries the same way this one does, but reading another <code>Index</code>.
+	 * Neither Terrier's stemmer nor the index can be used by two threads at once, so each thread expanding queries
+	 * needs its own object, over its own copy of the index.
+	 * @param index The collection's Terrier Index, usually another copy of the one this object reads.
+	 * @return A new expansion object, which shares the CHV thesaurus with this one.
+	 */
+	public StagedQueryExpansion withIndex(Index index) {
+		return new StagedQueryExpansion(index, this.chv);
+	}
+	
 	/**
 	 * Given a input query or single word:
 	 *  - removes all punctuation characters
@@ -0,0 +1,197 @@
+package terrier;
+
+import java.io.IOException;
+
+import org.terrier.structures.postings.IterablePosting;
+
+/**
+ * Document-at-a-time top-k retrieval for DJM with Block-Max WAND dynamic pruning (Ding and Suel, 2011). The lists
+ * are kept sorted by their current document and the pivot is the first document whose lists, added up by their
+ * term bounds, could beat the worst document of the <code>TopKHeap</code>. The bounds of the blocks the lists are
+ * on are checked next, and if they can't beat it either, every document up to the end of the first of those blocks
+ * is skipped. Only the documents that pass both checks are scored, with every term, in the order of the query, so
+ * their scores are exactly the ones of an exhaustive evaluation.
+ *
+ * A document is only kept if it is better than the worst one of a full heap, and as the documents are scored in
+ * increasing order, a document tied with it never is, so the documents whose bounds are not greater than the worst
+ * score are the ones skipped.
+ * @author Luiz Felix
+ */
+class BlockMaxWand {
+	/* The bounds are computed in another order than the scores, so rounding could take them below a score */
+	private static final double ROUNDING_MARGIN = 1e-9;
+	
+	private final IterablePosting[] postings;
+	private final double[] p_w_c;
+	private final int[] termIds;
+	private final ScoreBounds bounds;
+	private final double mu;
+	private final double lambda;
+	
+	/* Integer.MAX_VALUE once a list is over */
+	private final int[] current;
+	private final int[] block;
+	private final double[] termBound;
+	
+	/* The bound of the block each list is on, computed again only when the list moves to another block */
+	private final double[] blockBound;
+	
+	/* The lists sorted by their current document */
+	private final int[] order;
+	
+	/**
+	 * @param postings The posting lists of the query terms, in the order of the query, not iterated yet.
+	 * @param p_w_c The background probability of each term.
+	 * @param termIds The ID of each term.
+	 * @param bounds The bounds of the index of the lists, for <code>mu</code>.
+	 */
+	BlockMaxWand(IterablePosting[] postings, double[] p_w_c, int[] termIds, ScoreBounds bounds, double mu, double lambda) {
+		this.postings = postings;
+		this.p_w_c = p_w_c;
+		this.termIds = termIds;
+		this.bounds = bounds;
+		this.mu = mu;
+		this.lambda = lambda;
+		
+		int terms = postings.length;
+		this.current = new int[terms];
+		this.block = new int[terms];
+		this.termBound = new double[terms];
+		this.blockBound = new double[terms];
+		this.order = new int[terms];
+	}
+	
+	/**
+	 * Offers every document that may be among the best ones to a heap.
+	 * @param heap The heap that keeps the best documents.
+	 * @return The amount of documents scored.
+	 * @throws IOException If there's any I/O fault while reading the index.
+	 */
+	int run(TopKHeap heap) throws IOException {
+		int terms = postings.length;
+		
+		for (int i = 0; i < terms; i++) {
+			current[i] = next(i, 0);
+			block[i] = bounds.firstBlock(termIds[i]);
+			order[i] = i;
+			
+			termBound[i] = 0;
+			for (int b = block[i]; b < bounds.endBlock(termIds[i]); b++)
+				termBound[i] = Math.max(termBound[i], bound(i, b));
+			
+			blockBound[i] = bound(i, block[i]);
+		}
+		
+		int scored = 0;
+		
+		while (true) {
+			sortByCurrent();
+			double threshold = heap.threshold();
+			
+			// the first document whose lists could beat the worst one kept
+			int pivot = -1;
+			double upper = 0;
+			
+			for (int j = 0; j < terms && current[order[j]] != Integer.MAX_VALUE; j++) {
+				upper += termBound[order[j]];
+				
+				if (upper > threshold) {
+					pivot = j;
+					break;
+				}
+			}
+			
+			if (pivot < 0) break;
+			
+			int pivotDoc = current[order[pivot]];
+			while (pivot + 1 < terms && current[order[pivot + 1]] == pivotDoc)
+				pivot++;
+			
+			double blockUpper = 0;
+			
+			for (int j = 0; j <= pivot; j++) {
+				int i = order[j];
+				
+				// the block where the first posting from pivotDoc on is
+				if (bounds.lastDocid(block[i]) < pivotDoc) {
+					while (block[i] + 1 < bounds.endBlock(termIds[i]) && bounds.lastDocid(block[i]) < pivotDoc)
+						block[i]++;
+					
+					blockBound[i] = bound(i, block[i]);
+				}
+				
+				blockUpper += blockBound[i];
+			}
+			
+			if (blockUpper > threshold) {
+				if (current[order[0]] == pivotDoc) {
+					double logP_d_q = 0;
+					
+					for (int i = 0; i < terms; i++)
+						if (current[i] == pivotDoc)
+							logP_d_q += DJM.weight(DJM.dirichlet(postings[i].getFrequency(), postings[i].getDocumentLength(), p_w_c[i], mu), p_w_c[i], lambda);
+					
+					heap.offer(pivotDoc, logP_d_q);
+					scored++;
+					
+					for (int i = 0; i < terms; i++)
+						if (current[i] == pivotDoc)
+							current[i] = next(i, 0);
+				}
+				else {
+					for (int j = 0; j < pivot; j++)
+						if (current[order[j]] < pivotDoc)
+							current[order[j]] = next(order[j], pivotDoc);
+				}
+			}
+			else {
+				// no document before the end of the first of these blocks, nor before the next list, can be kept
+				int target = (pivot + 1 < terms) ? current[order[pivot + 1]] : Integer.MAX_VALUE;
+				
+				for (int j = 0; j <= pivot; j++)
+					target = (int)Math.min(target, bounds.lastDocid(block[order[j]]) + 1L);
+				
+				for (int j = 0; j <= pivot; j++)
+					if (current[order[j]] < target)
+						current[order[j]] = next(order[j], target);
+			}
+		}
+		
+		return scored;
+	}
+	
+	/*
+	 * The greatest weight a posting of a block can have with the current lambda
+	 */
+	private double bound(int i, int b) {
+		double greatest = DJM.weight(bounds.greatest(b), p_w_c[i], lambda);
+		double lowest = DJM.weight(bounds.lowest(b), p_w_c[i], lambda);
+		
+		return Math.max(greatest, lowest) * (1 + ROUNDING_MARGIN);
+	}
+	
+	/*
+	 * Moves a list to its next document, or to the first one from target on if target is greater than 0
+	 */
+	private int next(int i, int target) throws IOException {
+		int docId = (target > 0) ? postings[i].next(target) : postings[i].next();
+		return (docId == IterablePosting.EOL) ? Integer.MAX_VALUE : docId;
+	}
+	
+	/*
+	 * An insertion sort, as there are few lists and they are almost sorted after each move
+	 */
+	private void sortByCurrent() {
+		for (int j = 1; j < order.length; j++) {
+			int i = order[j];
+			int k = j - 1;
+			
+			while (k >= 0 && current[order[k]] > current[i]) {
+				order[k + 1] = order[k];
+				k--;
+			}
+			
+			order[k + 1] = i;
+		}
+	}
+}
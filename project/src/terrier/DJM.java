@@ -4,10 +4,21 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.terrier.matching.ResultSet;
 import org.terrier.matching.CollectionResultSet;
@@ -15,6 +26,7 @@ import org.terrier.matching.models.WeightingModelLibrary;
 import org.terrier.querying.Request;
 import org.terrier.structures.CollectionStatistics;
 import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
 import org.terrier.structures.Lexicon;
 import org.terrier.structures.LexiconEntry;
 import org.terrier.structures.PostingIndex;
@@ -33,6 +45,9 @@ import queryExpansion.StagedQueryExpansion;
  * than 0 and smaller than 0. Setting this variable to 0 again will shut JM off.
  * If you want shut down Dirichlet smoothing, use <code>setMu</code> to set this
  * constant to 0.
+ *
+ * The parameters may be changed while queries are running on other threads: each query reads them once, when
+ * it starts, so it is scored with a single value of each.
  * @author Luiz Felix
  */
 public class DJM {
@@ -48,16 +63,22 @@ public class DJM {
 	public final int SHORT_EXPANSION_MAX = 10;
 	public final int SHORT_EXPANSION_MIN = 5;
 	
-	private PorterStemmer porterStemmer;
+	/* Terrier's stemmer keeps the word being stemmed, so each thread has its own */
+	private final ThreadLocal<PorterStemmer> porterStemmer = ThreadLocal.withInitial(PorterStemmer::new);
 	private Stopwords stopwords;
 	
-	private double mu = 303;	//334
-	private double lambda = 0.0;
-	private int amountOfRetrievedDocuments = 1000;
+	private volatile double mu = 303;	//334
+	private volatile double lambda = 0.0;
+	private volatile int amountOfRetrievedDocuments = 1000;
+	private volatile boolean topKRetrieval = true;
+	private volatile boolean dynamicPruning = false;
+	private volatile int batchThreads = Runtime.getRuntime().availableProcessors();
+	
+	/* The bounds of the last index queried with dynamic pruning, for the current mu */
+	private ScoreBounds bounds = null;
 	
 	/* Private constructor for a singleton class */
 	private DJM() {
-		this.porterStemmer = new PorterStemmer();
 		this.stopwords = new Stopwords(null);
 	}
 
@@ -65,7 +86,7 @@ public class DJM {
 	 * Singleton class retrieval method
 	 * @return the DJM instance.
 	 */
-	public static DJM getInstance() {
+	public static synchronized DJM getInstance() {
 		if (instance == null)
 			instance = new DJM();
 		
@@ -74,24 +95,19 @@ public class DJM {
 	
 	
 	/**
-	 * Perform a query on the corpus using the DJM method.
+	 * Perform a query on the corpus using the DJM method. In top-k mode, the default one, only the
+	 * <code>amountOfRetrievedDocuments</code> best documents are kept, otherwise every document of the
+	 * corpus is scored and sorted. With dynamic pruning, which is off by default, the top-k mode skips the
+	 * documents that can't be among the best ones.
 	 * @param query The already prepared query (expanded, stopped, stemmed, lower cased containning only unique terms)
 	 * @param index The Terrier index.
 	 * @return A request containing the query results.
 	 * @throws IOException If there's any I/O fault while reading the index.
 	 */
 	public Request queryCorpus(String query, Index index) throws IOException {
-		System.out.println(this.lambda);
-		
-		CollectionStatistics statistics = index.getCollectionStatistics();
-		
-		int  D = statistics.getNumberOfDocuments();			//corpus size
-		
-		Lexicon<String> lexiconCollection = index.getLexicon();
-		PostingIndex<?> invertedIndex = index.getInvertedIndex();
-		
-		// the scoring array
-		double[] logP_d_q = new double[D];
+		double mu = this.mu;
+		double lambda = this.lambda;
+		PorterStemmer porterStemmer = this.porterStemmer.get();
 		
 		// preparing the query by removing repeated terms
 		Set<String> preparedQuery = new HashSet<>();
@@ -103,6 +119,36 @@ public class DJM {
 			preparedQuery.add(porterStemmer.stem(q.toLowerCase()));
 		}
 		
+		ResultSet resultSet = (this.topKRetrieval) ? queryTopK(preparedQuery, index, mu, lambda) : queryExhaustively(preparedQuery, index, mu, lambda);
+		
+		// storing data to generate the output file on the trec_eval format
+		Request request = new Request();
+		request.setIndex(index);
+		request.setResultSet(resultSet);
+		
+		return request;
+	}
+	
+	/**
+	 * Scores every document of the corpus, term by term, on an array as large as the corpus, which is then sorted.
+	 * @param preparedQuery The unique stemmed terms of the query.
+	 * @param index The Terrier index.
+	 * @param mu The mu of the Dirichlet smoothing.
+	 * @param lambda The lambda of the Jelinek-Mercer smoothing.
+	 * @return All the documents of the corpus, sorted by their scores.
+	 * @throws IOException If there's any I/O fault while reading the index.
+	 */
+	private ResultSet queryExhaustively(Set<String> preparedQuery, Index index, double mu, double lambda) throws IOException {
+		CollectionStatistics statistics = index.getCollectionStatistics();
+		
+		int  D = statistics.getNumberOfDocuments();			//corpus size
+		
+		Lexicon<String> lexiconCollection = index.getLexicon();
+		PostingIndex<?> invertedIndex = index.getInvertedIndex();
+		
+		// the scoring array
+		double[] logP_d_q = new double[D];
+		
 		// applying the formula over every query term
 		for (String queryTerm : preparedQuery) {			
 			// this is the word entry on the collection lexicon
@@ -117,19 +163,10 @@ public class DJM {
 			double p_w_c = lexicon.getFrequency() / (double)statistics.getNumberOfTokens();
 			
 			// iterate over all of these documents to score them
-			while (postingsList.next() != IterablePosting.EOL) {
-				int docId = postingsList.getId();
-				int docLen = postingsList.getDocumentLength();
-				
-				double c_w_d = postingsList.getFrequency();
-				// double c_w_d = postingsList.getFrequency() / (double)postingsList.getDocumentLength();
-				
-				
-				double dirichlet = (c_w_d + this.mu * p_w_c) / (double)(docLen + this.mu);
-				double jm = p_w_c;
-				
-				logP_d_q[docId] += WeightingModelLibrary.log((1 - this.lambda) * dirichlet + this.lambda * jm + 2);
-			}
+			while (postingsList.next() != IterablePosting.EOL)
+				logP_d_q[postingsList.getId()] += score(postingsList, p_w_c, mu, lambda);
+			
+			postingsList.close();
 		}	
 		
 		// storing the results on Terrier format and ordering document scoring
@@ -137,12 +174,161 @@ public class DJM {
 		resultSet.initialise(logP_d_q);
 		resultSet.sort();
 		
-		// storing data to generate the output file on the trec_eval format
-		Request request = new Request();
-		request.setIndex(index);
-		request.setResultSet(resultSet);
+		return resultSet;
+	}
+	
+	/**
+	 * Scores the documents one at a time, walking through the posting lists of all the terms at once, and keeps
+	 * the <code>amountOfRetrievedDocuments</code> best ones on a <code>TopKHeap</code>. Only the documents with
+	 * at least one query term are scored, as the others score 0, so the cost and the memory taken depend on the
+	 * length of the posting lists and on k, not on the size of the corpus. With dynamic pruning, the documents
+	 * that can't beat the worst one kept aren't even scored, and the exact result size of the result set is the
+	 * amount of documents scored, not the amount that have any query term.
+	 * @param preparedQuery The unique stemmed terms of the query.
+	 * @param index The Terrier index.
+	 * @param mu The mu of the Dirichlet smoothing.
+	 * @param lambda The lambda of the Jelinek-Mercer smoothing.
+	 * @return The best documents, sorted by their scores. There are less than k of them if less than k documents
+	 * have any query term.
+	 * @throws IOException If there's any I/O fault while reading the index.
+	 */
+	private ResultSet queryTopK(Set<String> preparedQuery, Index index, double mu, double lambda) throws IOException {
+		CollectionStatistics statistics = index.getCollectionStatistics();
+		Lexicon<String> lexiconCollection = index.getLexicon();
+		PostingIndex<?> invertedIndex = index.getInvertedIndex();
 		
-		return request;
+		// the terms in the same order as queryExhaustively, so the scores are summed in the same order
+		List<LexiconEntry> lexicons = new ArrayList<>(preparedQuery.size());
+		
+		for (String queryTerm : preparedQuery) {
+			LexiconEntry lexicon = lexiconCollection.getLexiconEntry(queryTerm);
+			
+			if (lexicon != null)
+				lexicons.add(lexicon);
+		}
+		
+		int terms = lexicons.size();
+		IterablePosting[] postings = new IterablePosting[terms];
+		double[] p_w_c = new double[terms];
+		int[] termIds = new int[terms];
+		
+		for (int i = 0; i < terms; i++) {
+			postings[i] = invertedIndex.getPostings(lexicons.get(i));
+			p_w_c[i] = lexicons.get(i).getFrequency() / (double)statistics.getNumberOfTokens();
+			termIds[i] = lexicons.get(i).getTermId();
+		}
+		
+		TopKHeap heap = new TopKHeap(this.amountOfRetrievedDocuments);
+		int scored = 0;
+		
+		if (this.dynamicPruning)
+			scored = new BlockMaxWand(postings, p_w_c, termIds, boundsFor(index, mu), mu, lambda).run(heap);
+		else
+			scored = scoreAll(postings, p_w_c, mu, lambda, heap);
+		
+		for (IterablePosting posting : postings)
+			posting.close();
+		
+		return heap.toResultSet(scored);
+	}
+	
+	/**
+	 * @return The bounds of an index for <code>mu</code>, read or built the first time they are needed and then
+	 * kept while the same index is queried with the same mu.
+	 * @throws IOException If there's any I/O fault while reading the index.
+	 */
+	private synchronized ScoreBounds boundsFor(Index index, double mu) throws IOException {
+		if (this.bounds == null || !this.bounds.isFor(index, mu))
+			this.bounds = ScoreBounds.forIndex(index, mu);
+		
+		return this.bounds;
+	}
+	
+	/**
+	 * Scores every document that has at least one query term, walking through the posting lists of all the terms at once.
+	 * @param postings The posting lists of the terms, not iterated yet.
+	 * @param p_w_c The background probability of each term.
+	 * @param mu The mu of the Dirichlet smoothing.
+	 * @param lambda The lambda of the Jelinek-Mercer smoothing.
+	 * @param heap The heap that keeps the best documents.
+	 * @return The amount of documents scored.
+	 * @throws IOException If there's any I/O fault while reading the index.
+	 */
+	private static int scoreAll(IterablePosting[] postings, double[] p_w_c, double mu, double lambda, TopKHeap heap) throws IOException {
+		int terms = postings.length;
+		int[] current = new int[terms];
+		int scored = 0;
+		
+		for (int i = 0; i < terms; i++)
+			current[i] = next(postings[i]);
+		
+		while (true) {
+			// the next document is the lowest one any list is on
+			int docId = Integer.MAX_VALUE;
+			for (int i = 0; i < terms; i++)
+				docId = Math.min(docId, current[i]);
+			
+			if (docId == Integer.MAX_VALUE) break;
+			
+			double logP_d_q = 0;
+			
+			for (int i = 0; i < terms; i++) {
+				if (current[i] != docId) continue;
+				
+				logP_d_q += score(postings[i], p_w_c[i], mu, lambda);
+				current[i] = next(postings[i]);
+			}
+			
+			heap.offer(docId, logP_d_q);
+			scored++;
+		}
+		
+		return scored;
+	}
+	
+	/**
+	 * @return The next document of a posting list, or <code>Integer.MAX_VALUE</code> once it is over.
+	 */
+	private static int next(IterablePosting posting) throws IOException {
+		int docId = posting.next();
+		return (docId == IterablePosting.EOL) ? Integer.MAX_VALUE : docId;
+	}
+	
+	/**
+	 * The two-phase smoothed weight of a query term on the document a posting list is on.
+	 * @param posting A posting list, on the document being scored.
+	 * @param p_w_c The background probability of the term.
+	 * @param mu The mu of the Dirichlet smoothing.
+	 * @param lambda The lambda of the Jelinek-Mercer smoothing.
+	 * @return The weight of the term on the document.
+	 */
+	private static double score(IterablePosting posting, double p_w_c, double mu, double lambda) {
+		return weight(dirichlet(posting.getFrequency(), posting.getDocumentLength(), p_w_c, mu), p_w_c, lambda);
+	}
+	
+	/**
+	 * @param c_w_d The frequency of a term on a document.
+	 * @param docLen The length of the document.
+	 * @param p_w_c The background probability of the term.
+	 * @param mu The mu of the Dirichlet smoothing.
+	 * @return The Dirichlet smoothed probability of the term on the document.
+	 */
+	static double dirichlet(double c_w_d, int docLen, double p_w_c, double mu) {
+		return (c_w_d + mu * p_w_c) / (double)(docLen + mu);
+	}
+	
+	/**
+	 * The weight of a term on a document, which grows with <code>dirichlet</code> while <code>lambda</code> is
+	 * lesser than 1 and shrinks with it otherwise.
+	 * @param dirichlet The Dirichlet smoothed probability of the term on the document.
+	 * @param p_w_c The background probability of the term.
+	 * @param lambda The lambda of the Jelinek-Mercer smoothing.
+	 * @return The weight of the term on the document.
+	 */
+	static double weight(double dirichlet, double p_w_c, double lambda) {
+		double jm = p_w_c;
+		
+		return WeightingModelLibrary.log((1 - lambda) * dirichlet + lambda * jm + 2);
 	}
 
 	/**
@@ -182,7 +368,8 @@ public class DJM {
 	
 	/**
 	 * Performs a set of queries, stored in a <code>HashMap<Key, Query></code> pair on the corpus. After each query is performed,
-	 * its result is stored on <code>outputFile</code> path.
+	 * its result is stored on <code>outputFile</code> path, in the order of <code>queries</code>. The queries are expanded and
+	 * performed on <code>batchThreads</code> threads at once.
 	 * @param outputFile The complete file path to where to write the file with the queries result.
 	 * @param queries Contains the queries on pairs <Key, Query>. The queries must be space-separated and Stopwords and Porter-Stemmer
 	 * is performed over them before issuing them to Terrier.
@@ -198,42 +385,151 @@ public class DJM {
 			boolean useDocnoAsMeta, boolean CHVOnly) throws Exception {
 		// this is responsible for organizing the ResultSets on the correct output format
 		
-		int amountOfExpansions = 0;
-		
 		if (useDocnoAsMeta)
 			ApplicationSetup.setProperty("trec.querying.outputformat.docno.meta.key", "filename");
 		
 		TRECDocnoOutputFormat outputFormatter = new TRECDocnoOutputFormat(index);
+		int threads = Math.min(this.batchThreads, queries.size());
 		
 		PrintWriter pw = new PrintWriter(new File(outputFile));
 		
-		for (Entry<String, String> query : queries.entrySet()) {
-			System.out.println("Processing query " + query.getKey());
+		try {
+			// only the files of an index can be opened again by each thread
+			if (threads > 1 && index instanceof IndexOnDisk)
+				performConcurrently(pw, outputFormatter, queries, (IndexOnDisk) index, queryExpansionPipeline, CHVOnly, threads);
+			else
+				for (Entry<String, String> query : queries.entrySet())
+					outputFormatter.printResults(pw, performQuery(query.getKey(), query.getValue(), index, queryExpansionPipeline, CHVOnly),
+							METHOD_NAME, "Q0", amountOfRetrievedDocuments);
+		}
+		finally {
+			// releasing resources
+			pw.flush();
+			pw.close();
+		}
+	}
+	
+	/**
+	 * Runs the queries on a pool of threads. Terrier reads the index through streams shared by every posting list,
+	 * so each thread queries and expands on its own copy of the index. The results are written on the calling thread,
+	 * in the order of the queries, while the next ones are running, and only a few of them are kept in memory at once.
+	 * @param pw The output results file.
+	 * @param outputFormatter Writes the results on the trec_eval format, with the meta index of <code>index</code>.
+	 * @param queries Contains the queries on pairs <Key, Query>.
+	 * @param index The Terrier index, whose files are opened again by each thread.
+	 * @param queryExpansionPipeline The query expansion, copied for each thread, or <code>null</code> for none.
+	 * @param CHVOnly if <code>true</code> only CHV query expansion is performed.
+	 * @param threads The amount of threads.
+	 * @throws Exception If any query fails, with the exception thrown by it.
+	 */
+	private void performConcurrently(PrintWriter pw, TRECDocnoOutputFormat outputFormatter, Map<String, String> queries, IndexOnDisk index,
+			StagedQueryExpansion queryExpansionPipeline, boolean CHVOnly, int threads) throws Exception {
+		BlockingQueue<Worker> workers = new ArrayBlockingQueue<>(threads);
+		List<Index> copies = new ArrayList<>(threads);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		
+		try {
+			// the copies share the bounds, built once from the original index
+			if (this.topKRetrieval && this.dynamicPruning)
+				boundsFor(index, this.mu);
 			
-			if (!query.getKey().equals("9")) continue;
+			for (int i = 0; i < threads; i++) {
+				Index copy = Index.createIndex(index.getPath(), index.getPrefix());
+				if (copy == null)
+					throw new IOException("The index can't be opened again: " + Index.getLastIndexLoadError());
+				
+				copies.add(copy);
+				workers.add(new Worker(copy, (queryExpansionPipeline != null) ? queryExpansionPipeline.withIndex(copy) : null));
+			}
 			
-//			int amountOfExpansions = logExpandingFactor(query.getValue());
+			Deque<Future<Request>> pending = new ArrayDeque<>();
 			
-			String expandedQuery;
-			if (queryExpansionPipeline != null) {
-				amountOfExpansions = longExpandingFactor(query.getValue());
-				expandedQuery = queryExpansionPipeline.expandQuery(query.getValue(), amountOfExpansions, CHVOnly);
+			for (Entry<String, String> query : queries.entrySet()) {
+				pending.add(pool.submit(() -> {
+					Worker worker = workers.take();
+					
+					try {
+						return performQuery(query.getKey(), query.getValue(), worker.index, worker.queryExpansion, CHVOnly);
+					}
+					finally {
+						workers.add(worker);
+					}
+				}));
+				
+				if (pending.size() > 2 * threads)
+					printResults(pw, outputFormatter, pending.poll());
 			}
-			else
-				expandedQuery = query.getValue();
 			
-			// query with the expanded query, but store the original query
-			Request queryRequest = queryCorpus(expandedQuery, index);
-			
-			queryRequest.setOriginalQuery(query.getValue());
-			queryRequest.setQueryID(query.getKey());
+			while (!pending.isEmpty())
+				printResults(pw, outputFormatter, pending.poll());
+		}
+		finally {
+			pool.shutdownNow();
+			pool.awaitTermination(1, TimeUnit.MINUTES);
 			
-			outputFormatter.printResults(pw, queryRequest, METHOD_NAME, "Q0", amountOfRetrievedDocuments);
+			for (Index copy : copies)
+				copy.close();
+		}
+	}
+	
+	/*
+	 * Waits for a query running on another thread and writes its results
+	 */
+	private void printResults(PrintWriter pw, TRECDocnoOutputFormat outputFormatter, Future<Request> result) throws Exception {
+		Request queryRequest;
+		
+		try {
+			queryRequest = result.get();
+		}
+		catch (ExecutionException e) {
+			throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
 		}
 		
-		// releasing resources
-		pw.flush();
-		pw.close();
+		outputFormatter.printResults(pw, queryRequest, METHOD_NAME, "Q0", amountOfRetrievedDocuments);
+	}
+	
+	/**
+	 * Expands a query, if there's a query expansion, and performs it on the corpus.
+	 * @param queryID The ID of the query, stored on the request.
+	 * @param query The query, as it was read.
+	 * @param index The Terrier index, only read by the calling thread while the query runs.
+	 * @param queryExpansionPipeline The query expansion, only used by the calling thread, or <code>null</code> for none.
+	 * @param CHVOnly if <code>true</code> only CHV query expansion is performed.
+	 * @return A request containing the query results.
+	 * @throws IOException If there's any I/O fault while reading the index.
+	 */
+	private Request performQuery(String queryID, String query, Index index, StagedQueryExpansion queryExpansionPipeline,
+			boolean CHVOnly) throws IOException {
+		System.out.println("Processing query " + queryID);
+		
+//		int amountOfExpansions = logExpandingFactor(query);
+		
+		String expandedQuery;
+		if (queryExpansionPipeline != null) {
+			int amountOfExpansions = longExpandingFactor(query);
+			expandedQuery = queryExpansionPipeline.expandQuery(query, amountOfExpansions, CHVOnly);
+		}
+		else
+			expandedQuery = query;
+		
+		// query with the expanded query, but store the original query
+		Request queryRequest = queryCorpus(expandedQuery, index);
+		
+		queryRequest.setOriginalQuery(query);
+		queryRequest.setQueryID(queryID);
+		
+		return queryRequest;
+	}
+	
+	/* An index copy and the query expansion over it, used by one thread at a time */
+	private static class Worker {
+		final Index index;
+		final StagedQueryExpansion queryExpansion;
+		
+		Worker(Index index, StagedQueryExpansion queryExpansion) {
+			this.index = index;
+			this.queryExpansion = queryExpansion;
+		}
 	}
 	
 	/**
@@ -295,6 +591,52 @@ public class DJM {
 		this.lambda = lambda;
 	}
 
+	/**
+	 * @return Returns <code>true</code> if only the best <code>amountOfRetrievedDocuments</code> documents are
+	 * kept when a query is performed.
+	 */
+	public boolean isTopKRetrieval() { return this.topKRetrieval; }
+	
+	/**
+	 * @param topKRetrieval If <code>true</code>, the default value, only the best <code>amountOfRetrievedDocuments</code>
+	 * documents are kept when a query is performed, otherwise every document of the corpus is scored and sorted.
+	 */
+	public void setTopKRetrieval(boolean topKRetrieval) {
+		this.topKRetrieval = topKRetrieval;
+	}
+	
+	/**
+	 * @return Returns <code>true</code> if the top-k mode skips the documents that can't be among the best ones.
+	 */
+	public boolean isDynamicPruning() { return this.dynamicPruning; }
+	
+	/**
+	 * @param dynamicPruning If <code>true</code>, the top-k mode skips the documents that can't be among the best
+	 * ones, with Block-Max WAND. It is off by default: Terrier's posting lists have no skip pointers, so the skipped
+	 * documents are still decoded, and the top-k mode without pruning is as fast or faster on the indexes it was
+	 * measured on. The bounds it needs are built the first time an index is queried with a given mu, which reads
+	 * every posting list once, and are then written on a sidecar file on the folder of the index,
+	 * <code>prefix.djm-mu.bounds</code>. If the folder can't be written, the bounds are built again on each run.
+	 */
+	public void setDynamicPruning(boolean dynamicPruning) {
+		this.dynamicPruning = dynamicPruning;
+	}
+	
+	/**
+	 * @return Returns the amount of threads <code>performQueries</code> runs the queries on.
+	 */
+	public int getBatchThreads() { return this.batchThreads; }
+	
+	/**
+	 * @param batchThreads The amount of threads <code>performQueries</code> runs the queries on, by default the
+	 * amount of processors. With more than one, each thread opens its own copy of the index. If this value is
+	 * lesser than 1, this method has no effect.
+	 */
+	public void setBatchThreads(int batchThreads) {
+		if (batchThreads > 0)
+			this.batchThreads = batchThreads;
+	}
+	
 	/**
 	 * @return Retuns the amount of retrieved documents when a query is performed
 	 */
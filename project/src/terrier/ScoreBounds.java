@@ -0,0 +1,313 @@
+package terrier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map.Entry;
+
+import org.terrier.structures.CollectionStatistics;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.structures.PostingIndex;
+import org.terrier.structures.postings.IterablePosting;
+
+/**
+ * Bounds of the Dirichlet estimate (c(w,d) + mu * p(w|C)) / (|d| + mu) of every term of an index, for a given mu,
+ * used by <code>BlockMaxWand</code> to skip the documents that can't reach the top k. The posting list of each
+ * term is split in blocks of <code>BLOCK_SIZE</code> postings, and each block keeps its last document and the
+ * greatest and the lowest estimate of its postings. The DJM weight of a term only depends on the estimate, growing
+ * with it while lambda is lesser than 1 and shrinking with it otherwise, so the two estimates bound the weight of
+ * a block for any lambda, and lambda can change without the bounds being built again.
+ *
+ * The bounds of an index on disk are built once per mu and kept on a sidecar file next to the index,
+ * <code>prefix.djm-mu.bounds</code>. The estimates are stored as floats, rounded away from the estimate they bound.
+ * The file records the statistics of the collection it was built from, and is built again if the index at the
+ * same path no longer has them, or if the blocks of any term don't match its document frequency.
+ *
+ * Layout, all numbers big endian: int magic, int version, double mu, int documents, long pointers, long tokens,
+ * int terms, int blocks, then terms x int first block of the term, then blocks x (int last docid, float greatest, float lowest).
+ * @author Luiz Felix
+ */
+class ScoreBounds {
+	/* Postings of a block. Smaller blocks skip more documents but take more space */
+	static final int BLOCK_SIZE = 64;
+	
+	private static final int MAGIC = 0x444A4D42;
+	private static final int VERSION = 2;
+	
+	private final Index index;
+	private final double mu;
+	
+	/* The blocks of term t are [firstBlock[t], firstBlock[t + 1]) */
+	private final int[] firstBlock;
+	private final int[] lastDocids;
+	private final float[] greatest;
+	private final float[] lowest;
+	
+	private ScoreBounds(Index index, double mu, int[] firstBlock, int[] lastDocids, float[] greatest, float[] lowest) {
+		this.index = index;
+		this.mu = mu;
+		this.firstBlock = firstBlock;
+		this.lastDocids = lastDocids;
+		this.greatest = greatest;
+		this.lowest = lowest;
+	}
+	
+	/**
+	 * Reads the bounds of an index from its sidecar file, or builds them and writes the file if there is none
+	 * for <code>mu</code>, or it doesn't match the index or is truncated. The bounds of an index that isn't on disk
+	 * are only built, as are the ones that can't be written, such as on a read-only folder.
+	 * @param index The Terrier index.
+	 * @param mu The mu of the Dirichlet smoothing.
+	 * @return The bounds of every term of the index.
+	 * @throws IOException If there's an I/O fault while reading the index or the sidecar file.
+	 */
+	static ScoreBounds forIndex(Index index, double mu) throws IOException {
+		if (!(index instanceof IndexOnDisk))
+			return build(index, mu);
+		
+		IndexOnDisk onDisk = (IndexOnDisk) index;
+		Path path = Paths.get(onDisk.getPath(), onDisk.getPrefix() + ".djm-" + mu + ".bounds");
+		
+		if (Files.isRegularFile(path)) {
+			try {
+				ScoreBounds bounds = read(path, index, mu);
+				if (bounds != null) return bounds;
+			}
+			catch (EOFException e) {
+				// a truncated file is built again, as a stale one is
+			}
+		}
+		
+		ScoreBounds bounds = build(index, mu);
+		
+		// the index may be on a folder that can't be written, and the bounds are built already
+		try {
+			bounds.write(path);
+		}
+		catch (IOException e) {
+			System.err.println("The bounds of the index can't be saved on " + path + ": " + e.getMessage());
+		}
+		
+		return bounds;
+	}
+	
+	/**
+	 * Reads every posting list of an index once.
+	 * @param index The Terrier index.
+	 * @param mu The mu of the Dirichlet smoothing.
+	 * @return The bounds of every term of the index.
+	 * @throws IOException If there's an I/O fault while reading the index.
+	 */
+	static ScoreBounds build(Index index, double mu) throws IOException {
+		CollectionStatistics statistics = index.getCollectionStatistics();
+		PostingIndex<?> invertedIndex = index.getInvertedIndex();
+		int terms = index.getLexicon().numberOfEntries();
+		
+		// the blocks of each term are only known once the document frequencies are
+		int[] firstBlock = new int[terms + 1];
+		
+		for (Entry<String, LexiconEntry> entry : index.getLexicon())
+			firstBlock[entry.getValue().getTermId() + 1] = blocks(entry.getValue().getDocumentFrequency());
+		
+		for (int t = 0; t < terms; t++)
+			firstBlock[t + 1] += firstBlock[t];
+		
+		int blocks = firstBlock[terms];
+		int[] lastDocids = new int[blocks];
+		float[] greatest = new float[blocks];
+		float[] lowest = new float[blocks];
+		
+		for (Entry<String, LexiconEntry> entry : index.getLexicon()) {
+			LexiconEntry lexicon = entry.getValue();
+			double p_w_c = lexicon.getFrequency() / (double)statistics.getNumberOfTokens();
+			
+			IterablePosting postingsList = invertedIndex.getPostings(lexicon);
+			int block = firstBlock[lexicon.getTermId()] - 1;
+			int postings = 0;
+			
+			while (postingsList.next() != IterablePosting.EOL) {
+				double dirichlet = DJM.dirichlet(postingsList.getFrequency(), postingsList.getDocumentLength(), p_w_c, mu);
+				
+				if (postings++ % BLOCK_SIZE == 0) {
+					block++;
+					greatest[block] = Float.NEGATIVE_INFINITY;
+					lowest[block] = Float.POSITIVE_INFINITY;
+				}
+				
+				lastDocids[block] = postingsList.getId();
+				greatest[block] = Math.max(greatest[block], roundUp(dirichlet));
+				lowest[block] = Math.min(lowest[block], roundDown(dirichlet));
+			}
+			
+			postingsList.close();
+		}
+		
+		return new ScoreBounds(index, mu, firstBlock, lastDocids, greatest, lowest);
+	}
+	
+	/**
+	 * @return <code>true</code> if these are the bounds of <code>index</code> for <code>mu</code>.
+	 */
+	boolean isFor(Index index, double mu) {
+		return this.mu == mu && (this.index == index || sameFiles(this.index, index));
+	}
+	
+	/*
+	 * Copies of an index opened from the same files, such as the ones of a batch of concurrent queries, share their bounds
+	 */
+	private static boolean sameFiles(Index a, Index b) {
+		if (!(a instanceof IndexOnDisk) || !(b instanceof IndexOnDisk)) return false;
+		
+		IndexOnDisk x = (IndexOnDisk) a;
+		IndexOnDisk y = (IndexOnDisk) b;
+		
+		return x.getPath().equals(y.getPath()) && x.getPrefix().equals(y.getPrefix());
+	}
+	
+	/**
+	 * @return The first block of a term.
+	 */
+	int firstBlock(int termId) {
+		return firstBlock[termId];
+	}
+	
+	/**
+	 * @return The block after the last block of a term.
+	 */
+	int endBlock(int termId) {
+		return firstBlock[termId + 1];
+	}
+	
+	/**
+	 * @return The last document of a block.
+	 */
+	int lastDocid(int block) {
+		return lastDocids[block];
+	}
+	
+	/**
+	 * @return The greatest Dirichlet estimate of the postings of a block.
+	 */
+	double greatest(int block) {
+		return greatest[block];
+	}
+	
+	/**
+	 * @return The lowest Dirichlet estimate of the postings of a block.
+	 */
+	double lowest(int block) {
+		return lowest[block];
+	}
+	
+	/*
+	 * Written on a temporary file first, so a half written file is never read
+	 */
+	private void write(Path path) throws IOException {
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		
+		try {
+			try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+				output.writeInt(MAGIC);
+				output.writeInt(VERSION);
+				output.writeDouble(mu);
+				
+				CollectionStatistics statistics = index.getCollectionStatistics();
+				output.writeInt(statistics.getNumberOfDocuments());
+				output.writeLong(statistics.getNumberOfPointers());
+				output.writeLong(statistics.getNumberOfTokens());
+				
+				output.writeInt(firstBlock.length - 1);
+				output.writeInt(lastDocids.length);
+				
+				for (int t = 0; t < firstBlock.length - 1; t++)
+					output.writeInt(firstBlock[t]);
+				
+				for (int block = 0; block < lastDocids.length; block++) {
+					output.writeInt(lastDocids[block]);
+					output.writeFloat(greatest[block]);
+					output.writeFloat(lowest[block]);
+				}
+			}
+			
+			Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e) {
+			Files.deleteIfExists(temporary);
+			throw e;
+		}
+	}
+	
+	/*
+	 * Returns null if the file was written for another mu or another version of the index, such as an index
+	 * built again at the same path, as bounds of other postings would skip documents that must be scored
+	 */
+	private static ScoreBounds read(Path path, Index index, double mu) throws IOException {
+		CollectionStatistics statistics = index.getCollectionStatistics();
+		
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if (input.readInt() != MAGIC || input.readInt() != VERSION || input.readDouble() != mu)
+				return null;
+			
+			if (input.readInt() != statistics.getNumberOfDocuments() || input.readLong() != statistics.getNumberOfPointers()
+					|| input.readLong() != statistics.getNumberOfTokens())
+				return null;
+			
+			int terms = input.readInt();
+			int blocks = input.readInt();
+			
+			if (terms != index.getLexicon().numberOfEntries() || blocks < 0)
+				return null;
+			
+			int[] firstBlock = new int[terms + 1];
+			int[] lastDocids = new int[blocks];
+			float[] greatest = new float[blocks];
+			float[] lowest = new float[blocks];
+			
+			for (int t = 0; t < terms; t++)
+				firstBlock[t] = input.readInt();
+			firstBlock[terms] = blocks;
+			
+			// each term must have as many blocks as its postings fill, and the blocks of all the terms must add up to blocks
+			if (terms > 0 && firstBlock[0] != 0)
+				return null;
+			
+			for (Entry<String, LexiconEntry> entry : index.getLexicon()) {
+				int termId = entry.getValue().getTermId();
+				
+				if (termId < 0 || termId >= terms || firstBlock[termId + 1] - firstBlock[termId] != blocks(entry.getValue().getDocumentFrequency()))
+					return null;
+			}
+			
+			for (int block = 0; block < blocks; block++) {
+				lastDocids[block] = input.readInt();
+				greatest[block] = input.readFloat();
+				lowest[block] = input.readFloat();
+			}
+			
+			return new ScoreBounds(index, mu, firstBlock, lastDocids, greatest, lowest);
+		}
+	}
+	
+	private static int blocks(int documentFrequency) {
+		return (documentFrequency + BLOCK_SIZE - 1) / BLOCK_SIZE;
+	}
+	
+	private static float roundUp(double value) {
+		float rounded = (float)value;
+		return (rounded < value) ? Math.nextUp(rounded) : rounded;
+	}
+	
+	private static float roundDown(double value) {
+		float rounded = (float)value;
+		return (rounded > value) ? Math.nextDown(rounded) : rounded;
+	}
+}
@@ -0,0 +1,133 @@
+package terrier;
+
+import org.terrier.matching.CollectionResultSet;
+import org.terrier.matching.ResultSet;
+
+/**
+ * Keeps the k best scored documents seen so far on a binary min-heap made of two primitive arrays, so
+ * scoring a document allocates nothing and costs O(log k) at most. The root is the worst document kept,
+ * the one a better document replaces once the heap is full. Documents with the same score are ranked by
+ * their IDs, the lowest first, so the result doesn't depend on the order the documents are offered.
+ * @author Luiz Felix
+ */
+class TopKHeap {
+	private final int[] docids;
+	private final double[] scores;
+	private int size = 0;
+	
+	/**
+	 * @param k The amount of documents kept. It must be greater than 0.
+	 */
+	TopKHeap(int k) {
+		this.docids = new int[k];
+		this.scores = new double[k];
+	}
+	
+	/**
+	 * Keeps a document if the heap isn't full or if it is better than the worst document kept.
+	 * @param docid The document ID.
+	 * @param score The score of the document.
+	 * @return <code>true</code> if the document was kept.
+	 */
+	boolean offer(int docid, double score) {
+		if (size < docids.length) {
+			docids[size] = docid;
+			scores[size] = score;
+			siftUp(size++);
+			return true;
+		}
+		
+		if (!worse(0, docid, score)) return false;
+		
+		docids[0] = docid;
+		scores[0] = score;
+		siftDown(0);
+		return true;
+	}
+	
+	/**
+	 * @return The score a document must beat to be kept, or negative infinity while the heap isn't full.
+	 */
+	double threshold() {
+		return (size < docids.length) ? Double.NEGATIVE_INFINITY : scores[0];
+	}
+	
+	/**
+	 * @return The amount of documents kept.
+	 */
+	int size() {
+		return size;
+	}
+	
+	/**
+	 * Empties the heap into a result set, sorted from the best document to the worst one.
+	 * @param exactResultSize The amount of documents that were scored, reported as the exact result size.
+	 * @return A result set with the documents kept, at most k.
+	 */
+	ResultSet toResultSet(int exactResultSize) {
+		int length = size;
+		int[] sortedDocids = new int[length];
+		double[] sortedScores = new double[length];
+		
+		// the root is always the worst one left
+		for (int i = length - 1; i >= 0; i--) {
+			sortedDocids[i] = docids[0];
+			sortedScores[i] = scores[0];
+			
+			size--;
+			docids[0] = docids[size];
+			scores[0] = scores[size];
+			siftDown(0);
+		}
+		
+		ResultSet resultSet = new CollectionResultSet(sortedDocids, sortedScores, new short[length]);
+		resultSet.setExactResultSize(exactResultSize);
+		
+		return resultSet;
+	}
+	
+	/*
+	 * true if the document on position i is worse than (docid, score)
+	 */
+	private boolean worse(int i, int docid, double score) {
+		return scores[i] < score || (scores[i] == score && docids[i] > docid);
+	}
+	
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!worse(i, docids[parent], scores[parent])) break;
+			
+			swap(i, parent);
+			i = parent;
+		}
+	}
+	
+	private void siftDown(int i) {
+		while (true) {
+			int worst = i;
+			int left = 2 * i + 1;
+			int right = left + 1;
+			
+			if (left < size && worse(left, docids[worst], scores[worst]))
+				worst = left;
+			if (right < size && worse(right, docids[worst], scores[worst]))
+				worst = right;
+			
+			if (worst == i) return;
+			
+			swap(i, worst);
+			i = worst;
+		}
+	}
+	
+	private void swap(int i, int j) {
+		int docid = docids[i];
+		docids[i] = docids[j];
+		docids[j] = docid;
+		
+		double score = scores[i];
+		scores[i] = scores[j];
+		scores[j] = score;
+	}
+}
@@ -0,0 +1,105 @@
+package tests;
+import java.io.IOException;
+import java.util.Random;
+
+import org.terrier.matching.ResultSet;
+import org.terrier.structures.Index;
+
+import terrier.DJM;
+
+/**
+ * A simple class to test the dynamic pruning of DJM. Random queries are retrieved with Block-Max WAND,
+ * with the plain top-k scoring and with the exhaustive scoring, for several lambdas and amounts of
+ * retrieved documents, and the queries whose documents or scores differ are printed along with
+ * the average time of each strategy.
+ * Arguments: index path [index prefix] [queries per setting]
+ * @author Luiz Felix
+ */
+public class TestBlockMaxWand {
+	private static final String[] WORDS = {"computer", "algorithm", "matrix", "language", "system", "program",
+			"data", "sort", "compiler", "list", "tree", "graph", "error", "parallel", "memory", "storage", "search",
+			"recursive", "function", "numerical", "integer", "table", "hash", "time", "method", "problem", "result",
+			"process", "paper", "network", "patient", "heart", "disease", "treatment", "cancer", "blood"};
+	
+	public static void main(String args[]) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: TestBlockMaxWand <index path> [index prefix] [queries per setting]");
+			return;
+		}
+		
+		Index index = Index.createIndex(args[0], (args.length > 1) ? args[1] : "data");
+		int queries = (args.length > 2) ? Integer.parseInt(args[2]) : 200;
+		DJM djm = DJM.getInstance();
+		Random random = new Random(1);
+		int mismatches = 0;
+		
+		for (double lambda : new double[] {0, 0.3, 1.5}) {
+			for (int k : new int[] {10, 100, 1000}) {
+				djm.setLambda(lambda);
+				djm.setAmountOfRetrievedDocuments(k);
+				long wandTime = 0, topKTime = 0, exhaustiveTime = 0;
+				
+				for (int i = 0; i < queries; i++) {
+					StringBuilder query = new StringBuilder();
+					int terms = 2 + random.nextInt(14);
+					for (int t = 0; t < terms; t++)
+						query.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+					
+					long start = System.nanoTime();
+					ResultSet wand = retrieve(djm, query.toString(), index, true, true);
+					wandTime += System.nanoTime() - start;
+					
+					start = System.nanoTime();
+					ResultSet topK = retrieve(djm, query.toString(), index, true, false);
+					topKTime += System.nanoTime() - start;
+					
+					start = System.nanoTime();
+					ResultSet exhaustive = retrieve(djm, query.toString(), index, false, false);
+					exhaustiveTime += System.nanoTime() - start;
+					
+					if (!sameDocuments(wand, topK) || !sameScores(wand, exhaustive)) {
+						mismatches++;
+						System.out.println("Mismatch: lambda " + lambda + ", k " + k + ", query \"" + query.toString().trim() + "\"");
+					}
+				}
+				
+				System.out.printf("lambda %.1f, k %d: wand %.2f ms, top-k %.2f ms, exhaustive %.2f ms%n", lambda, k,
+						wandTime / 1e6 / queries, topKTime / 1e6 / queries, exhaustiveTime / 1e6 / queries);
+			}
+		}
+		
+		System.out.println(mismatches + " mismatches");
+	}
+	
+	private static ResultSet retrieve(DJM djm, String query, Index index, boolean topK, boolean pruning) throws IOException {
+		djm.setTopKRetrieval(topK);
+		djm.setDynamicPruning(pruning);
+		return djm.queryCorpus(query, index).getResultSet();
+	}
+	
+	private static boolean sameDocuments(ResultSet a, ResultSet b) {
+		if (a.getResultSize() != b.getResultSize())
+			return false;
+		
+		for (int i = 0; i < a.getResultSize(); i++)
+			if (a.getDocids()[i] != b.getDocids()[i] || a.getScores()[i] != b.getScores()[i])
+				return false;
+		
+		return true;
+	}
+	
+	/*
+	 * The exhaustive result has every scored document, and may order the ones with the same score differently,
+	 * so only the scores of as many documents as the top k are compared
+	 */
+	private static boolean sameScores(ResultSet topK, ResultSet exhaustive) {
+		if (exhaustive.getResultSize() < topK.getResultSize())
+			return false;
+		
+		for (int i = 0; i < topK.getResultSize(); i++)
+			if (topK.getScores()[i] != exhaustive.getScores()[i])
+				return false;
+		
+		return true;
+	}
+}
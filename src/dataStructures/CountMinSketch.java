@@ -0,0 +1,85 @@
+package dataStructures;
+
+/**
+ * A Count-Min sketch: a fixed size matrix of counters that estimates how many times an element
+ * was added, without storing the elements themselves. Estimates are never lower than the real
+ * counts and, with probability <code>1 - delta</code>, they are at most <code>epsilon * N</code>
+ * higher, where N is the total amount of additions. Elements are identified by a 64 bit hash,
+ * from which the position on each row is derived.
+ * 
+ * Counters are updated conservatively, that is, only the ones holding the current minimum are
+ * incremented, which keeps the same guarantees with smaller overestimates.
+ * 
+ * @author Luiz Felix
+ */
+public class CountMinSketch {
+	private final int width;
+	private final int depth;
+	private final long[] counters;
+	
+	/* Reused by add() to avoid recomputing the positions */
+	private final int[] positions;
+	
+	/**
+	 * Creates a sketch big enough for the given error bounds.
+	 * @param epsilon The maximum overestimate, as a fraction of the total amount of additions.
+	 * @param delta The probability of an estimate exceeding the error bound.
+	 */
+	public CountMinSketch(double epsilon, double delta) {
+		if (epsilon <= 0 || delta <= 0 || delta >= 1)
+			throw new IllegalArgumentException("epsilon must be positive and delta must be between 0 and 1.");
+		
+		this.width = (int) Math.ceil(Math.E / epsilon);
+		this.depth = (int) Math.ceil(Math.log(1 / delta));
+		this.counters = new long[width * depth];
+		this.positions = new int[depth];
+	}
+	
+	/**
+	 * Adds one occurrence of an element.
+	 * @param hash The 64 bit hash of the element.
+	 * @return The estimated amount of occurrences of the element, including this one.
+	 */
+	public long add(long hash) {
+		long minimum = Long.MAX_VALUE;
+		
+		for (int row = 0; row < depth; row++) {
+			positions[row] = row * width + position(hash, row);
+			minimum = Math.min(minimum, counters[positions[row]]);
+		}
+		
+		for (int row = 0; row < depth; row++)
+			if (counters[positions[row]] == minimum)
+				counters[positions[row]]++;
+		
+		return minimum + 1;
+	}
+	
+	/**
+	 * @param hash The 64 bit hash of the element.
+	 * @return The estimated amount of occurrences of the element.
+	 */
+	public long estimate(long hash) {
+		long minimum = Long.MAX_VALUE;
+		
+		for (int row = 0; row < depth; row++)
+			minimum = Math.min(minimum, counters[row * width + position(hash, row)]);
+		
+		return minimum;
+	}
+	
+	/**
+	 * @return The amount of bytes used by the counters.
+	 */
+	public long getMemoryUsage() {
+		return counters.length * 8L;
+	}
+	
+	/*
+	 * Each row uses a different hash function, derived from the two halves of the 64 bit hash
+	 */
+	private int position(long hash, int row) {
+		int combined = (int) hash + row * (int) (hash >>> 32);
+		return (combined & Integer.MAX_VALUE) % width;
+	}
+}
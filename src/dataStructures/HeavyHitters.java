@@ -0,0 +1,194 @@
+package dataStructures;
+
+import java.util.Map;
+
+/**
+ * Keeps the <code>capacity</code> elements with the highest estimated counts seen so far, usually
+ * fed by a <code>CountMinSketch</code>. Elements are kept on a min-heap, so deciding whether a new
+ * estimate makes it to the top is a single comparison, and are found by their 64 bit hash on an
+ * open addressing table, so updating an element that is already on the top doesn't create any object.
+ *
+ * @author Luiz Felix
+ */
+public class HeavyHitters {
+	private final int capacity;
+	private int size;
+	
+	/* The min-heap, with the element of lowest count on the position 0 */
+	private final String[] terms;
+	private final long[] hashes;
+	private final long[] counts;
+	private final int[] slotOf;
+	
+	/* hash -> position on the heap + 1, where 0 means empty */
+	private final long[] slotHashes;
+	private final int[] slotHeapPosition;
+	private final int mask;
+	
+	/**
+	 * @param capacity How many elements to keep.
+	 */
+	public HeavyHitters(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("At least one element must be kept.");
+		
+		this.capacity = capacity;
+		this.terms = new String[capacity];
+		this.hashes = new long[capacity];
+		this.counts = new long[capacity];
+		this.slotOf = new int[capacity];
+		
+		int tableSize = Integer.highestOneBit(capacity * 4 - 1) << 1;
+		this.slotHashes = new long[tableSize];
+		this.slotHeapPosition = new int[tableSize];
+		this.mask = tableSize - 1;
+	}
+	
+	/**
+	 * Updates the estimate of an element, adding it to the top if its count is big enough.
+	 * @param hash The 64 bit hash of the element.
+	 * @param chars A buffer holding the element. It is only copied if the element enters the top.
+	 * @param length The amount of characters of the element.
+	 * @param count The current estimate of the element.
+	 */
+	public void offer(long hash, char[] chars, int length, long count) {
+		// most of the elements aren't frequent enough, so this is the fast path
+		if (size == capacity && count <= counts[0])
+			return;
+		
+		int slot = find(hash);
+		
+		if (slotHeapPosition[slot] != 0) {
+			int position = slotHeapPosition[slot] - 1;
+			counts[position] = Math.max(counts[position], count);
+			siftDown(position);
+			return;
+		}
+		
+		if (size == capacity) {
+			// replaces the least frequent element
+			removeSlot(slotOf[0]);
+			slot = find(hash);
+			place(0, new String(chars, 0, length), hash, count, slot);
+			siftDown(0);
+		}
+		else {
+			place(size, new String(chars, 0, length), hash, count, slot);
+			siftUp(size++);
+		}
+	}
+	
+	/**
+	 * Copies the kept elements and their counts to <code>destination</code>.
+	 * @param destination The map to be filled.
+	 */
+	public void copyTo(Map<String, Integer> destination) {
+		for (int i = 0; i < size; i++)
+			destination.put(terms[i], (int) Math.min(counts[i], Integer.MAX_VALUE));
+	}
+	
+	/**
+	 * @return How many elements are kept.
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/*
+	 * The slot where hash is, or the empty one where it should be
+	 */
+	private int find(long hash) {
+		int slot = home(hash);
+		
+		while (slotHeapPosition[slot] != 0 && slotHashes[slot] != hash)
+			slot = (slot + 1) & mask;
+		
+		return slot;
+	}
+	
+	private int home(long hash) {
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+	
+	/*
+	 * Linear probing deletion: the following elements are shifted back, so no tombstone is needed
+	 */
+	private void removeSlot(int slot) {
+		slotHeapPosition[slot] = 0;
+		int next = slot;
+		
+		while (true) {
+			next = (next + 1) & mask;
+			if (slotHeapPosition[next] == 0) return;
+			
+			int home = home(slotHashes[next]);
+			
+			// the element at next can't be moved before its home slot
+			boolean between = (slot <= next) ? (slot < home && home <= next) : (slot < home || home <= next);
+			if (between) continue;
+			
+			slotHashes[slot] = slotHashes[next];
+			slotHeapPosition[slot] = slotHeapPosition[next];
+			slotOf[slotHeapPosition[slot] - 1] = slot;
+			
+			slotHeapPosition[next] = 0;
+			slot = next;
+		}
+	}
+	
+	private void place(int position, String term, long hash, long count, int slot) {
+		terms[position] = term;
+		hashes[position] = hash;
+		counts[position] = count;
+		slotOf[position] = slot;
+		
+		slotHashes[slot] = hash;
+		slotHeapPosition[slot] = position + 1;
+	}
+	
+	private void siftUp(int position) {
+		while (position > 0) {
+			int parent = (position - 1) >>> 1;
+			if (counts[parent] <= counts[position]) return;
+			
+			swap(parent, position);
+			position = parent;
+		}
+	}
+	
+	private void siftDown(int position) {
+		while (true) {
+			int smallest = position;
+			int left = position * 2 + 1;
+			int right = left + 1;
+			
+			if (left < size && counts[left] < counts[smallest]) smallest = left;
+			if (right < size && counts[right] < counts[smallest]) smallest = right;
+			if (smallest == position) return;
+			
+			swap(smallest, position);
+			position = smallest;
+		}
+	}
+	
+	private void swap(int a, int b) {
+		String term = terms[a];
+		terms[a] = terms[b];
+		terms[b] = term;
+		
+		long hash = hashes[a];
+		hashes[a] = hashes[b];
+		hashes[b] = hash;
+		
+		long count = counts[a];
+		counts[a] = counts[b];
+		counts[b] = count;
+		
+		int slot = slotOf[a];
+		slotOf[a] = slotOf[b];
+		slotOf[b] = slot;
+		
+		slotHeapPosition[slotOf[a]] = a + 1;
+		slotHeapPosition[slotOf[b]] = b + 1;
+	}
+}
@@ -0,0 +1,61 @@
+package dataStructures;
+
+/**
+ * Estimates the amount of distinct elements of a stream using a fixed amount of memory: 2^precision
+ * registers of one byte each. The standard error of the estimate is about 1.04 / sqrt(2^precision),
+ * for example, 0.8% with precision 14 (16KB). Elements are identified by a well mixed 64 bit hash.
+ * 
+ * @author Luiz Felix
+ */
+public class HyperLogLog {
+	private final int precision;
+	private final byte[] registers;
+	
+	/**
+	 * @param precision The base 2 logarithm of the amount of registers, between 4 and 18.
+	 */
+	public HyperLogLog(int precision) {
+		if (precision < 4 || precision > 18)
+			throw new IllegalArgumentException("The precision must be between 4 and 18.");
+		
+		this.precision = precision;
+		this.registers = new byte[1 << precision];
+	}
+	
+	/**
+	 * Adds an element to the set.
+	 * @param hash The 64 bit hash of the element.
+	 */
+	public void add(long hash) {
+		int register = (int) (hash >>> (64 - precision));
+		
+		// position of the first 1 bit of the remaining bits
+		byte rank = (byte) (Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1);
+		
+		if (rank > registers[register])
+			registers[register] = rank;
+	}
+	
+	/**
+	 * @return The estimated amount of distinct elements added so far.
+	 */
+	public long estimate() {
+		int m = registers.length;
+		double sum = 0;
+		int emptyRegisters = 0;
+		
+		for (byte register : registers) {
+			sum += 1.0 / (1L << register);
+			if (register == 0) emptyRegisters++;
+		}
+		
+		double alpha = 0.7213 / (1 + 1.079 / m);
+		double estimate = alpha * m * m / sum;
+		
+		// linear counting is more accurate for small cardinalities
+		if (estimate <= 2.5 * m && emptyRegisters > 0)
+			estimate = m * Math.log((double) m / emptyRegisters);
+		
+		return Math.round(estimate);
+	}
+}
@@ -0,0 +1,205 @@
+package dataStructures;
+
+import java.util.Map;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * An open addressing hash table that maps terms to primitive <code>int</code> counters. It
+ * is meant to replace <code>HashMap<String, Integer></code> on hot counting loops, since
+ * incrementing a term doesn't box any value nor create a new entry object. Each table is
+ * supposed to be used by a single thread; partial tables can be joined later through
+ * <code>merge()</code>.
+ *
+ * @author Luiz Felix
+ */
+public class TermCounter {
+	private static final int DEFAULT_CAPACITY = 1024;
+	
+	private String[] keys;
+	private int[] hashes;
+	private int[] counts;
+	private int size;
+	
+	/**
+	 * Creates an empty table.
+	 */
+	public TermCounter() {
+		this(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * Creates an empty table able to hold <code>expectedTerms</code> before growing.
+	 * @param expectedTerms The amount of distinct terms expected.
+	 */
+	public TermCounter(int expectedTerms) {
+		int capacity = Integer.highestOneBit(Math.max(expectedTerms * 2, 16) - 1) << 1;
+		
+		keys = new String[capacity];
+		hashes = new int[capacity];
+		counts = new int[capacity];
+	}
+	
+	/**
+	 * Adds one occurrence of <code>term</code> to the table.
+	 * @param term The term to be counted.
+	 */
+	public void increment(String term) {
+		add(term, 1);
+	}
+	
+	/**
+	 * Adds one occurrence of the term held by <code>chars[0, length)</code> to the table. A new
+	 * String is only created if the term wasn't on the table yet.
+	 * @param chars A buffer holding the term.
+	 * @param length The amount of characters of the term.
+	 */
+	public void increment(char[] chars, int length) {
+		int hash = 0;
+		for (int i = 0; i < length; i++)
+			hash = 31 * hash + chars[i];
+		
+		// same as String.hashCode(), so both increment methods find the same slots
+		hash = mix(hash);
+		int mask = keys.length - 1;
+		int slot = hash & mask;
+		
+		while (keys[slot] != null) {
+			if (hashes[slot] == hash && sameTerm(keys[slot], chars, length)) {
+				counts[slot]++;
+				return;
+			}
+			
+			slot = (slot + 1) & mask;
+		}
+		
+		insert(slot, new String(chars, 0, length), hash, 1);
+	}
+	
+	/**
+	 * Adds <code>amount</code> occurrences of <code>term</code> to the table.
+	 * @param term The term to be counted.
+	 * @param amount How many times it occurred.
+	 */
+	public void add(String term, int amount) {
+		int hash = mix(term.hashCode());
+		int mask = keys.length - 1;
+		int slot = hash & mask;
+		
+		while (keys[slot] != null) {
+			if (hashes[slot] == hash && keys[slot].equals(term)) {
+				counts[slot] += amount;
+				return;
+			}
+			
+			slot = (slot + 1) & mask;
+		}
+		
+		insert(slot, term, hash, amount);
+	}
+	
+	/**
+	 * @param term The term to be looked up.
+	 * @return How many times <code>term</code> was counted, 0 if it was never seen.
+	 */
+	public int get(String term) {
+		int hash = mix(term.hashCode());
+		int mask = keys.length - 1;
+		
+		for (int slot = hash & mask; keys[slot] != null; slot = (slot + 1) & mask)
+			if (hashes[slot] == hash && keys[slot].equals(term))
+				return counts[slot];
+		
+		return 0;
+	}
+	
+	/**
+	 * Adds all the counters of <code>other</code> to this table.
+	 * @param other The table to be merged into this one. It is not modified.
+	 */
+	public void merge(TermCounter other) {
+		for (int i = 0; i < other.keys.length; i++)
+			if (other.keys[i] != null)
+				add(other.keys[i], other.counts[i]);
+	}
+	
+	/**
+	 * Adds every term and its counter to <code>destination</code>, summing them to the values
+	 * already stored there.
+	 * @param destination The map to be updated.
+	 */
+	public void addTo(Map<String, Integer> destination) {
+		for (int i = 0; i < keys.length; i++)
+			if (keys[i] != null)
+				destination.merge(keys[i], counts[i], Integer::sum);
+	}
+	
+	/**
+	 * Visits every term of the table, in no particular order.
+	 * @param action Receives each term and its counter.
+	 */
+	public void forEach(ObjIntConsumer<String> action) {
+		for (int i = 0; i < keys.length; i++)
+			if (keys[i] != null)
+				action.accept(keys[i], counts[i]);
+	}
+	
+	/**
+	 * @return The amount of distinct terms on the table.
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/*
+	 * Stores a new key on a known empty slot, growing the table when it's more than half full
+	 */
+	private void insert(int slot, String term, int hash, int amount) {
+		keys[slot] = term;
+		hashes[slot] = hash;
+		counts[slot] = amount;
+		
+		if (++size * 2 > keys.length)
+			rehash(keys.length * 2);
+	}
+	
+	private void rehash(int capacity) {
+		String[] oldKeys = keys;
+		int[] oldHashes = hashes;
+		int[] oldCounts = counts;
+		
+		keys = new String[capacity];
+		hashes = new int[capacity];
+		counts = new int[capacity];
+		
+		int mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] == null) continue;
+			
+			int slot = oldHashes[i] & mask;
+			while (keys[slot] != null)
+				slot = (slot + 1) & mask;
+			
+			keys[slot] = oldKeys[i];
+			hashes[slot] = oldHashes[i];
+			counts[slot] = oldCounts[i];
+		}
+	}
+	
+	private static boolean sameTerm(String key, char[] chars, int length) {
+		if (key.length() != length) return false;
+		
+		for (int i = 0; i < length; i++)
+			if (key.charAt(i) != chars[i])
+				return false;
+		
+		return true;
+	}
+	
+	/*
+	 * String.hashCode() is weak on the lower bits for short words, which are the ones used as index
+	 */
+	private static int mix(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,116 @@
+package parsing;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A document being visited on a <code>CorpusSource</code>. Its contents are streamed straight from
+ * the source, so they can be read only once and just while the document is being visited. Closing
+ * the streams returned by this class doesn't close the underlying source.
+ * 
+ * @author Luiz Felix
+ */
+public class CorpusDocument {
+	private final int id;
+	private final String name;
+	private final long size;
+	private final long lastModified;
+	private final InputStream content;
+	
+	/**
+	 * @param id The position of the document on its source.
+	 * @param name The file name of the document, without folders.
+	 * @param size The amount of bytes of the document, or -1 if it is unknown.
+	 * @param lastModified When the document was last modified, in milliseconds since the epoch.
+	 * @param content The stream with the document bytes.
+	 */
+	public CorpusDocument(int id, String name, long size, long lastModified, InputStream content) {
+		this.id = id;
+		this.name = name;
+		this.size = size;
+		this.lastModified = lastModified;
+		this.content = new FilterInputStream(content) {
+			@Override
+			public void close() { }
+		};
+	}
+	
+	/** @return The position of the document on its source, starting from 0. */
+	public int getId() { return this.id; }
+	
+	/** @return The file name of the document. */
+	public String getName() { return this.name; }
+	
+	/** @return The amount of bytes of the document, or -1 if the source doesn't know it beforehand. */
+	public long getSize() { return this.size; }
+	
+	/** @return When the document was last modified, in milliseconds since the epoch. */
+	public long getLastModified() { return this.lastModified; }
+	
+	/**
+	 * @param extensions The accepted extensions, for example <code>{html, txt}</code>.
+	 * @return <code>true</code> if the name of the document ends with one of <code>extensions</code>.
+	 */
+	public boolean hasExtension(String extensions[]) {
+		int nameEnd = name.lastIndexOf(".");
+		if (nameEnd <= 0) return false;
+		
+		String fileExtension = name.substring(nameEnd + 1);
+		
+		for (String ex : extensions)
+			if (ex.equals(fileExtension))
+				return true;
+		
+		return false;
+	}
+	
+	/**
+	 * @return The raw contents of the document.
+	 */
+	public InputStream openStream() {
+		return content;
+	}
+	
+	/**
+	 * @return The contents of the document decoded as UTF-8. Malformed input raises an exception
+	 * while reading, just like <code>Files.readAllLines()</code>.
+	 */
+	public Reader openReader() {
+		return new InputStreamReader(content, StandardCharsets.UTF_8.newDecoder());
+	}
+	
+	/**
+	 * @return All the bytes of the document.
+	 * @throws IOException if there is a fault while reading the document.
+	 */
+	public byte[] readAllBytes() throws IOException {
+		byte[] bytes = new byte[(size > 0) ? (int) size : 8192];
+		int filled = 0;
+		int read;
+		
+		while ((read = content.read(bytes, filled, bytes.length - filled)) != -1) {
+			filled += read;
+			
+			if (filled == bytes.length) {
+				// the size may be unknown or wrong, so check if there is anything left before growing
+				int next = content.read();
+				if (next == -1) break;
+				
+				byte[] bigger = new byte[bytes.length * 2];
+				System.arraycopy(bytes, 0, bigger, 0, filled);
+				bytes = bigger;
+				bytes[filled++] = (byte) next;
+			}
+		}
+		
+		if (filled == bytes.length) return bytes;
+		
+		byte[] exact = new byte[filled];
+		System.arraycopy(bytes, 0, exact, 0, filled);
+		return exact;
+	}
+}
@@ -0,0 +1,64 @@
+package parsing;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A collection of text documents that can be read sequentially, such as a folder or a zip archive.
+ * Hidden documents (the ones whose name begins with '.') and folders are never visited. Each
+ * document receives an ID according to its position on the source, starting from 0, so
+ * iterating twice over an unchanged source always yields the same IDs.
+ * 
+ * @author Luiz Felix
+ */
+public interface CorpusSource {
+	/**
+	 * Receives each document of the corpus. 
+	 */
+	interface DocumentVisitor {
+		/**
+		 * @param document The current document. Its contents can only be read during this call.
+		 * @throws IOException if there is a fault while reading the document.
+		 */
+		void visit(CorpusDocument document) throws IOException;
+	}
+	
+	/**
+	 * Visits every document of the corpus, in order.
+	 * @param visitor Who receives the documents.
+	 * @throws IOException if there is a fault while reading the corpus or if <code>visitor</code> fails.
+	 */
+	void forEach(DocumentVisitor visitor) throws IOException;
+	
+	/**
+	 * Opens a corpus, choosing the right source according to <code>path</code>:
+	 * - if it is a file, it is read as a zip archive;
+	 * - if it is a folder containing only zip archives, they are read one after the other;
+	 * - otherwise, each file on the folder is a document.
+	 * @param path The path to the corpus.
+	 * @return The corpus source.
+	 * @throws IOException if <code>path</code> doesn't exist.
+	 */
+	static CorpusSource open(String path) throws IOException {
+		File file = new File(path);
+		
+		if (!file.exists())
+			throw new IOException("The corpus " + path + " doesn't exist.");
+		
+		if (file.isFile())
+			return new ZipCorpus(path);
+		
+		boolean onlyArchives = false;
+		
+		for (File child : file.listFiles()) {
+			if (child.getName().startsWith(".") || child.isDirectory()) continue;
+			
+			if (!child.getName().endsWith(ZipCorpus.EXTENSION))
+				return new FolderCorpus(path);
+			
+			onlyArchives = true;
+		}
+		
+		return (onlyArchives) ? new ZipCorpus(path) : new FolderCorpus(path);
+	}
+}
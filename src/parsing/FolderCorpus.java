@@ -0,0 +1,56 @@
+package parsing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A corpus made of plain files on a folder. The files are visited in the lexicographic order
+ * of their names, so the document IDs don't depend on the order the file system lists them.
+ * 
+ * @author Luiz Felix
+ */
+public class FolderCorpus implements CorpusSource {
+	private final File folder;
+	
+	/**
+	 * @param folderPath The path to the folder that holds the documents.
+	 */
+	public FolderCorpus(String folderPath) {
+		this.folder = new File(folderPath);
+	}
+	
+	/**
+	 * @return The documents of this corpus, in the same order they are visited.
+	 * @throws IOException if the folder can't be listed.
+	 */
+	public List<File> listDocuments() throws IOException {
+		File[] children = folder.listFiles();
+		if (children == null)
+			throw new IOException("Could not list the folder " + folder);
+		
+		List<File> documents = new ArrayList<>();
+		
+		for (File child : children)
+			if (child.isFile() && !child.getName().startsWith("."))
+				documents.add(child);
+		
+		Collections.sort(documents);
+		return documents;
+	}
+	
+	@Override
+	public void forEach(DocumentVisitor visitor) throws IOException {
+		int id = 0;
+		
+		for (File file : listDocuments()) {
+			try (InputStream content = Files.newInputStream(file.toPath())) {
+				visitor.visit(new CorpusDocument(id++, file.getName(), file.length(), file.lastModified(), content));
+			}
+		}
+	}
+}
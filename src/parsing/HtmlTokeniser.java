@@ -0,0 +1,307 @@
+package parsing;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Splits text files into words, the same way the classes of the first weeks used to do with a chain of
+ * regular expressions applied to each line:
+ * 1. Tabs are replaced by spaces and runs of two or more whitespaces are collapsed into one space;
+ * 2. HTML tags are removed, that is, everything from a '&lt;' to the last '&gt;' on the same line;
+ * 3. Every character that is neither a letter, a space nor (if allowed) a digit is removed, which
+ * means that "e-mail" becomes "email";
+ * 4. The remaining text is split on spaces.
+ *
+ * Instead of creating a handful of Strings per line, the characters are scanned only once and each word
+ * is handed to a <code>TokenHandler</code> through a reusable char array. Objects of this class keep
+ * internal buffers, so they are NOT thread safe, but are supposed to be reused across files.
+ *
+ * @author Luiz Felix
+ */
+public class HtmlTokeniser {
+	private static final int BUFFER_SIZE = 8192;
+	
+	/**
+	 * Receives each word found by the tokeniser.
+	 */
+	public interface TokenHandler {
+		/**
+		 * @param chars A buffer holding the word. It is overwritten after this method returns, so
+		 * the word must be copied if it is going to be stored.
+		 * @param length The amount of characters of the word, starting at the position 0 of <code>chars</code>.
+		 * @throws IOException if the handler fails while consuming the word.
+		 */
+		void token(char[] chars, int length) throws IOException;
+	}
+	
+	private final boolean allowNumbers;
+	private final boolean lowerCase;
+	
+	private char[] token = new char[64];
+	private int tokenLength;
+	
+	private char[] buffer;
+	private CharBuffer decoded;
+	private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+	
+	/* Position of the end of the current "." segment and of its last '>', used to find tags in linear time */
+	private int segmentEnd;
+	private int lastTagEnd;
+	
+	/**
+	 * Creates a new tokeniser.
+	 * @param allowNumbers If <code>false</code>, digits are removed as any other non-letter character.
+	 * @param lowerCase If <code>true</code>, all the words are lower cased.
+	 */
+	public HtmlTokeniser(boolean allowNumbers, boolean lowerCase) {
+		this.allowNumbers = allowNumbers;
+		this.lowerCase = lowerCase;
+	}
+	
+	/**
+	 * Tokenises a UTF-8 text file.
+	 * @param file The path to the file.
+	 * @param handler Who receives the words.
+	 * @throws IOException if there's a fault while reading the file or if it isn't valid UTF-8.
+	 */
+	public void tokenise(Path file, TokenHandler handler) throws IOException {
+		try (Reader reader = new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8.newDecoder())) {
+			tokenise(reader, handler);
+		}
+	}
+	
+	/**
+	 * Tokenises the characters read from <code>reader</code> until its end. Only a line at a time
+	 * is kept in memory. The reader is not closed.
+	 * @param reader The source of the text.
+	 * @param handler Who receives the words.
+	 * @throws IOException if there's a fault while reading.
+	 */
+	public void tokenise(Reader reader, TokenHandler handler) throws IOException {
+		if (buffer == null)
+			buffer = new char[BUFFER_SIZE];
+		
+		int filled = 0;
+		int read;
+		
+		while ((read = reader.read(buffer, filled, buffer.length - filled)) != -1) {
+			filled += read;
+			
+			int lastBreak = filled - 1;
+			while (lastBreak >= 0 && !isLineBreak(buffer[lastBreak]))
+				lastBreak--;
+			
+			if (lastBreak < 0) {
+				// a single line doesn't fit on the buffer
+				if (filled == buffer.length) {
+					char[] bigger = new char[buffer.length * 2];
+					System.arraycopy(buffer, 0, bigger, 0, filled);
+					buffer = bigger;
+				}
+				continue;
+			}
+			
+			scan(buffer, 0, lastBreak + 1, handler);
+			
+			// keeping the incomplete line for the next read
+			filled -= lastBreak + 1;
+			System.arraycopy(buffer, lastBreak + 1, buffer, 0, filled);
+		}
+		
+		scan(buffer, 0, filled, handler);
+	}
+	
+	/**
+	 * Tokenises UTF-8 encoded bytes, from the buffer's position to its limit.
+	 * @param bytes The encoded text.
+	 * @param handler Who receives the words.
+	 * @throws IOException if the bytes aren't valid UTF-8 or if the handler fails.
+	 */
+	public void tokenise(ByteBuffer bytes, TokenHandler handler) throws IOException {
+		int needed = (int) (bytes.remaining() * (double) decoder.maxCharsPerByte());
+		
+		if (decoded == null || decoded.capacity() < needed)
+			decoded = CharBuffer.allocate(Math.max(needed, BUFFER_SIZE));
+		
+		decoded.clear();
+		decoder.reset();
+		
+		if (decoder.decode(bytes, decoded, true).isError() || decoder.flush(decoded).isError())
+			throw new CharacterCodingException();
+		
+		decoded.flip();
+		tokenise(decoded, handler);
+	}
+	
+	/**
+	 * Tokenises the characters from the buffer's position to its limit. The buffer's position
+	 * is not changed.
+	 * @param text The text to be tokenised.
+	 * @param handler Who receives the words.
+	 * @throws IOException if the handler fails.
+	 */
+	public void tokenise(CharBuffer text, TokenHandler handler) throws IOException {
+		if (text.hasArray()) {
+			scan(text.array(), text.arrayOffset() + text.position(), text.arrayOffset() + text.limit(), handler);
+			return;
+		}
+		
+		// direct or read-only buffers are copied in chunks made of whole lines
+		if (buffer == null)
+			buffer = new char[BUFFER_SIZE];
+		
+		CharBuffer source = text.duplicate();
+		int filled = 0;
+		
+		while (source.hasRemaining()) {
+			if (filled == buffer.length) {
+				char[] bigger = new char[buffer.length * 2];
+				System.arraycopy(buffer, 0, bigger, 0, filled);
+				buffer = bigger;
+			}
+			
+			int amount = Math.min(buffer.length - filled, source.remaining());
+			source.get(buffer, filled, amount);
+			filled += amount;
+			
+			int lastBreak = filled - 1;
+			while (lastBreak >= 0 && !isLineBreak(buffer[lastBreak]))
+				lastBreak--;
+			
+			if (lastBreak >= 0) {
+				scan(buffer, 0, lastBreak + 1, handler);
+				
+				filled -= lastBreak + 1;
+				System.arraycopy(buffer, lastBreak + 1, buffer, 0, filled);
+			}
+		}
+		
+		scan(buffer, 0, filled, handler);
+	}
+	
+	/*
+	 * Tokenises chars[from, to), line by line
+	 */
+	private void scan(char[] chars, int from, int to, TokenHandler handler) throws IOException {
+		int lineStart = from;
+		
+		for (int i = from; i < to; i++) {
+			if (isLineBreak(chars[i])) {
+				scanLine(chars, lineStart, i, handler);
+				lineStart = i + 1;
+			}
+		}
+		
+		if (lineStart < to)
+			scanLine(chars, lineStart, to, handler);
+	}
+	
+	/*
+	 * Tokenises a single line, chars[from, to), which doesn't contain any '\n' nor '\r'
+	 */
+	private void scanLine(char[] chars, int from, int to, TokenHandler handler) throws IOException {
+		int whitespaces = 0;
+		boolean hasSpace = false;
+		
+		tokenLength = 0;
+		segmentEnd = -1;
+		lastTagEnd = -1;
+		
+		for (int i = from; i < to; i++) {
+			char c = chars[i];
+			
+			if (c == '<') {
+				if (segmentEnd < i)
+					findSegment(chars, i, to);
+				
+				// "<.*>" is greedy, so the tag goes until the last '>' that "." can reach
+				if (lastTagEnd > i) {
+					endWhitespaces(whitespaces, hasSpace, handler);
+					whitespaces = 0;
+					hasSpace = false;
+					
+					i = lastTagEnd;
+					continue;
+				}
+			}
+			
+			if (c == ' ' || c == '\t') {
+				whitespaces++;
+				hasSpace = true;
+				continue;
+			}
+			
+			if (c == '\f' || c == '\u000B') {
+				whitespaces++;
+				continue;
+			}
+			
+			endWhitespaces(whitespaces, hasSpace, handler);
+			whitespaces = 0;
+			hasSpace = false;
+			
+			if ((c >= 'a' && c <= 'z') || (allowNumbers && c >= '0' && c <= '9'))
+				append(c);
+			else if (c >= 'A' && c <= 'Z')
+				append(lowerCase ? (char) (c + ('a' - 'A')) : c);
+		}
+		
+		emit(handler);
+	}
+	
+	/*
+	 * A lonely \f or \u000B is just removed, but a space, a tab or a run of two whitespaces
+	 * ends the current word
+	 */
+	private void endWhitespaces(int whitespaces, boolean hasSpace, TokenHandler handler) throws IOException {
+		if (hasSpace || whitespaces > 1)
+			emit(handler);
+	}
+	
+	/*
+	 * Finds where the segment starting at start ends (the "." of a regex doesn't match the
+	 * unicode line separators) and where is its last '>'
+	 */
+	private void findSegment(char[] chars, int start, int to) {
+		lastTagEnd = -1;
+		segmentEnd = start;
+		
+		for (; segmentEnd < to; segmentEnd++) {
+			char c = chars[segmentEnd];
+			
+			if (c == '>')
+				lastTagEnd = segmentEnd;
+			else if (c == '\u0085' || c == '\u2028' || c == '\u2029')
+				break;
+		}
+	}
+	
+	private void append(char c) {
+		if (tokenLength == token.length) {
+			char[] bigger = new char[token.length * 2];
+			System.arraycopy(token, 0, bigger, 0, tokenLength);
+			token = bigger;
+		}
+		
+		token[tokenLength++] = c;
+	}
+	
+	private void emit(TokenHandler handler) throws IOException {
+		if (tokenLength == 0) return;
+		
+		handler.token(token, tokenLength);
+		tokenLength = 0;
+	}
+	
+	private static boolean isLineBreak(char c) {
+		return c == '\n' || c == '\r';
+	}
+}
@@ -0,0 +1,80 @@
+package parsing;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * A corpus compressed in one zip archive, or in all the zip archives of a folder. The archives are
+ * read sequentially, entry by entry, without being extracted, so reading the whole corpus costs one
+ * file opening per archive instead of one per document. Documents are visited in the same order they
+ * are stored: archives in the lexicographic order of their names and then entries in their order
+ * within the archive.
+ * 
+ * @author Luiz Felix
+ */
+public class ZipCorpus implements CorpusSource {
+	public static final String EXTENSION = ".zip";
+	
+	/* Folder created by OS X's archiver, which holds metadata instead of documents */
+	private static final String OSX_METADATA = "__MACOSX/";
+	
+	private final File path;
+	
+	/**
+	 * @param path Either the path to a zip archive or to a folder with zip archives.
+	 */
+	public ZipCorpus(String path) {
+		this.path = new File(path);
+	}
+	
+	/**
+	 * @return The archives of this corpus, in the order they are read.
+	 * @throws IOException if the corpus folder can't be listed.
+	 */
+	public List<File> listArchives() throws IOException {
+		List<File> archives = new ArrayList<>();
+		
+		if (path.isFile()) {
+			archives.add(path);
+			return archives;
+		}
+		
+		File[] children = path.listFiles();
+		if (children == null)
+			throw new IOException("Could not list the folder " + path);
+		
+		for (File child : children)
+			if (child.isFile() && !child.getName().startsWith(".") && child.getName().endsWith(EXTENSION))
+				archives.add(child);
+		
+		Collections.sort(archives);
+		return archives;
+	}
+	
+	@Override
+	public void forEach(DocumentVisitor visitor) throws IOException {
+		int id = 0;
+		
+		for (File archive : listArchives()) {
+			try (ZipInputStream zip = new ZipInputStream(new BufferedInputStream(Files.newInputStream(archive.toPath())))) {
+				ZipEntry entry;
+				
+				while ((entry = zip.getNextEntry()) != null) {
+					if (entry.isDirectory() || entry.getName().startsWith(OSX_METADATA)) continue;
+					
+					String name = entry.getName().substring(entry.getName().lastIndexOf('/') + 1);
+					if (name.startsWith(".")) continue;
+					
+					visitor.visit(new CorpusDocument(id++, name, entry.getSize(), entry.getTime(), zip));
+				}
+			}
+		}
+	}
+}
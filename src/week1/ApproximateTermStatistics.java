@@ -0,0 +1,93 @@
+package week1;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import dataStructures.CountMinSketch;
+import dataStructures.HeavyHitters;
+import dataStructures.HyperLogLog;
+import parsing.HtmlTokeniser;
+
+/**
+ * Term statistics computed in bounded memory, for corpora whose vocabulary doesn't fit on the heap:
+ * - the amount of occurrences of each term is estimated by a Count-Min sketch;
+ * - only the <code>topTerms</code> terms with the highest estimates are kept, with their estimates;
+ * - the vocabulary size is estimated by a HyperLogLog;
+ * - the total amount of terms is exact.
+ * The memory used doesn't depend on the corpus size, just on the error bounds and on <code>topTerms</code>.
+ * 
+ * @author Luiz Felix
+ */
+public class ApproximateTermStatistics implements HtmlTokeniser.TokenHandler {
+	/* 2^14 registers, standard error of about 0.8% */
+	private static final int VOCABULARY_PRECISION = 14;
+	
+	private final CountMinSketch sketch;
+	private final HeavyHitters topTerms;
+	private final HyperLogLog vocabulary;
+	private long amountOfTerms;
+	
+	/**
+	 * @param topTerms How many of the most frequent terms are kept.
+	 * @param epsilon The maximum overestimate of a term count, as a fraction of the total amount of terms.
+	 * @param delta The probability of an estimate exceeding the error bound.
+	 */
+	public ApproximateTermStatistics(int topTerms, double epsilon, double delta) {
+		this.sketch = new CountMinSketch(epsilon, delta);
+		this.topTerms = new HeavyHitters(topTerms);
+		this.vocabulary = new HyperLogLog(VOCABULARY_PRECISION);
+	}
+	
+	@Override
+	public void token(char[] chars, int length) {
+		long hash = hash(chars, length);
+		
+		vocabulary.add(hash);
+		topTerms.offer(hash, chars, length, sketch.add(hash));
+		amountOfTerms++;
+	}
+	
+	/**
+	 * @return The most frequent terms and their estimated amount of occurrences.
+	 */
+	public Map<String, Integer> getTopTerms() {
+		Map<String, Integer> table = new HashMap<>(topTerms.size() * 2);
+		topTerms.copyTo(table);
+		
+		return table;
+	}
+	
+	/**
+	 * @return The estimated amount of distinct terms.
+	 */
+	public long getVocabularySize() {
+		return vocabulary.estimate();
+	}
+	
+	/**
+	 * @return The exact amount of terms added.
+	 */
+	public long getAmountOfTerms() {
+		return amountOfTerms;
+	}
+	
+	/*
+	 * 64 bit FNV-1a followed by MurmurHash3's finaliser, as the sketches need well spread bits
+	 */
+	private static long hash(char[] chars, int length) {
+		long hash = 0xcbf29ce484222325L;
+		
+		for (int i = 0; i < length; i++) {
+			hash ^= chars[i];
+			hash *= 0x100000001b3L;
+		}
+		
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		
+		return hash;
+	}
+}
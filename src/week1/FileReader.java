@@ -2,12 +2,23 @@ package week1;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import dataStructures.TermCounter;
+import parsing.CorpusSource;
+import parsing.HtmlTokeniser;
 
 /**
  * A class that scans all the files in a folder to calculate the frequency of words
@@ -16,11 +27,46 @@ import java.util.Map.Entry;
  * example ".tar.gz". This normally would not be a problem, since the files must be
  * plain text, such as .txt and .html.
  * 
+ * Besides folders, any <code>CorpusSource</code> can be scanned, such as zip archives.
+ * The statistics can also be computed in parallel through <code>computeFolderStatisticsInParallel()</code>,
+ * which yields exactly the same table as the sequential scan, or incrementally through
+ * <code>computeFolderStatisticsIncrementally()</code>, which only scans the files changed since its last run.
+ * For huge corpora, <code>useApproximateStatistics()</code> trades exactness for bounded memory.
+ * 
  * @author Luiz Felix
  */
 public class FileReader {
+	/* Amount of files a parallel worker handles before it stops splitting its slice */
+	private static final int FILES_PER_TASK = 16;
+	
 	private Map<String, Integer> table = new HashMap<>();
 	private int amountOfFiles;
+	private int amountOfRescannedFiles;
+	
+	/* Reused across files, one for each value of allowNumbers */
+	private HtmlTokeniser wordsTokeniser, wordsAndNumbersTokeniser;
+	
+	/* Not null when the statistics are estimated instead of counted */
+	private ApproximateTermStatistics approximation;
+	
+	/**
+	 * Makes the next scans estimate the statistics in bounded memory instead of counting every word
+	 * exactly, which is meant for corpora whose vocabulary doesn't fit on the heap. Afterwards,
+	 * <code>getTable()</code> holds just the <code>topTerms</code> most frequent words with their
+	 * estimated counts, <code>getVocabularySize()</code> is an estimate and <code>getNumberOfElements()</code>
+	 * is still exact. Previously computed statistics are discarded.
+	 * 
+	 * Only <code>computeFileStatistics()</code>, <code>computeFolderStatistics()</code> and 
+	 * <code>computeCorpusStatistics()</code> support this mode.
+	 * 
+	 * @param topTerms how many of the most frequent words are reported.
+	 * @param epsilon the maximum overestimate of a word count, as a fraction of the total amount of words.
+	 * @param delta the probability of a word count exceeding this error.
+	 */
+	public void useApproximateStatistics(int topTerms, double epsilon, double delta) {
+		approximation = new ApproximateTermStatistics(topTerms, epsilon, delta);
+		table = new HashMap<>();
+	}
 	
 	/**
 	 * Tokenises and compute the statistics for all the files within this folder that have
@@ -35,10 +81,155 @@ public class FileReader {
 	 * @throws IOException if there is a problem reading any file.
 	 */
 	public void computeFolderStatistics(String folderPath, boolean allowNumbers, String extensions[]) throws IOException {
-		File folder = new File(folderPath);
+		List<String> files = listFiles(folderPath, extensions);
+		
+		for (String file : files)
+			computeFileStatistics(file, allowNumbers);
+		
+		amountOfFiles = files.size();
+	}
+	
+	/**
+	 * Does the same as <code>computeFolderStatistics()</code>, but the files are split across a fork-join
+	 * pool. Each worker streams its own slice of files into a private counting table and the tables are
+	 * merged once all the workers are done, so no lock is held while tokenising.
+	 *  
+	 * @param folderPath the path to the folder to be scanned.
+	 * @param allowNumbers if <code>false</code>, then number will not be considered on the
+	 * parsing statistics.
+	 * @param extensions the supported extensions, for example <code>{html, txt}</code>.
+	 * @param parallelism the amount of worker threads. If it is lesser than 1, then one thread per
+	 * available processor is used.
+	 * @throws IOException if there is a problem reading any file.
+	 */
+	public void computeFolderStatisticsInParallel(String folderPath, boolean allowNumbers, String extensions[], int parallelism) 
+			throws IOException {
+		requireExactStatistics();
+		List<String> files = listFiles(folderPath, extensions);
+		
+		if (parallelism < 1)
+			parallelism = Runtime.getRuntime().availableProcessors();
+		
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		TermCounter counter;
+		
+		try {
+			counter = pool.invoke(new StatisticsTask(files, 0, files.size(), allowNumbers));
+		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		finally {
+			pool.shutdown();
+		}
+		
+		// merging into the table keeps the same semantics as consecutive sequential calls
+		counter.addTo(table);
+		
+		amountOfFiles = files.size();
+	}
+	
+	/**
+	 * Does the same as <code>computeFolderStatistics()</code>, but reuses the statistics saved on
+	 * <code>manifestPath</code> by a previous run over the same folder. Only new files and the ones
+	 * whose contents changed are tokenised again; the counts of changed and removed files are
+	 * subtracted from the saved table. Files are considered unchanged if their size and modification
+	 * time are the same, or else if their content hash is. The updated manifest is saved back once
+	 * the statistics are computed. If the manifest doesn't exist or was created with other options,
+	 * all the files are scanned.
+	 *  
+	 * @param folderPath the path to the folder to be scanned.
+	 * @param allowNumbers if <code>false</code>, then number will not be considered on the
+	 * parsing statistics.
+	 * @param extensions the supported extensions, for example <code>{html, txt}</code>.
+	 * @param manifestPath the path to the file that keeps the statistics between runs.
+	 * @throws IOException if there is a problem reading any file or the manifest.
+	 */
+	public void computeFolderStatisticsIncrementally(String folderPath, boolean allowNumbers, String extensions[], 
+			String manifestPath) throws IOException {
+		requireExactStatistics();
+		StatisticsManifest manifest = StatisticsManifest.load(manifestPath, allowNumbers, extensions);
+		List<String> files = listFiles(folderPath, extensions);
+		Set<String> current = new HashSet<>(files);
+		HtmlTokeniser tokeniser = new HtmlTokeniser(allowNumbers, true);
+		
+		amountOfRescannedFiles = 0;
+		
+		for (String path : manifest.getPaths())
+			if (!current.contains(path))
+				manifest.remove(path);
+		
+		for (String path : files) {
+			File file = new File(path);
+			long size = file.length();
+			long lastModified = file.lastModified();
+			
+			StatisticsManifest.FileEntry previous = manifest.get(path);
+			if (previous != null && previous.size == size && previous.lastModified == lastModified)
+				continue;
+			
+			byte[] contents = Files.readAllBytes(file.toPath());
+			byte[] hash = StatisticsManifest.hash(contents);
+			
+			if (previous != null && StatisticsManifest.sameContents(previous, hash)) {
+				manifest.touch(path, size, lastModified);
+				continue;
+			}
+			
+			TermCounter counter = new TermCounter();
+			tokeniser.tokenise(ByteBuffer.wrap(contents), counter::increment);
+			
+			manifest.add(path, new StatisticsManifest.FileEntry(size, lastModified, hash, counter));
+			amountOfRescannedFiles++;
+		}
+		
+		manifest.save(manifestPath);
+		
+		for (Entry<String, Integer> entry : manifest.getTable().entrySet())
+			table.merge(entry.getKey(), entry.getValue(), Integer::sum);
+		
+		amountOfFiles = files.size();
+	}
+	
+	/**
+	 * Does the same as <code>computeFolderStatistics()</code>, but reads the documents from any corpus
+	 * source, such as a zip archive, which is then read in a single sequential pass.
+	 *  
+	 * @param corpus the documents to be scanned.
+	 * @param allowNumbers if <code>false</code>, then number will not be considered on the
+	 * parsing statistics.
+	 * @param extensions the supported extensions, for example <code>{html, txt}</code>.
+	 * @throws IOException if there is a problem reading any document.
+	 */
+	public void computeCorpusStatistics(CorpusSource corpus, boolean allowNumbers, String extensions[]) throws IOException {
+		HtmlTokeniser tokeniser = tokeniser(allowNumbers);
+		TermCounter counter = new TermCounter();
+		HtmlTokeniser.TokenHandler handler = (approximation != null) ? approximation : counter::increment;
 		amountOfFiles = 0;
 		
-		for (File file : folder.listFiles()) {
+		corpus.forEach(document -> {
+			if (!document.hasExtension(extensions)) return;
+			
+			tokeniser.tokenise(document.openReader(), handler);
+			amountOfFiles++;
+		});
+		
+		counter.addTo(table);
+	}
+	
+	private void requireExactStatistics() {
+		if (approximation != null)
+			throw new IllegalStateException("This method doesn't support approximate statistics.");
+	}
+	
+	/*
+	 * Lists the files within the folder that have their extension on extensions, in the same order
+	 * they are returned by the file system.
+	 */
+	private static List<String> listFiles(String folderPath, String extensions[]) {
+		List<String> files = new ArrayList<>();
+		
+		for (File file : new File(folderPath).listFiles()) {
 			if (file.isFile()) {				
 				String completePath = file.getAbsolutePath();
 				
@@ -48,13 +239,13 @@ public class FileReader {
 					String fileExtension = completePath.substring(nameEnd + 1);
 					
 					for (String ex : extensions)
-						if (ex.equals(fileExtension)) {
-							computeFileStatistics(completePath, allowNumbers);
-							amountOfFiles++;
-						}
+						if (ex.equals(fileExtension))
+							files.add(completePath);
 				}
 			}
 		}
+		
+		return files;
 	}
 	
 	/**
@@ -68,36 +259,29 @@ public class FileReader {
 	 * @throws IOException if there is any problem while reading the file.
 	 */
 	public void computeFileStatistics(String fileName, boolean allowNumbers) throws IOException {
-		String regex = (allowNumbers) ? "[[^\\w ][_]]" : "[[^\\w ][\\d_]]";
+		if (approximation != null) {
+			tokeniser(allowNumbers).tokenise(Paths.get(fileName), approximation);
+			return;
+		}
 		
-		for (String line : Files.readAllLines(Paths.get(fileName))) {
-			//get rid of tabs
-			line = line.replaceAll("\t", " ");
-			
-			//get rid of more than 1 whitespace and HTML tags
-			line = line.trim().replaceAll("\\s{2,}", " ").replaceAll("<.*>", "");
-			
-			if (line.length() == 0) continue;
-			
-			//removing all non-alphabetic characters and multiple spaces
-			line = line.replaceAll(regex, "");
+		TermCounter counter = new TermCounter();
+		tokeniser(allowNumbers).tokenise(Paths.get(fileName), counter::increment);
+		
+		counter.addTo(table);
+	}
+	
+	private HtmlTokeniser tokeniser(boolean allowNumbers) {
+		if (allowNumbers) {
+			if (wordsAndNumbersTokeniser == null)
+				wordsAndNumbersTokeniser = new HtmlTokeniser(true, true);
 			
-			for (String word : line.split(" ")) {
-				if (word.length() == 0) continue;
-				
-				//normalising data
-				word = word.toLowerCase();
-				
-				if (table.containsKey(word)) {
-					int previousAmount = table.get(word);
-					
-					table.remove(word);
-					table.put(word, previousAmount + 1);
-				}
-				else
-					table.put(word, 1);
-			}
+			return wordsAndNumbersTokeniser;
 		}
+		
+		if (wordsTokeniser == null)
+			wordsTokeniser = new HtmlTokeniser(false, true);
+		
+		return wordsTokeniser;
 	}
 	
 	/**
@@ -105,6 +289,9 @@ public class FileReader {
 	 * found on the last parsing.
 	 */
 	public int getVocabularySize() {
+		if (approximation != null)
+			return (int) approximation.getVocabularySize();
+		
 		return table.size();
 	}
 	
@@ -113,6 +300,9 @@ public class FileReader {
 	 * found on the last parsing.
 	 */
 	public int getNumberOfElements() {
+		if (approximation != null)
+			return (int) approximation.getAmountOfTerms();
+		
 		int amount = 0;
 		
 		for (Entry<String, Integer> entry : table.entrySet())
@@ -122,9 +312,13 @@ public class FileReader {
 	}
 	
 	/**
-	 * @return Returns a dictionary holding all the found words and how many times it occurs.
+	 * @return Returns a dictionary holding all the found words and how many times it occurs. With
+	 * approximate statistics, only the most frequent words and their estimated counts are returned.
 	 */
 	public Map<String, Integer> getTable() {
+		if (approximation != null)
+			return approximation.getTopTerms();
+		
 		return this.table;
 	}
 	
@@ -135,4 +329,64 @@ public class FileReader {
 	public int getAmountOfFiles() {
 		return amountOfFiles;
 	}
+	
+	/**
+	 * Call this function only iff <code>computeFolderStatisticsIncrementally</code> was called previously.
+	 * @return Returns the amount of files that were new or changed, thus tokenised, on the last parsing.
+	 */
+	public int getAmountOfRescannedFiles() {
+		return amountOfRescannedFiles;
+	}
+	
+	/*
+	 * Splits a slice of the file list in halves until it is small enough to be counted by a single worker.
+	 */
+	private static class StatisticsTask extends RecursiveTask<TermCounter> {
+		private static final long serialVersionUID = 1L;
+		
+		private final List<String> files;
+		private final int from, to;
+		private final boolean allowNumbers;
+		
+		StatisticsTask(List<String> files, int from, int to, boolean allowNumbers) {
+			this.files = files;
+			this.from = from;
+			this.to = to;
+			this.allowNumbers = allowNumbers;
+		}
+		
+		@Override
+		protected TermCounter compute() {
+			if (to - from <= FILES_PER_TASK) {
+				TermCounter counter = new TermCounter();
+				HtmlTokeniser tokeniser = new HtmlTokeniser(allowNumbers, true);
+				
+				try {
+					for (int i = from; i < to; i++)
+						tokeniser.tokenise(Paths.get(files.get(i)), counter::increment);
+				}
+				catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				
+				return counter;
+			}
+			
+			int middle = (from + to) >>> 1;
+			StatisticsTask left = new StatisticsTask(files, from, middle, allowNumbers);
+			left.fork();
+			
+			TermCounter right = new StatisticsTask(files, middle, to, allowNumbers).compute();
+			TermCounter joined = left.join();
+			
+			// the biggest table absorbs the smallest
+			if (joined.size() < right.size()) {
+				right.merge(joined);
+				return right;
+			}
+			
+			joined.merge(right);
+			return joined;
+		}
+	}
 }
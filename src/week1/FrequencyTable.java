@@ -1,50 +1,281 @@
 package week1;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
 
+/**
+ * Writes the words of a table ordered by frequency, in the format
+ * <code>word occurrences relative_frequency</code>, one word per line.
+ *
+ * Besides the in-memory table, two bounded-memory alternatives are provided: <code>writeTopK()</code>
+ * keeps just the most frequent words on a heap, while <code>writeSorted()</code> sorts the whole
+ * table spilling sorted runs to disk. Words with the same frequency are always written in the order
+ * they are found on the table, so the three ways yield exactly the same lines.
+ */
 public class FrequencyTable {
 	ArrayList<Element> elements;
 	int totalAmount;
 	
+	/* Most frequent first, ties broken by the position on the original table */
+	private static final Comparator<Element> RANKING = (a, b) -> (a.occurences != b.occurences) ?
+			Integer.compare(b.occurences, a.occurences) : Integer.compare(a.position, b.position);
+	
 	public FrequencyTable(Map<String, Integer> table) {
 		elements = new ArrayList<Element>();
 		
 		for (Entry<String, Integer> entry : table.entrySet()) {
-			elements.add(new Element(entry.getKey(), entry.getValue()));
+			elements.add(new Element(entry.getKey(), entry.getValue(), elements.size()));
 			totalAmount += entry.getValue();
 		}
 		
 		Collections.sort(elements);
 	}
 	
+	/**
+	 * Creates a table whose relative frequencies are computed over <code>totalAmount</code> instead of
+	 * the sum of the table, which is the case when the table holds only the most frequent words.
+	 * @param table The words and their amount of occurrences.
+	 * @param totalAmount The amount of words of the corpus.
+	 */
+	public FrequencyTable(Map<String, Integer> table, int totalAmount) {
+		this(table);
+		this.totalAmount = totalAmount;
+	}
+	
 	public void writeToFile(String fileName) throws FileNotFoundException {
 		PrintWriter output = new PrintWriter(new File(fileName));
 		
 		for (Element e : elements)
-			output.write(e.entry + " " + e.occurences + " " + ((float)e.occurences) / totalAmount + "\n");
+			writeLine(output, e.entry, e.occurences, totalAmount);
 		
 		output.flush();
 		output.close();
 	}
 	
-	class Element implements Comparable<Element>{
+	/**
+	 * Writes only the <code>k</code> most frequent words of <code>table</code>. Just these words are
+	 * kept in memory, on a min-heap, instead of a sorted copy of the whole table.
+	 * @param table The words and their amount of occurrences.
+	 * @param k How many words to write.
+	 * @param fileName The path to the output file.
+	 * @throws IOException If there's a fault while writing the file.
+	 */
+	public static void writeTopK(Map<String, Integer> table, int k, String fileName) throws IOException {
+		// the least frequent word is on the top, to be replaced
+		PriorityQueue<Element> heap = new PriorityQueue<>(Math.max(1, Math.min(k, table.size())), RANKING.reversed());
+		int totalAmount = 0;
+		int position = 0;
+		
+		for (Entry<String, Integer> entry : table.entrySet()) {
+			int occurences = entry.getValue();
+			totalAmount += occurences;
+			
+			if (heap.size() < k)
+				heap.add(new Element(entry.getKey(), occurences, position));
+			else if (k > 0 && heap.peek().occurences < occurences) {
+				heap.poll();
+				heap.add(new Element(entry.getKey(), occurences, position));
+			}
+			
+			position++;
+		}
+		
+		Element[] top = heap.toArray(new Element[heap.size()]);
+		Arrays.sort(top, RANKING);
+		
+		PrintWriter output = new PrintWriter(new File(fileName));
+		
+		for (Element e : top)
+			writeLine(output, e.entry, e.occurences, totalAmount);
+		
+		close(output, fileName);
+	}
+	
+	/**
+	 * Writes all the words of <code>table</code> using an external merge sort: the table is read in
+	 * runs of <code>runSize</code> words, each run is sorted and spilled to a temporary file and then
+	 * all the runs are merged straight into the output file.
+	 * @param table The words and their amount of occurrences.
+	 * @param runSize The maximum amount of words sorted in memory at once.
+	 * @param fileName The path to the output file.
+	 * @throws IOException If there's a fault while writing either the runs or the output file.
+	 */
+	public static void writeSorted(Map<String, Integer> table, int runSize, String fileName) throws IOException {
+		List<Path> runs = new ArrayList<>();
+		Element[] run = new Element[Math.max(1, Math.min(runSize, table.size()))];
+		int filled = 0;
+		int totalAmount = 0;
+		int position = 0;
+		
+		try {
+			for (Entry<String, Integer> entry : table.entrySet()) {
+				run[filled++] = new Element(entry.getKey(), entry.getValue(), position++);
+				totalAmount += entry.getValue();
+				
+				if (filled == run.length) {
+					runs.add(spill(run, filled));
+					filled = 0;
+				}
+			}
+			
+			if (filled > 0)
+				runs.add(spill(run, filled));
+			
+			run = null;
+			merge(runs, totalAmount, fileName);
+		}
+		finally {
+			for (Path path : runs)
+				Files.deleteIfExists(path);
+		}
+	}
+	
+	/*
+	 * Sorts run[0, filled) and writes it on a temporary file
+	 */
+	private static Path spill(Element[] run, int filled) throws IOException {
+		Arrays.sort(run, 0, filled, RANKING);
+		Path path = Files.createTempFile("frequency", ".run");
+		
+		try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+			for (int i = 0; i < filled; i++) {
+				output.writeUTF(run[i].entry);
+				output.writeInt(run[i].occurences);
+				output.writeInt(run[i].position);
+			}
+		}
+		
+		return path;
+	}
+	
+	/*
+	 * K-way merge of the sorted runs into the output file
+	 */
+	private static void merge(List<Path> runs, int totalAmount, String fileName) throws IOException {
+		PriorityQueue<RunReader> heads = new PriorityQueue<>(Math.max(1, runs.size()),
+				(a, b) -> RANKING.compare(a.current, b.current));
+		
+		// the reader out of the queue, which the finally block must close as well
+		RunReader reader = null;
+		
+		try (PrintWriter output = new PrintWriter(new File(fileName))) {
+			for (Path path : runs) {
+				reader = new RunReader(path);
+				
+				if (reader.next())
+					heads.add(reader);
+				else
+					reader.close();
+				
+				reader = null;
+			}
+			
+			while (!heads.isEmpty()) {
+				reader = heads.poll();
+				writeLine(output, reader.current.entry, reader.current.occurences, totalAmount);
+				
+				if (reader.next())
+					heads.add(reader);
+				else
+					reader.close();
+				
+				reader = null;
+			}
+			
+			close(output, fileName);
+		}
+		finally {
+			if (reader != null)
+				reader.close();
+			
+			for (RunReader head : heads)
+				head.close();
+		}
+	}
+	
+	/*
+	 * Writes "entry occurences frequency\n" without building an intermediate String
+	 */
+	private static void writeLine(PrintWriter output, String entry, int occurences, int totalAmount) {
+		output.write(entry);
+		output.write(' ');
+		output.print(occurences);
+		output.write(' ');
+		output.print(((float)occurences) / totalAmount);
+		output.write('\n');
+	}
+	
+	/*
+	 * PrintWriter swallows write errors, so they are checked once the file is complete
+	 */
+	private static void close(PrintWriter output, String fileName) throws IOException {
+		output.flush();
+		
+		boolean failed = output.checkError();
+		output.close();
+		
+		if (failed)
+			throw new IOException("Error while writing " + fileName);
+	}
+	
+	static class Element implements Comparable<Element>{
 		String entry;
 		int occurences;
+		int position;
 		
-		public Element(String entry, int occurences) {
+		public Element(String entry, int occurences, int position) {
 			this.entry = entry;
 			this.occurences = occurences;
+			this.position = position;
 		}
-
+		
 		@Override
 		public int compareTo(Element other) {
 			return other.occurences - this.occurences;
 		}
 	}
+	
+	/*
+	 * Reads back the elements of a sorted run, one at a time
+	 */
+	private static class RunReader {
+		private final DataInputStream input;
+		Element current;
+		
+		RunReader(Path path) throws IOException {
+			input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+		}
+		
+		boolean next() throws IOException {
+			try {
+				current = new Element(input.readUTF(), input.readInt(), input.readInt());
+				return true;
+			}
+			catch (EOFException e) {
+				current = null;
+				return false;
+			}
+		}
+		
+		void close() throws IOException {
+			input.close();
+		}
+	}
 }
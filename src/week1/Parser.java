@@ -1,21 +1,28 @@
 package week1;
+import java.io.File;
 import java.io.IOException;
 
+import parsing.CorpusSource;
+
 public class Parser {
 	private static final String folderPath = "corpus";
 	
+	/* Used when the corpus wasn't extracted */
+	private static final String archivePath = "corpus.zip";
+	
 	public static void main(String args[]) {
 		FileReader fr = new FileReader();
 		FrequencyTable ft;
 		
 		try {
-			fr.computeFolderStatistics(folderPath, false, new String[]{"html"});
+			String corpusPath = (new File(folderPath).isDirectory()) ? folderPath : archivePath;
+			fr.computeCorpusStatistics(CorpusSource.open(corpusPath), false, new String[]{"html"});
 
 			System.out.println("Vocabulary size: " + fr.getVocabularySize());
-			System.out.println("Total amount of elements: " + fr.getVocabularySize());
+			System.out.println("Total amount of elements: " + fr.getNumberOfElements());
 			System.out.println("In " + fr.getAmountOfFiles() + " files.");
 			
-			ft = new FrequencyTable(fr.getTable());
+			ft = new FrequencyTable(fr.getTable(), fr.getNumberOfElements());
 			ft.writeToFile("stats.txt");
 			
 //			for (Entry<String, Integer> entry : fr.getTable().entrySet()) 
@@ -0,0 +1,263 @@
+package week1;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import dataStructures.TermCounter;
+
+/**
+ * The state saved between two incremental runs of <code>FileReader</code>: the term table of the
+ * whole folder and, for each scanned file, its size, modification time, content hash and its own
+ * term counts. With the per-file counts, a changed or removed file can be subtracted from the table
+ * without scanning the other files again.
+ *
+ * The manifest is only valid for the same tokenisation options it was created with, otherwise
+ * <code>load()</code> returns an empty manifest.
+ *
+ * @author Luiz Felix
+ */
+class StatisticsManifest {
+	private static final int MAGIC = 0x494E4253;
+	private static final int VERSION = 1;
+	private static final String HASH_ALGORITHM = "SHA-1";
+	
+	/* Describes a scanned file and how many times each term occurs on it */
+	static class FileEntry {
+		final long size;
+		final long lastModified;
+		final byte[] hash;
+		final String[] terms;
+		final int[] counts;
+		
+		FileEntry(long size, long lastModified, byte[] hash, String[] terms, int[] counts) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+			this.terms = terms;
+			this.counts = counts;
+		}
+		
+		FileEntry(long size, long lastModified, byte[] hash, TermCounter counter) {
+			this(size, lastModified, hash, new String[counter.size()], new int[counter.size()]);
+			
+			int[] position = {0};
+			counter.forEach((term, count) -> {
+				terms[position[0]] = term;
+				counts[position[0]++] = count;
+			});
+		}
+		
+		/*
+		 * Same contents, but touched by someone
+		 */
+		FileEntry withTimestamp(long size, long lastModified) {
+			return new FileEntry(size, lastModified, hash, terms, counts);
+		}
+	}
+	
+	private final String options;
+	private Map<String, Integer> table = new HashMap<>();
+	private Map<String, FileEntry> files = new LinkedHashMap<>();
+	
+	/**
+	 * Creates an empty manifest.
+	 * @param allowNumbers The tokenisation option used to scan the files.
+	 * @param extensions The extensions of the scanned files.
+	 */
+	StatisticsManifest(boolean allowNumbers, String extensions[]) {
+		this.options = allowNumbers + ":" + String.join(",", extensions);
+	}
+	
+	/**
+	 * Reads a manifest from disk.
+	 * @param manifestPath Where the manifest was saved.
+	 * @param allowNumbers The tokenisation option to be used on this run.
+	 * @param extensions The extensions to be scanned on this run.
+	 * @return The saved manifest, or an empty one if it doesn't exist or was created with other options.
+	 * @throws IOException if the manifest exists, but can't be read.
+	 */
+	static StatisticsManifest load(String manifestPath, boolean allowNumbers, String extensions[]) throws IOException {
+		StatisticsManifest manifest = new StatisticsManifest(allowNumbers, extensions);
+		File file = new File(manifestPath);
+		
+		if (!file.isFile())
+			return manifest;
+		
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+			if (input.readInt() != MAGIC || input.readInt() != VERSION)
+				throw new IOException(manifestPath + " is not a statistics manifest.");
+			
+			// a different tokenisation invalidates all the counts
+			if (!input.readUTF().equals(manifest.options))
+				return manifest;
+			
+			int amountOfTerms = input.readInt();
+			manifest.table = new HashMap<>(amountOfTerms * 2);
+			
+			for (int i = 0; i < amountOfTerms; i++)
+				manifest.table.put(input.readUTF(), input.readInt());
+			
+			int amountOfFiles = input.readInt();
+			
+			for (int i = 0; i < amountOfFiles; i++) {
+				String path = input.readUTF();
+				long size = input.readLong();
+				long lastModified = input.readLong();
+				
+				byte[] hash = new byte[input.readInt()];
+				input.readFully(hash);
+				
+				String[] terms = new String[input.readInt()];
+				int[] counts = new int[terms.length];
+				
+				for (int j = 0; j < terms.length; j++) {
+					terms[j] = input.readUTF();
+					counts[j] = input.readInt();
+				}
+				
+				manifest.files.put(path, new FileEntry(size, lastModified, hash, terms, counts));
+			}
+		}
+		
+		return manifest;
+	}
+	
+	/**
+	 * Writes the manifest to a temporary file, which then replaces <code>manifestPath</code>, so an
+	 * interrupted run never leaves a corrupted manifest behind.
+	 * @param manifestPath Where to save the manifest.
+	 * @throws IOException if there's a fault while writing the manifest.
+	 */
+	void save(String manifestPath) throws IOException {
+		Path destination = new File(manifestPath).getAbsoluteFile().toPath();
+		Path temporary = destination.resolveSibling(destination.getFileName() + ".tmp");
+		
+		try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeUTF(options);
+			
+			output.writeInt(table.size());
+			for (Entry<String, Integer> entry : table.entrySet()) {
+				output.writeUTF(entry.getKey());
+				output.writeInt(entry.getValue());
+			}
+			
+			output.writeInt(files.size());
+			for (Entry<String, FileEntry> file : files.entrySet()) {
+				FileEntry entry = file.getValue();
+				
+				output.writeUTF(file.getKey());
+				output.writeLong(entry.size);
+				output.writeLong(entry.lastModified);
+				output.writeInt(entry.hash.length);
+				output.write(entry.hash);
+				
+				output.writeInt(entry.terms.length);
+				for (int i = 0; i < entry.terms.length; i++) {
+					output.writeUTF(entry.terms[i]);
+					output.writeInt(entry.counts[i]);
+				}
+			}
+		}
+		
+		Files.move(temporary, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * @param path The absolute path of a file.
+	 * @return What was recorded about the file, or <code>null</code> if it wasn't scanned before.
+	 */
+	FileEntry get(String path) {
+		return files.get(path);
+	}
+	
+	/**
+	 * @return The path of every recorded file.
+	 */
+	String[] getPaths() {
+		return files.keySet().toArray(new String[files.size()]);
+	}
+	
+	/**
+	 * Records a file and adds its counts to the table.
+	 * @param path The absolute path of the file.
+	 * @param entry What was found on the file.
+	 */
+	void add(String path, FileEntry entry) {
+		remove(path);
+		files.put(path, entry);
+		
+		for (int i = 0; i < entry.terms.length; i++)
+			table.merge(entry.terms[i], entry.counts[i], Integer::sum);
+	}
+	
+	/**
+	 * Updates the size and modification time of a file whose contents didn't change.
+	 * @param path The absolute path of the file.
+	 * @param size The current size.
+	 * @param lastModified The current modification time.
+	 */
+	void touch(String path, long size, long lastModified) {
+		files.put(path, files.get(path).withTimestamp(size, lastModified));
+	}
+	
+	/**
+	 * Forgets a file and subtracts its counts from the table. Terms that are left with no occurrences
+	 * are removed from the table.
+	 * @param path The absolute path of the file.
+	 */
+	void remove(String path) {
+		FileEntry entry = files.remove(path);
+		if (entry == null) return;
+		
+		for (int i = 0; i < entry.terms.length; i++) {
+			int removed = entry.counts[i];
+			table.computeIfPresent(entry.terms[i], (term, count) -> (count == removed) ? null : count - removed);
+		}
+	}
+	
+	/**
+	 * @return The term table of all the recorded files.
+	 */
+	Map<String, Integer> getTable() {
+		return table;
+	}
+	
+	/**
+	 * @param contents The bytes of a file.
+	 * @return The hash used to tell if the contents of a file changed.
+	 */
+	static byte[] hash(byte[] contents) {
+		try {
+			return MessageDigest.getInstance(HASH_ALGORITHM).digest(contents);
+		}
+		catch (NoSuchAlgorithmException e) {
+			// every JVM is required to implement SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * @param entry A recorded file.
+	 * @param hash The hash of the current contents of the file.
+	 * @return <code>true</code> if the file still has the recorded contents.
+	 */
+	static boolean sameContents(FileEntry entry, byte[] hash) {
+		return Arrays.equals(entry.hash, hash);
+	}
+}
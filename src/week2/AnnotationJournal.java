@@ -0,0 +1,105 @@
+package week2;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import parsing.CorpusDocument;
+
+/**
+ * Records which documents were already annotated on an output folder, so an interrupted annotation
+ * can be resumed instead of started over. Each completed document is appended to a hidden journal
+ * file on the output folder, with the size and modification time of its source, and the journal is
+ * synced to disk before the next document is annotated. A document is skipped on a later run only if
+ * its annotated file exists and its source didn't change since it was recorded.
+ * 
+ * @author Luiz Felix
+ */
+class AnnotationJournal implements AutoCloseable {
+	/* Hidden, so it's not read as a document of the annotated corpus */
+	static final String JOURNAL_NAME = ".annotation-journal";
+	
+	private final String outputFolder;
+	/* Read by the reader of a pipeline while its writer records new documents */
+	private final Map<String, String> completed = new ConcurrentHashMap<>();
+	private final FileOutputStream stream;
+	private final Writer journal;
+	
+	/**
+	 * Opens the journal of <code>outputFolder</code>, creating both if they don't exist.
+	 * @param outputFolder The folder holding the annotated files.
+	 * @throws IOException If the journal can't be read or opened for writing.
+	 */
+	AnnotationJournal(String outputFolder) throws IOException {
+		this.outputFolder = outputFolder;
+		new File(outputFolder).mkdirs();
+		
+		Path path = Paths.get(outputFolder, JOURNAL_NAME);
+		
+		if (Files.exists(path)) {
+			try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+				String line;
+				
+				while ((line = reader.readLine()) != null) {
+					int separator = line.indexOf('\t');
+					
+					// the last line may be incomplete if the previous run was killed while writing it
+					if (separator <= 0 || line.indexOf('\t', separator + 1) < 0) continue;
+					
+					completed.put(line.substring(0, separator), line.substring(separator + 1));
+				}
+			}
+		}
+		
+		stream = new FileOutputStream(path.toFile(), true);
+		journal = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * @param document A document of the corpus being annotated.
+	 * @return <code>true</code> if the document was annotated by a previous run and didn't change since.
+	 */
+	boolean isCompleted(CorpusDocument document) {
+		return version(document).equals(completed.get(document.getName())) &&
+				Files.exists(Paths.get(outputFolder, document.getName()));
+	}
+	
+	/**
+	 * Records that a document was annotated. Must be called only after its annotated file is on its final place.
+	 * @param name The name of the document.
+	 * @param version The value returned by <code>version()</code> when the document was read.
+	 * @throws IOException If the journal can't be written.
+	 */
+	void markCompleted(String name, String version) throws IOException {
+		journal.write(name);
+		journal.write('\t');
+		journal.write(version);
+		journal.write('\n');
+		journal.flush();
+		stream.getFD().sync();
+		
+		completed.put(name, version);
+	}
+	
+	/**
+	 * @param document A document of the corpus.
+	 * @return What identifies the current contents of the document: its size and modification time.
+	 */
+	static String version(CorpusDocument document) {
+		return document.getSize() + "\t" + document.getLastModified();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		journal.close();
+	}
+}
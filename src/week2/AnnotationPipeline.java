@@ -0,0 +1,316 @@
+package week2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.stanford.nlp.ie.AbstractSequenceClassifier;
+import edu.stanford.nlp.ling.CoreLabel;
+import parsing.CorpusSource;
+
+/**
+ * Does the same as <code>Tokeniser.applyNEDClassifier()</code>, but classifies several documents at
+ * the same time. The work is split in three stages, joined by bounded queues:
+ * 1. The calling thread reads and purges the documents, in corpus order;
+ * 2. <code>workers</code> threads apply the NER classifier;
+ * 3. A writer thread writes the annotated documents back in corpus order.
+ * Each queue holds at most <code>queueDepth</code> documents, so a slow stage holds the previous ones
+ * back instead of filling up the heap. The annotated files are byte-identical to the sequential ones.
+ *
+ * By default each worker loads its own classifier, which costs memory, but doesn't rely on the
+ * classifier being thread safe. <code>setShareClassifier(true)</code> makes all the workers use
+ * the same instance.
+ *
+ * With <code>setResume(true)</code>, the annotated documents are recorded on a journal by the writer, as
+ * <code>Tokeniser.applyNEDClassifier(CorpusSource, String, boolean, boolean)</code> does, and the ones
+ * recorded by a previous run are skipped by the reader.
+ *
+ * @author Luiz Felix
+ */
+public class AnnotationPipeline {
+	/* Marks the end of the documents on a queue */
+	private static final Job END = new Job(-1, null, null, null);
+	
+	/* How long a blocked stage waits before checking whether another one failed */
+	private static final long POLLING_MILLISECONDS = 100;
+	
+	private int workers = Runtime.getRuntime().availableProcessors();
+	private int queueDepth = 16;
+	private boolean shareClassifier = false;
+	private boolean resume = false;
+	
+	/* A document going through the pipeline */
+	private static class Job {
+		final int sequence;
+		final String name;
+		final String version;
+		String text;
+		
+		Job(int sequence, String name, String version, String text) {
+			this.sequence = sequence;
+			this.name = name;
+			this.version = version;
+			this.text = text;
+		}
+	}
+	
+	/**
+	 * Annotates all the documents of <code>corpus</code>, writing them on <code>outputFolder</code>,
+	 * which is created if it doesn't exist.
+	 * @param corpus The documents to be annotated.
+	 * @param outputFolder The path, including the folder name, to the directory that will hold the annotated files.
+	 * @param allowNumbers If <code>true</code> numbers won't be removed from the files.
+	 * @throws IOException If there is an IO fault or if the pipeline is interrupted.
+	 * @throws ClassCastException NER thrown exception.
+	 * @throws ClassNotFoundException NER thrown exception.
+	 */
+	public void run(CorpusSource corpus, String outputFolder, boolean allowNumbers)
+			throws IOException, ClassCastException, ClassNotFoundException {
+		new File(outputFolder).mkdirs();
+		
+		try (AnnotationJournal journal = (resume) ? new AnnotationJournal(outputFolder) : null) {
+			run(corpus, outputFolder, allowNumbers, journal);
+		}
+	}
+	
+	private void run(CorpusSource corpus, String outputFolder, boolean allowNumbers, AnnotationJournal journal)
+			throws IOException, ClassCastException, ClassNotFoundException {
+		AbstractSequenceClassifier<CoreLabel> sharedClassifier = (shareClassifier) ? Tokeniser.loadClassifier() : null;
+		
+		BlockingQueue<Job> toClassify = new ArrayBlockingQueue<>(queueDepth);
+		BlockingQueue<Job> toWrite = new ArrayBlockingQueue<>(queueDepth);
+		
+		// bounds the documents waiting to be written in order, not only the ones on the queues
+		Semaphore inFlight = new Semaphore(2 * queueDepth + workers);
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		
+		ExecutorService threads = Executors.newFixedThreadPool(workers + 1);
+		List<Future<Void>> stages = new ArrayList<>();
+		
+		try {
+			for (int i = 0; i < workers; i++)
+				stages.add(threads.submit(guard(failure, () -> {
+					AbstractSequenceClassifier<CoreLabel> classifier =
+							(sharedClassifier != null) ? sharedClassifier : Tokeniser.loadClassifier();
+					
+					for (Job job = toClassify.take(); job != END; job = toClassify.take()) {
+						job.text = Tokeniser.annotate(classifier, job.text);
+						put(toWrite, job, failure);
+					}
+					
+					put(toWrite, END, failure);
+					return null;
+				})));
+			
+			stages.add(threads.submit(guard(failure, () -> {
+				Map<Integer, Job> pending = new HashMap<>();
+				int next = 0;
+				int finishedWorkers = 0;
+				
+				while (finishedWorkers < workers) {
+					Job job = toWrite.take();
+					
+					if (job == END) {
+						finishedWorkers++;
+						continue;
+					}
+					
+					pending.put(job.sequence, job);
+					
+					// writing every document that is no longer waiting for a previous one
+					while ((job = pending.remove(next)) != null) {
+						Tokeniser.writeAnnotatedFile(outputFolder, job.name, job.text);
+						
+						if (journal != null)
+							journal.markCompleted(job.name, job.version);
+						
+						inFlight.release();
+						next++;
+					}
+				}
+				
+				return null;
+			})));
+			
+			int[] sequence = {0};
+			
+			corpus.forEach(document -> {
+				if (journal != null && journal.isCompleted(document))
+					return;
+				
+				String version = AnnotationJournal.version(document);
+				String purgedFile = "";
+				
+				try {
+					purgedFile = Tokeniser.purge(document.openReader(), allowNumbers);
+				}
+				catch (IOException e) {
+					System.err.println("Error while parsing file " + document.getName());
+				}
+				
+				acquire(inFlight, failure);
+				put(toClassify, new Job(sequence[0]++, document.getName(), version, purgedFile), failure);
+			});
+			
+			for (int i = 0; i < workers; i++)
+				put(toClassify, END, failure);
+			
+			for (Future<Void> stage : stages)
+				await(stage, failure);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("The annotation was interrupted.");
+		}
+		catch (ExecutionException e) {
+			rethrow(e.getCause());
+		}
+		catch (IOException e) {
+			// the reader stops as soon as a worker or the writer fails, and the failure itself is thrown instead
+			if (failure.get() != null)
+				rethrow(failure.get());
+			
+			throw e;
+		}
+		finally {
+			threads.shutdownNow();
+		}
+	}
+	
+	/*
+	 * Records the first failure of any stage, so the others stop waiting for it
+	 */
+	private static Callable<Void> guard(AtomicReference<Throwable> failure, Callable<Void> stage) {
+		return () -> {
+			try {
+				return stage.call();
+			}
+			catch (Throwable t) {
+				failure.compareAndSet(null, t);
+				throw t;
+			}
+		};
+	}
+	
+	private static void acquire(Semaphore semaphore, AtomicReference<Throwable> failure) throws IOException {
+		try {
+			while (!semaphore.tryAcquire(POLLING_MILLISECONDS, TimeUnit.MILLISECONDS))
+				checkFailure(failure);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("The annotation was interrupted.");
+		}
+	}
+	
+	private static void put(BlockingQueue<Job> queue, Job job, AtomicReference<Throwable> failure) throws IOException {
+		try {
+			while (!queue.offer(job, POLLING_MILLISECONDS, TimeUnit.MILLISECONDS))
+				checkFailure(failure);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("The annotation was interrupted.");
+		}
+	}
+	
+	/*
+	 * Waits for a stage to finish, unless another one failed, as this one may be blocked on it for good
+	 */
+	private static void await(Future<Void> stage, AtomicReference<Throwable> failure)
+			throws IOException, ClassNotFoundException, InterruptedException, ExecutionException {
+		while (true) {
+			try {
+				stage.get(POLLING_MILLISECONDS, TimeUnit.MILLISECONDS);
+				return;
+			}
+			catch (TimeoutException e) {
+				if (failure.get() != null)
+					rethrow(failure.get());
+			}
+		}
+	}
+	
+	private static void checkFailure(AtomicReference<Throwable> failure) throws IOException {
+		if (failure.get() != null)
+			throw new IOException("A stage of the annotation pipeline failed.", failure.get());
+	}
+	
+	private static void rethrow(Throwable cause) throws IOException, ClassNotFoundException {
+		if (cause instanceof IOException) throw (IOException) cause;
+		if (cause instanceof ClassNotFoundException) throw (ClassNotFoundException) cause;
+		if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+		if (cause instanceof Error) throw (Error) cause;
+		
+		throw new IOException(cause);
+	}
+	
+	/**
+	 * @return The amount of threads applying the classifier.
+	 */
+	public int getWorkers() { return this.workers; }
+	
+	/**
+	 * @param workers The amount of threads applying the classifier. The default is one per
+	 * available processor. If this value is lesser than 1, this method has no effect.
+	 */
+	public void setWorkers(int workers) {
+		if (workers > 0)
+			this.workers = workers;
+	}
+	
+	/**
+	 * @return The maximum amount of documents on each queue of the pipeline.
+	 */
+	public int getQueueDepth() { return this.queueDepth; }
+	
+	/**
+	 * @param queueDepth The maximum amount of documents on each queue of the pipeline. The default
+	 * value is 16. If this value is lesser than 1, this method has no effect.
+	 */
+	public void setQueueDepth(int queueDepth) {
+		if (queueDepth > 0)
+			this.queueDepth = queueDepth;
+	}
+	
+	/**
+	 * @return <code>true</code> if all the workers use the same classifier instance.
+	 */
+	public boolean isShareClassifier() { return this.shareClassifier; }
+	
+	/**
+	 * @param shareClassifier If <code>true</code>, a single classifier is loaded and used by all
+	 * the workers, which saves memory, but relies on its classification being thread safe.
+	 */
+	public void setShareClassifier(boolean shareClassifier) {
+		this.shareClassifier = shareClassifier;
+	}
+	
+	/**
+	 * @return <code>true</code> if the documents annotated by a previous run are skipped.
+	 */
+	public boolean isResume() { return this.resume; }
+	
+	/**
+	 * @param resume If <code>true</code>, the annotated documents are recorded on a journal on the output
+	 * folder, and the ones already recorded, whose source didn't change since, are skipped.
+	 */
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+}
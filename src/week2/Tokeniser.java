@@ -2,16 +2,22 @@ package week2;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.List;
 
 import edu.stanford.nlp.ie.AbstractSequenceClassifier;
 import edu.stanford.nlp.ie.crf.CRFClassifier;
 import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.ling.CoreLabel;
+import parsing.CorpusSource;
+import parsing.HtmlTokeniser;
 
 public class Tokeniser {
 	/* Path to the NER classifier file */
@@ -26,32 +32,21 @@ public class Tokeniser {
 	 * @throws IOException if there's a fault while manipulating the file.
 	 */
 	public static String purgeFile(Path textFilePath, boolean allowNumbers) throws IOException {
-		String regex = (allowNumbers) ? "[[^\\w ][_]]" : "[[^\\w ][\\d_]]";
+		try (Reader reader = Files.newBufferedReader(textFilePath)) {
+			return purge(reader, allowNumbers);
+		}
+	}
+	
+	/*
+	 * Does the same as purgeFile, but reads the text from reader, which is not closed
+	 */
+	static String purge(Reader reader, boolean allowNumbers) throws IOException {
 		StringBuilder buffer = new StringBuilder();
 		
-		Files.readAllLines(textFilePath).forEach(line -> {
-			//get rid of tabs
-			line = line.replaceAll("\t", " ");
-			
-			//get rid of more than 1 whitespace and HTML tags
-			line = line.trim().replaceAll("\\s{2,}", " ").replaceAll("<.*>", "");
-			
-			if (line.length() > 0) {
-				//removing all non-alphabetic characters and multiple spaces
-				line = line.replaceAll(regex, "");
-				
-				String[] words = line.split(" ");
-				
-				for (int i = 0; i < words.length; i++) {
-					if (words[i].length() == 0) continue;
-				
-					//uncomment this to normalise all the words to lower case (NER may fail) 
-//					words[i] = words[i].toLowerCase();
-					buffer.append(words[i]);
-					
-					buffer.append("\n");	
-				}
-			}
+		// words aren't lower cased, otherwise NER may fail
+		new HtmlTokeniser(allowNumbers, false).tokenise(reader, (word, length) -> {
+			buffer.append(word, 0, length);
+			buffer.append('\n');
 		});
 		
 		return buffer.toString();
@@ -69,7 +64,7 @@ public class Tokeniser {
 	 * 
 	 * <pre>All the files on the source folder MUST be text files.</pre>
 	 * <post>If <code>outputFolder</code> doesn't exist, it is created during this function execution.</post> 
-	 * @param corpusPath The path to the corpus location.
+	 * @param corpusPath The path to the corpus location, either a folder or a zip archive.
 	 * @param outputFolder The path, including the folder name, to the directory that will hold the annotated files.
 	 * @param allowNumbers If <code>true</code> numbers won't be removed from the files.
 	 * @throws IOException If there is an IO fault.
@@ -78,59 +73,214 @@ public class Tokeniser {
 	 */
 	public static void applyNEDClassifier(String corpusPath, String outputFolder, boolean allowNumbers) 
 			throws IOException, ClassCastException, ClassNotFoundException {
+		applyNEDClassifier(CorpusSource.open(corpusPath), outputFolder, allowNumbers);
+	}
+	
+	/**
+	 * Does the same as <code>applyNEDClassifier(String, String, boolean)</code>, but the documents are
+	 * read from <code>corpus</code>, which may be a zip archive read in a single pass.
+	 * @param corpus The documents to be annotated.
+	 * @param outputFolder The path, including the folder name, to the directory that will hold the annotated files.
+	 * @param allowNumbers If <code>true</code> numbers won't be removed from the files.
+	 * @throws IOException If there is an IO fault.
+	 * @throws ClassCastException NER thrown exception.
+	 * @throws ClassNotFoundException NER thrown exception.
+	 */
+	public static void applyNEDClassifier(CorpusSource corpus, String outputFolder, boolean allowNumbers) 
+			throws IOException, ClassCastException, ClassNotFoundException {
+		applyNEDClassifier(corpus, outputFolder, allowNumbers, false);
+	}
+	
+	/**
+	 * Does the same as <code>applyNEDClassifier(CorpusSource, String, boolean)</code>, but if <code>resume</code>
+	 * is set to <code>true</code> the run can be interrupted and restarted later: every annotated document is
+	 * recorded on a journal on <code>outputFolder</code>, and the documents that were recorded by a previous
+	 * run, and didn't change since, are skipped. Each annotated file is written to a temporary file which is
+	 * then renamed, so a killed run never leaves a half-written file behind.
+	 * @param corpus The documents to be annotated.
+	 * @param outputFolder The path, including the folder name, to the directory that will hold the annotated files.
+	 * @param allowNumbers If <code>true</code> numbers won't be removed from the files.
+	 * @param resume If <code>true</code>, the documents already annotated on <code>outputFolder</code> are skipped.
+	 * @throws IOException If there is an IO fault, including while writing the annotated files.
+	 * @throws ClassCastException NER thrown exception.
+	 * @throws ClassNotFoundException NER thrown exception.
+	 */
+	public static void applyNEDClassifier(CorpusSource corpus, String outputFolder, boolean allowNumbers, boolean resume) 
+			throws IOException, ClassCastException, ClassNotFoundException {
 		
 		//Loading the classifier
-		AbstractSequenceClassifier<CoreLabel> classifier = CRFClassifier.getClassifier(SERIALIZED_CLASSIFIER);
+		AbstractSequenceClassifier<CoreLabel> classifier = loadClassifier();
 		
 		//Creating the destination folder, if it doesn't exist
 		File of = new File(outputFolder);
-		of.mkdir();
+		of.mkdirs();
 		
-		// Annotating each file
-		Files.list(new File(corpusPath).toPath()).forEach(path -> {
-			String purgedFile = "";
-			
-			try {
-				purgedFile = purgeFile(path, allowNumbers);
-			}
-			catch (IOException e) {
-				System.err.println("Error while parsing file " + path);
-			}
-			
-			//apply the classification
-			List<List<CoreLabel>> out = classifier.classify(purgedFile);
+		try (AnnotationJournal journal = (resume) ? new AnnotationJournal(outputFolder) : null) {
+			// Annotating each file
+			corpus.forEach(document -> {
+				if (journal != null && journal.isCompleted(document))
+					return;
+				
+				String version = AnnotationJournal.version(document);
+				String purgedFile = "";
+				
+				try {
+					purgedFile = purge(document.openReader(), allowNumbers);
+				}
+				catch (IOException e) {
+					System.err.println("Error while parsing file " + document.getName());
+				}
+				
+				writeAnnotatedFile(outputFolder, document.getName(), annotate(classifier, purgedFile));
+				
+				if (journal != null)
+					journal.markCompleted(document.getName(), version);
+			});
+		}
+	}
+	
+	/**
+	 * Does the same as <code>applyNEDClassifier(CorpusSource, String, boolean)</code>, but each document is
+	 * streamed through the classifier in chunks of <code>chunkSize</code> words: a chunk is read, classified
+	 * and its annotated words are written straight to a buffered file before the next chunk is read. Memory
+	 * use is thus bounded by the chunk size, no matter how big the documents are.
+	 * 
+	 * The purged documents have no punctuation, so the classifier takes each chunk as a single sentence and
+	 * the labels of words close to the chunk boundaries may differ from the ones of a whole-document
+	 * classification. Documents with up to <code>chunkSize</code> words are annotated exactly the same way.
+	 * @param corpus The documents to be annotated.
+	 * @param outputFolder The path, including the folder name, to the directory that will hold the annotated files.
+	 * @param allowNumbers If <code>true</code> numbers won't be removed from the files.
+	 * @param chunkSize The maximum amount of words classified at once.
+	 * @throws IOException If there is an IO fault while writing the annotated files.
+	 * @throws ClassCastException NER thrown exception.
+	 * @throws ClassNotFoundException NER thrown exception.
+	 */
+	public static void applyNEDClassifierInChunks(CorpusSource corpus, String outputFolder, boolean allowNumbers, int chunkSize) 
+			throws IOException, ClassCastException, ClassNotFoundException {
+		if (chunkSize < 1)
+			throw new IllegalArgumentException("The chunks must have at least one word.");
+		
+		AbstractSequenceClassifier<CoreLabel> classifier = loadClassifier();
+		HtmlTokeniser tokeniser = new HtmlTokeniser(allowNumbers, false);
+		StringBuilder chunk = new StringBuilder();
+		
+		new File(outputFolder).mkdir();
+		
+		corpus.forEach(document -> {
+			Path newFile = Paths.get(outputFolder, document.getName());
+			boolean readable = true;
 			
-			//I'd rather keep everything in memory to minimise disk access
-			StringBuilder buffer = new StringBuilder();
-			for (List<CoreLabel> sentence : out)
-				for (CoreLabel word : sentence) {
-					buffer.append(word.word());
-					
-					if (word.get(CoreAnnotations.AnswerAnnotation.class) != null)
-						buffer.append('_' + word.get(CoreAnnotations.AnswerAnnotation.class));
+			try (Writer output = Files.newBufferedWriter(newFile, Charset.defaultCharset())) {
+				int[] words = {0};
+				chunk.setLength(0);
+				
+				try {
+					tokeniser.tokenise(document.openReader(), (word, length) -> {
+						chunk.append(word, 0, length);
+						chunk.append('\n');
 						
-					buffer.append('\n');
+						if (++words[0] == chunkSize) {
+							annotate(classifier, chunk.toString(), output);
+							chunk.setLength(0);
+							words[0] = 0;
+						}
+					});
 				}
+				catch (CharacterCodingException e) {
+					System.err.println("Error while parsing file " + document.getName());
+					
+					chunk.setLength(0);
+					words[0] = 0;
+					readable = false;
+				}
+				
+				if (words[0] > 0)
+					annotate(classifier, chunk.toString(), output);
+			}
 			
-			
-			String newFile = Paths.get(outputFolder, path.getFileName().toString()).toString();
-			
-			// writing annotated file to disk 
-			try {
-				PrintWriter output = new PrintWriter(newFile);
-				output.write(buffer.toString());
-				output.flush();
-				output.close();
-			} catch (Exception e) { }
+			// the chunks written before the fault are dropped as well, so the file is empty, as applyNEDClassifier() leaves it
+			if (!readable)
+				Files.write(newFile, new byte[0]);
 		});
+	}
+	
+	/*
+	 * Applies the classification over a chunk of a purged file, writing each word, annotated or not, on its own line
+	 */
+	private static void annotate(AbstractSequenceClassifier<CoreLabel> classifier, String purgedChunk, Writer output) 
+			throws IOException {
+		for (List<CoreLabel> sentence : classifier.classify(purgedChunk))
+			for (CoreLabel word : sentence) {
+				output.write(word.word());
+				
+				String answer = word.get(CoreAnnotations.AnswerAnnotation.class);
+				if (answer != null) {
+					output.write('_');
+					output.write(answer);
+				}
+				
+				output.write('\n');
+			}
+	}
+	
+	/*
+	 * Loads a new instance of the NER classifier
+	 */
+	static AbstractSequenceClassifier<CoreLabel> loadClassifier() throws IOException, ClassCastException, ClassNotFoundException {
+		return CRFClassifier.getClassifier(SERIALIZED_CLASSIFIER);
+	}
+	
+	/*
+	 * Applies the classification over a purged file, returning each word, annotated or not, on its own line
+	 */
+	static String annotate(AbstractSequenceClassifier<CoreLabel> classifier, String purgedFile) {
+		List<List<CoreLabel>> out = classifier.classify(purgedFile);
 		
+		//I'd rather keep everything in memory to minimise disk access
+		StringBuilder buffer = new StringBuilder();
+		for (List<CoreLabel> sentence : out)
+			for (CoreLabel word : sentence) {
+				buffer.append(word.word());
+				
+				if (word.get(CoreAnnotations.AnswerAnnotation.class) != null)
+					buffer.append('_' + word.get(CoreAnnotations.AnswerAnnotation.class));
+				
+				buffer.append('\n');
+			}
 		
+		return buffer.toString();
 	}
+	
+	/*
+	 * Writes an annotated file to disk. The text is written to a hidden temporary file, which then replaces
+	 * the annotated file, so it is either complete or missing
+	 */
+	static void writeAnnotatedFile(String outputFolder, String name, String annotatedFile) throws IOException {
+		Path newFile = Paths.get(outputFolder, name);
+		Path temporary = Paths.get(outputFolder, "." + name + ".tmp");
 		
+		try (Writer output = Files.newBufferedWriter(temporary, Charset.defaultCharset())) {
+			output.write(annotatedFile);
+		}
+		catch (IOException e) {
+			Files.deleteIfExists(temporary);
+			throw new IOException("Error while writing file " + newFile, e);
+		}
+		
+		Files.move(temporary, newFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
 	/* Didn't want to write a new class just to tokenise the files */
 	public static void main(String args[]) {		
 		try {
-			applyNEDClassifier("corpus", "korpus", false);
+			// the zip archive is read straight away when the corpus wasn't extracted
+			String corpusPath = (new File("corpus").isDirectory()) ? "corpus" : "corpus.zip";
+			
+			// same output as applyNEDClassifier, but using all the cores and resuming an interrupted run
+			AnnotationPipeline pipeline = new AnnotationPipeline();
+			pipeline.setResume(true);
+			pipeline.run(CorpusSource.open(corpusPath), "korpus", false);
 			System.out.println("Done.");
 		} catch (Exception e) {
 			e.printStackTrace();
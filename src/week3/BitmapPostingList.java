@@ -0,0 +1,91 @@
+package week3;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stores one bit per document, from 0 up to the last document of the list. It is the smallest container
+ * for terms found on a large share of the corpus, and both iterating and skipping are word scans.
+ *
+ * Layout: header | int words | words x long
+ *
+ * @author Luiz Felix
+ */
+class BitmapPostingList extends PostingList {
+	private static final int WORDS = HEADER_SIZE + 4;
+	
+	private final int words;
+	
+	BitmapPostingList(ByteBuffer buffer) {
+		super(buffer);
+		this.words = buffer.getInt(HEADER_SIZE);
+	}
+	
+	static int encodedSize(int[] documents, int length) {
+		return (int) Math.min(WORDS + 8L * ((documents[length - 1] >> 6) + 1), Integer.MAX_VALUE);
+	}
+	
+	static ByteBuffer encode(int[] documents, int length, int size) {
+		ByteBuffer buffer = allocate(BITMAP, length, size);
+		int words = (documents[length - 1] >> 6) + 1;
+		buffer.putInt(HEADER_SIZE, words);
+		
+		long word = 0;
+		int current = 0;
+		
+		for (int i = 0; i < length; i++) {
+			int index = documents[i] >> 6;
+			
+			if (index != current) {
+				buffer.putLong(WORDS + 8 * current, word);
+				word = 0;
+				current = index;
+			}
+			
+			word |= 1L << documents[i];
+		}
+		
+		buffer.putLong(WORDS + 8 * current, word);
+		return buffer;
+	}
+	
+	@Override
+	public PostingIterator iterator() {
+		return new PostingIterator() {
+			private int docId = -1;
+			
+			@Override
+			public int docId() {
+				return docId;
+			}
+			
+			@Override
+			public int nextDoc() {
+				return (docId == NO_MORE_DOCS) ? docId : advance(docId + 1);
+			}
+			
+			@Override
+			public int advance(int target) {
+				int index = target >> 6;
+				if (index >= words)
+					return docId = NO_MORE_DOCS;
+				
+				// ignoring the bits of the documents before target
+				long word = buffer.getLong(WORDS + 8 * index) & (-1L << target);
+				
+				while (word == 0) {
+					if (++index == words)
+						return docId = NO_MORE_DOCS;
+					
+					word = buffer.getLong(WORDS + 8 * index);
+				}
+				
+				return docId = (index << 6) + Long.numberOfTrailingZeros(word);
+			}
+			
+			@Override
+			public int cost() {
+				return cardinality;
+			}
+		};
+	}
+}
@@ -0,0 +1,243 @@
+package week3;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The file names of the documents of a segment, in the order of their IDs, front coded: names are grouped
+ * in buckets of <code>BUCKET_SIZE</code>, the first one of each bucket is written whole and each of the
+ * others only as the length of the prefix it shares with the previous one plus the rest of its bytes.
+ * Crawled and numbered names share long prefixes, so most of them take a few bytes.
+ *
+ * An offset table gives the start of every bucket, so a name is decoded from at most one bucket, and a
+ * table of the documents sorted by name lets a name be found by a binary search. The table is left out
+ * when the names are already sorted, as the ones of a folder are. Everything is read from
+ * a single buffer, which may be a slice of a mapped segment file, so the heap holds no per-document object.
+ *
+ * Layout: int names | int buckets | int sorted entries (0 or names) | buckets x int offset of the bucket
+ *         | sorted entries x int index, sorted by name
+ *         | buckets x (vint length, bytes, then up to BUCKET_SIZE - 1 x (vint shared, vint length, bytes))
+ *
+ * @author Luiz Felix
+ */
+class DocumentNameStore {
+	static final int BUCKET_SIZE = 16;
+	
+	private static final int OFFSET_TABLE = 12;
+	
+	private final ByteBuffer buffer;
+	private final int size;
+	private final int buckets;
+	private final int sortedTable;
+	private final boolean inOrder;
+	
+	DocumentNameStore(ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.size = buffer.getInt(0);
+		this.buckets = buffer.getInt(4);
+		this.sortedTable = OFFSET_TABLE + 4 * buckets;
+		this.inOrder = buffer.getInt(8) == 0;
+	}
+	
+	/**
+	 * @param names The names of the documents, in the order of their IDs.
+	 * @return The encoded names.
+	 */
+	static DocumentNameStore of(List<String> names) {
+		byte[][] bytes = new byte[names.size()][];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = names.get(i).getBytes(StandardCharsets.UTF_8);
+		
+		boolean inOrder = true;
+		for (int i = 1; i < bytes.length && inOrder; i++)
+			inOrder = MappedSegment.compare(bytes[i - 1], bytes[i]) <= 0;
+		
+		int buckets = (bytes.length + BUCKET_SIZE - 1) / BUCKET_SIZE;
+		int sortedEntries = inOrder ? 0 : bytes.length;
+		int header = OFFSET_TABLE + 4 * buckets + 4 * sortedEntries;
+		
+		// the data is written first, as the offsets are only known once it is
+		ByteBuffer data = ByteBuffer.allocate(64);
+		int[] offsets = new int[buckets];
+		
+		for (int i = 0; i < bytes.length; i++) {
+			int shared = 0;
+			
+			if (i % BUCKET_SIZE == 0)
+				offsets[i / BUCKET_SIZE] = header + data.position();
+			else {
+				int common = Math.min(bytes[i].length, bytes[i - 1].length);
+				while (shared < common && bytes[i][shared] == bytes[i - 1][shared])
+					shared++;
+			}
+			
+			if (data.remaining() < 10 + bytes[i].length - shared) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(data.capacity() * 2, data.position() + 10 + bytes[i].length));
+				data.flip();
+				data = bigger.put(data);
+			}
+			
+			if (i % BUCKET_SIZE != 0)
+				putVInt(data, shared);
+			
+			putVInt(data, bytes[i].length - shared);
+			data.put(bytes[i], shared, bytes[i].length - shared);
+		}
+		
+		Integer[] sorted = new Integer[sortedEntries];
+		for (int i = 0; i < sorted.length; i++)
+			sorted[i] = i;
+		
+		Arrays.sort(sorted, (a, b) -> MappedSegment.compare(bytes[a], bytes[b]));
+		
+		ByteBuffer buffer = ByteBuffer.allocate(header + data.position());
+		buffer.putInt(bytes.length).putInt(buckets).putInt(sortedEntries);
+		
+		for (int offset : offsets)
+			buffer.putInt(offset);
+		for (int index : sorted)
+			buffer.putInt(index);
+		
+		data.flip();
+		buffer.put(data);
+		buffer.clear();
+		
+		return new DocumentNameStore(buffer);
+	}
+	
+	/**
+	 * @return The amount of names.
+	 */
+	int size() {
+		return size;
+	}
+	
+	/**
+	 * @param index The position of the document on the segment, its ID minus the first ID of the segment.
+	 * @return The name of the document.
+	 * @throws IndexOutOfBoundsException If there is no document on <code>index</code>.
+	 */
+	String name(int index) {
+		return new String(bytes(index), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * @param name The name of a document.
+	 * @return The position of the document on the segment, or -1 if there is no document with that name.
+	 */
+	int indexOf(String name) {
+		byte[] key = name.getBytes(StandardCharsets.UTF_8);
+		int low = 0;
+		int high = size - 1;
+		
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int index = inOrder ? middle : buffer.getInt(sortedTable + 4 * middle);
+			int comparison = MappedSegment.compare(bytes(index), key);
+			
+			if (comparison < 0)
+				low = middle + 1;
+			else if (comparison > 0)
+				high = middle - 1;
+			else
+				return index;
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * @param name Any name, which doesn't need to be on the store.
+	 * @return The amount of names lesser than <code>name</code>, which is the position of the first name
+	 * not lesser than it if the names are in order.
+	 */
+	int lowerBound(String name) {
+		byte[] key = name.getBytes(StandardCharsets.UTF_8);
+		int low = 0;
+		int high = size;
+		
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			int index = inOrder ? middle : buffer.getInt(sortedTable + 4 * middle);
+			
+			if (MappedSegment.compare(bytes(index), key) < 0)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		
+		return low;
+	}
+	
+	/**
+	 * @return A read-only view of the encoded names, as written to a segment file.
+	 */
+	ByteBuffer encoded() {
+		ByteBuffer view = buffer.asReadOnlyBuffer();
+		view.clear();
+		return view;
+	}
+	
+	/**
+	 * @return The amount of bytes taken by the encoded names.
+	 */
+	int sizeInBytes() {
+		return buffer.capacity();
+	}
+	
+	/*
+	 * Decodes the bucket of index up to it
+	 */
+	private byte[] bytes(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("No document on position " + index + ".");
+		
+		int[] offset = {buffer.getInt(OFFSET_TABLE + 4 * (index / BUCKET_SIZE))};
+		int length = getVInt(offset);
+		byte[] name = new byte[Math.max(length, 32)];
+		
+		read(offset[0], name, 0, length);
+		offset[0] += length;
+		
+		for (int i = index % BUCKET_SIZE; i > 0; i--) {
+			int shared = getVInt(offset);
+			int suffix = getVInt(offset);
+			
+			if (name.length < shared + suffix)
+				name = Arrays.copyOf(name, Math.max(shared + suffix, name.length * 2));
+			
+			read(offset[0], name, shared, suffix);
+			offset[0] += suffix;
+			length = shared + suffix;
+		}
+		
+		return Arrays.copyOf(name, length);
+	}
+	
+	private void read(int offset, byte[] destination, int from, int length) {
+		for (int i = 0; i < length; i++)
+			destination[from + i] = buffer.get(offset + i);
+	}
+	
+	private int getVInt(int[] offset) {
+		int value = 0;
+		
+		for (int shift = 0; ; shift += 7) {
+			byte b = buffer.get(offset[0]++);
+			value |= (b & 0x7F) << shift;
+			
+			if (b >= 0) return value;
+		}
+	}
+	
+	private static void putVInt(ByteBuffer buffer, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		
+		buffer.put((byte) value);
+	}
+}
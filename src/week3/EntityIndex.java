@@ -0,0 +1,235 @@
+package week3;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.function.ToIntFunction;
+
+import parsing.CorpusSource;
+
+/**
+ * Indexes the named entities found by <code>week2.Tokeniser</code>, which writes each word of a document
+ * on its own line as <code>word_CLASS</code>. Consecutive words with the same class make up a single
+ * mention, so "United_LOCATION States_LOCATION" is indexed as the location "united_states".
+ *
+ * Each entity is identified by its type and its lower cased surface form, as in <code>location:united_states</code>,
+ * which is also how the entities are queried through <code>Indexer</code> once this index is attached to it.
+ * The posting lists are compressed the same way the ones of <code>Indexer</code> are.
+ *
+ * @author Luiz Felix
+ */
+public class EntityIndex {
+	
+	/**
+	 * The classes of entities annotated by the NER classifier.
+	 */
+	public enum EntityType {
+		PERSON, LOCATION, ORGANIZATION;
+		
+		/*
+		 * The type of an annotation, or null if it isn't an entity (such as "O")
+		 */
+		static EntityType of(String label) {
+			for (EntityType type : values())
+				if (type.name().equals(label))
+					return type;
+			
+			return null;
+		}
+	}
+	
+	/* Separates the type from the surface form on a key */
+	public static final char TYPE_SEPARATOR = ':';
+	
+	private Map<String, PostingList> invertedIndex;
+	
+	/* The documents of each entity while the corpus is read */
+	private Map<String, PostingListBuilder> building = new HashMap<String, PostingListBuilder>();
+	
+	/**
+	 * Indexes an annotated corpus. The documents receive IDs in the same order they are read from the
+	 * source, starting from the same value <code>Indexer</code> does, so both indexes agree when they
+	 * are built from corpora with the same documents.
+	 *
+	 * @param annotatedCorpus The annotated documents, such as the <code>korpus</code> folder.
+	 * @throws IOException If an IO fault occurs while reading the corpus.
+	 */
+	public EntityIndex(CorpusSource annotatedCorpus) throws IOException {
+		int[] docId = {Indexer.INITIAL_ID_COUNTER};
+		
+		annotatedCorpus.forEach(document -> {
+			try (BufferedReader reader = new BufferedReader(document.openReader())) {
+				readDocument(reader, docId[0]);
+			}
+			
+			docId[0]++;
+		});
+		
+		freeze();
+	}
+	
+	/**
+	 * Indexes an annotated corpus, taking the ID of each document from <code>documentIds</code>, usually
+	 * <code>Indexer::getDocumentId</code>. The annotated documents are matched by their name, without the
+	 * extension, so <code>CACM-0001.txt</code> gets the ID of <code>CACM-0001.html</code>.
+	 *
+	 * @param annotatedCorpus The annotated documents, such as the <code>korpus</code> folder.
+	 * @param documentIds Gives the ID of a document from its name, or a negative value if the document
+	 * is unknown, in which case it is not indexed.
+	 * @throws IOException If an IO fault occurs while reading the corpus.
+	 */
+	public EntityIndex(CorpusSource annotatedCorpus, ToIntFunction<String> documentIds) throws IOException {
+		annotatedCorpus.forEach(document -> {
+			int docId = documentIds.applyAsInt(document.getName());
+			if (docId < 0) return;
+			
+			try (BufferedReader reader = new BufferedReader(document.openReader())) {
+				readDocument(reader, docId);
+			}
+		});
+		
+		freeze();
+	}
+	
+	/*
+	 * Adds a posting for every mention found on an annotated document
+	 */
+	private void readDocument(BufferedReader reader, int docId) throws IOException {
+		StringBuilder mention = new StringBuilder();
+		EntityType current = null;
+		String line;
+		
+		while ((line = reader.readLine()) != null) {
+			int separator = line.lastIndexOf('_');
+			EntityType type = (separator > 0) ? EntityType.of(line.substring(separator + 1)) : null;
+			
+			// a mention goes on while the class doesn't change
+			if (current != null && type != current) {
+				addPosting(key(current, mention.toString()), docId);
+				mention.setLength(0);
+			}
+			
+			current = type;
+			if (type == null) continue;
+			
+			if (mention.length() > 0)
+				mention.append('_');
+			
+			mention.append(line, 0, separator);
+		}
+		
+		if (current != null)
+			addPosting(key(current, mention.toString()), docId);
+	}
+	
+	private void addPosting(String key, int docId) {
+		PostingListBuilder documents = building.get(key);
+		
+		if (documents == null) {
+			documents = new PostingListBuilder();
+			building.put(key, documents);
+		}
+		
+		documents.add(docId);
+	}
+	
+	private void freeze() {
+		invertedIndex = new HashMap<String, PostingList>(building.size() * 2);
+		
+		for (Entry<String, PostingListBuilder> entry : building.entrySet())
+			invertedIndex.put(entry.getKey(), entry.getValue().build());
+		
+		building = null;
+	}
+	
+	/**
+	 * Returns the key of an entity, such as <code>location:united_states</code>. The surface form is
+	 * lower cased and its spaces are replaced by '_'.
+	 * @param type The type of the entity.
+	 * @param surfaceForm The words of the entity.
+	 * @return The key of the entity.
+	 */
+	public static String key(EntityType type, String surfaceForm) {
+		return type.name().toLowerCase() + TYPE_SEPARATOR + surfaceForm.trim().toLowerCase().replaceAll("\\s+", "_");
+	}
+	
+	/**
+	 * @param key A term that may be an entity key.
+	 * @return <code>true</code> if <code>key</code> begins with the name of an entity type followed by ':'.
+	 */
+	public static boolean isEntityKey(String key) {
+		int separator = key.indexOf(TYPE_SEPARATOR);
+		
+		return separator > 0 && separator < key.length() - 1 &&
+				EntityType.of(key.substring(0, separator).toUpperCase()) != null;
+	}
+	
+	/**
+	 * Returns the documents that mention an entity.
+	 * @param key The key of the entity, as returned by <code>key()</code>.
+	 * @return A new BitSet holding the ID of each document that mentions the entity, or <code>null</code>
+	 * if it is never mentioned.
+	 */
+	public BitSet documents(String key) {
+		PostingList postings = postings(key);
+		if (postings == null) return null;
+		
+		BitSet documents = new BitSet();
+		PostingIterator iterator = postings.iterator();
+		
+		for (int docId = iterator.nextDoc(); docId != PostingIterator.NO_MORE_DOCS; docId = iterator.nextDoc())
+			documents.set(docId);
+		
+		return documents;
+	}
+	
+	/*
+	 * The compressed documents of an entity, or null if it is never mentioned
+	 */
+	PostingList postings(String key) {
+		return invertedIndex.get(key.toLowerCase());
+	}
+	
+	/**
+	 * Returns a list with the ID of the documents that mention an entity.
+	 * @param type The type of the entity.
+	 * @param surfaceForm The words of the entity, such as "United States".
+	 * @return A String with the ID of each matched document. If none is found, <code>null</code>
+	 * is returned.
+	 */
+	public String query(EntityType type, String surfaceForm) {
+		BitSet result = documents(key(type, surfaceForm));
+		return (result == null) ? null : result.toString();
+	}
+	
+	/**
+	 * @param key The key of an entity.
+	 * @return The amount of documents that mention the entity.
+	 */
+	public int documentFrequency(String key) {
+		PostingList postings = postings(key);
+		return (postings == null) ? 0 : postings.cardinality();
+	}
+	
+	/**
+	 * @return The amount of distinct entities.
+	 */
+	public int size() {
+		return invertedIndex.size();
+	}
+	
+	/*
+	 * Overwriting toString for debug purposes
+	 */
+	public String toString() {
+		StringBuilder buffer = new StringBuilder();
+		
+		for (Entry<String, PostingList> entry : invertedIndex.entrySet())
+			buffer.append(entry.getKey() + " -> " + entry.getValue() + '\n');
+		
+		return buffer.toString();
+	}
+}
@@ -0,0 +1,316 @@
+package week3;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The state of an <code>Indexer</code> at a given moment: its segments, in increasing order of ID, and the
+ * IDs of its deleted documents. A snapshot never changes once it is published; adding, deleting, flushing
+ * or merging creates a new snapshot, which the index swaps in atomically. So a query reads a single
+ * snapshot from start to end without any lock, whatever happens to the index in the meantime.
+ *
+ * The deleted documents are only left out of the posting lists when their segment is merged, so until
+ * then the queries filter them out with the <code>deleted</code> bitmap.
+ *
+ * @author Luiz Felix
+ */
+final class IndexSnapshot {
+	/* Snapshots are numbered as they are created, so a snapshot built from another one has a greater version */
+	private static final AtomicLong VERSIONS = new AtomicLong();
+	
+	final List<Segment> segments;
+	final BitSet deleted;
+	
+	/* Greater than the version of every snapshot published before this one */
+	final long version = VERSIONS.incrementAndGet();
+	
+	/* Built on the first query that needs it, which may run on any thread */
+	private volatile PostingList universe;
+	
+	/**
+	 * @param segments The segments, whose IDs follow each other, in increasing order of ID. It is not copied.
+	 * @param deleted The IDs of the deleted documents. It is not copied, so it must not be changed afterwards.
+	 */
+	private IndexSnapshot(List<Segment> segments, BitSet deleted) {
+		this.segments = Collections.unmodifiableList(segments);
+		this.deleted = deleted;
+	}
+	
+	/**
+	 * @param segment The only segment of the index.
+	 * @return A snapshot of the segment, with the documents it has as deleted.
+	 */
+	static IndexSnapshot of(Segment segment) {
+		BitSet deleted = new BitSet();
+		
+		if (segment.deletedDocuments() != null) {
+			PostingIterator iterator = segment.deletedDocuments().iterator();
+			
+			for (int docId = iterator.nextDoc(); docId != PostingIterator.NO_MORE_DOCS; docId = iterator.nextDoc())
+				deleted.set(docId);
+		}
+		
+		List<Segment> segments = new ArrayList<Segment>(1);
+		segments.add(segment);
+		
+		return new IndexSnapshot(segments, deleted);
+	}
+	
+	/**
+	 * @param segment A segment whose first ID follows the last ID of this snapshot.
+	 * @return A new snapshot, with the segment after the ones of this one.
+	 */
+	IndexSnapshot withSegment(Segment segment) {
+		List<Segment> added = new ArrayList<Segment>(segments);
+		added.add(segment);
+		
+		return new IndexSnapshot(added, deleted);
+	}
+	
+	/**
+	 * @param docId The ID of a document to be deleted.
+	 * @return A new snapshot where the document is deleted, or this one if it already was.
+	 */
+	IndexSnapshot withDeleted(int docId) {
+		if (deleted.get(docId)) return this;
+		
+		BitSet copy = (BitSet) deleted.clone();
+		copy.set(docId);
+		
+		return new IndexSnapshot(segments, copy);
+	}
+	
+	/**
+	 * @param merged Consecutive segments of this snapshot.
+	 * @param into The segment they were merged into.
+	 * @return A new snapshot with <code>into</code> in place of <code>merged</code>, or this one if
+	 * <code>merged</code> are no longer on it.
+	 */
+	IndexSnapshot withMerged(List<Segment> merged, Segment into) {
+		int start = segments.indexOf(merged.get(0));
+		if (start < 0 || start + merged.size() > segments.size()) return this;
+		
+		if (!segments.subList(start, start + merged.size()).equals(merged))
+			return this;
+		
+		List<Segment> replaced = new ArrayList<Segment>(segments.size() - merged.size() + 1);
+		replaced.addAll(segments.subList(0, start));
+		replaced.add(into);
+		replaced.addAll(segments.subList(start + merged.size(), segments.size()));
+		
+		return new IndexSnapshot(replaced, deleted);
+	}
+	
+	/**
+	 * @return The ID the next document added to the index gets.
+	 */
+	int nextDocumentId() {
+		Segment last = segments.get(segments.size() - 1);
+		return last.firstDocumentId() + last.documentNames().size();
+	}
+	
+	/**
+	 * @return The amount of documents that weren't deleted.
+	 */
+	int documentCount() {
+		int count = 0;
+		
+		for (Segment segment : segments)
+			count += segment.documentNames().size();
+		
+		return count - deleted(segments.get(0).firstDocumentId(), nextDocumentId());
+	}
+	
+	/**
+	 * @return The amount of deleted documents with IDs on [from, to).
+	 */
+	int deleted(int from, int to) {
+		int count = 0;
+		
+		for (int docId = deleted.nextSetBit(from); docId >= 0 && docId < to; docId = deleted.nextSetBit(docId + 1))
+			count++;
+		
+		return count;
+	}
+	
+	/**
+	 * @param term A lower cased term.
+	 * @return The documents of the term on all the segments, deleted ones included, or <code>null</code>
+	 * if no segment has the term.
+	 */
+	Postings postings(String term) {
+		List<PostingList> lists = null;
+		
+		for (Segment segment : segments) {
+			PostingList documents = segment.postings(term);
+			if (documents == null) continue;
+			
+			if (lists == null)
+				lists = new ArrayList<PostingList>(segments.size());
+			
+			lists.add(documents);
+		}
+		
+		if (lists == null) return null;
+		
+		return (lists.size() == 1) ? lists.get(0) : new SegmentedPostings(lists);
+	}
+	
+	/**
+	 * @param pattern A lower cased wildcard term that <code>TermDictionary.isExpandable()</code>.
+	 * @param limit The greatest amount of terms the pattern is expanded to. If more terms match, the first
+	 * ones in the order of their bytes are taken.
+	 * @return The documents of all the terms that match the pattern, deleted ones included, or
+	 * <code>null</code> if no term does.
+	 */
+	Postings expand(String pattern, int limit) {
+		TreeSet<String> matched = new TreeSet<String>();
+		
+		// each segment gives its first terms, so the first ones of all the segments are among them
+		for (Segment segment : segments)
+			matched.addAll(segment.terms().expand(pattern, limit));
+		
+		List<Postings> expansions = new ArrayList<Postings>(Math.min(matched.size(), limit));
+		
+		for (String term : matched) {
+			if (expansions.size() == limit) break;
+			expansions.add(postings(term));
+		}
+		
+		if (expansions.isEmpty()) return null;
+		
+		return (expansions.size() == 1) ? expansions.get(0) : new ExpandedPostings(expansions);
+	}
+	
+	/**
+	 * @return All the documents that weren't deleted, or <code>null</code> if there are none.
+	 */
+	PostingList universe() {
+		if (universe == null) {
+			PostingListBuilder documents = new PostingListBuilder();
+			
+			for (int docId = segments.get(0).firstDocumentId(); docId < nextDocumentId(); docId++)
+				if (!deleted.get(docId))
+					documents.add(docId);
+			
+			if (documents.size() == 0) return null;
+			
+			universe = documents.build();
+		}
+		
+		return universe;
+	}
+	
+	/**
+	 * @param docId The ID of a document.
+	 * @return The segment that holds the document, or <code>null</code> if the ID is out of every segment.
+	 */
+	Segment segmentOf(int docId) {
+		int low = 0;
+		int high = segments.size() - 1;
+		
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			Segment segment = segments.get(middle);
+			
+			if (docId < segment.firstDocumentId())
+				high = middle - 1;
+			else if (docId >= segment.firstDocumentId() + segment.documentNames().size())
+				low = middle + 1;
+			else
+				return segment;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * @param docId The ID of a document.
+	 * @return The name of the document, or <code>null</code> if there is no document with that ID or it was deleted.
+	 */
+	String documentName(int docId) {
+		Segment segment = segmentOf(docId);
+		if (segment == null || deleted.get(docId)) return null;
+		
+		return segment.documentNames().name(docId - segment.firstDocumentId());
+	}
+	
+	/**
+	 * @param name The name of a document, without its extension.
+	 * @return The ID of the document, or -1 if there is no document with that name that wasn't deleted.
+	 * If the name was added several times, the ID of the last version is returned.
+	 */
+	int documentId(String name) {
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			Segment segment = segments.get(i);
+			int index = segment.documentNames().indexOf(name);
+			
+			if (index >= 0 && !deleted.get(segment.firstDocumentId() + index))
+				return segment.firstDocumentId() + index;
+		}
+		
+		return -1;
+	}
+	
+	/*
+	 * The documents of the terms a wildcard matches, OR-ed
+	 */
+	private static class ExpandedPostings implements Postings {
+		private final List<Postings> terms;
+		
+		ExpandedPostings(List<Postings> terms) {
+			this.terms = terms;
+		}
+		
+		@Override
+		public PostingIterator iterator() {
+			List<PostingIterator> iterators = new ArrayList<PostingIterator>(terms.size());
+			for (Postings documents : terms)
+				iterators.add(documents.iterator());
+			
+			return PostingIterators.or(iterators);
+		}
+		
+		@Override
+		public int cardinality() {
+			long cardinality = 0;
+			for (Postings documents : terms)
+				cardinality += documents.cardinality();
+			
+			return (int) Math.min(cardinality, Integer.MAX_VALUE);
+		}
+	}
+	
+	/*
+	 * The lists of a term on several segments, read one after the other
+	 */
+	private static class SegmentedPostings implements Postings {
+		private final List<PostingList> lists;
+		
+		SegmentedPostings(List<PostingList> lists) {
+			this.lists = lists;
+		}
+		
+		@Override
+		public PostingIterator iterator() {
+			List<PostingIterator> iterators = new ArrayList<PostingIterator>(lists.size());
+			for (PostingList documents : lists)
+				iterators.add(documents.iterator());
+			
+			return PostingIterators.concat(iterators);
+		}
+		
+		@Override
+		public int cardinality() {
+			int cardinality = 0;
+			for (PostingList documents : lists)
+				cardinality += documents.cardinality();
+			
+			return cardinality;
+		}
+	}
+}
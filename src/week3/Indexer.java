@@ -2,102 +2,605 @@ package week3;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.BitSet;
+import java.io.Reader;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import parsing.CorpusSource;
+import parsing.FolderCorpus;
+import parsing.HtmlTokeniser;
 
 /**
- * This class indexes all files in a given folder under the assumption that they are all text files.
- * To avoid the indexing of a file, its name has to begin with '.'. The class doesn't store a secondary
- * index to keep track of the names of the files, but this can be easily implemented. (It is not done
- * because the corpus's files are all numerically identified).
+ * This class indexes all files in a given folder (or zip archive) under the assumption that they are all
+ * text files. To avoid the indexing of a file, its name has to begin with '.'. The name of each document is kept
+ * on a front coded <code>DocumentNameStore</code>, so the IDs returned by the queries can be turned back into
+ * file names with <code>getDocumentName()</code>, whatever the files are called.
+ *
+ * An <code>EntityIndex</code> can be attached to the index, so the queries may also have terms such as
+ * <code>location:united_states</code>, which match the documents that mention that entity.
+ *
+ * The documents of each term are kept on a compressed <code>PostingList</code>, whose container is chosen
+ * per term: bit-packed gaps for rare terms, bitmaps for common ones and runs for the ones found on long
+ * ranges of documents. The queries are evaluated by iterating over the compressed lists.
+ *
+ * A term may be a wildcard, such as <code>diabet*</code> or <code>*itis</code>, which matches the documents
+ * of the terms it expands to, at most <code>getMaxExpansions()</code> of them. Wildcards are expanded by the
+ * <code>TermDictionary</code> of each segment, through a binary search for prefixes and a k-gram index for
+ * the others, so the whole vocabulary is never scanned.
+ *
+ * The results of <code>search()</code> and <code>query()</code> are kept on a <code>QueryCache</code>, so a
+ * query repeated while the index doesn't change is read from its cached result. Queries that only differ
+ * on the order of their operands share their result.
+ *
+ * The index can be saved to a single file with <code>save()</code> and opened again with <code>open()</code>,
+ * which maps the file instead of indexing the corpus again.
+ *
+ * Documents can be added and deleted while the index is queried. The index is a list of immutable segments:
+ * the documents added are buffered until <code>getFlushThreshold()</code> of them are, then a background
+ * thread encodes them on a new segment and merges the small segments together. Every change publishes a new
+ * <code>IndexSnapshot</code> atomically, and each query reads a single snapshot, so queries never lock and
+ * never see half a change. The documents keep their IDs when segments are merged. The entity and positional
+ * indexes only have the documents that were indexed when they were built.
  *
  * 
  * @author Luiz Felix
  */
 public class Indexer {
 	
-	/* To match the corpus's file names */
-	private final int INITIAL_ID_COUNTER = 1;
-	private int docId;
+	/* To match the corpus's file names. The entity index numbers its documents from it too */
+	static final int INITIAL_ID_COUNTER = 1;
 	
-	private Map<String, BitSet> invertedIndex;
+	/* Amount of files a parallel worker indexes before it stops splitting its slice */
+	private static final int FILES_PER_TASK = 16;
 	
-	private static String readFile(Path textFilePath, boolean allowNumbers) throws IOException {
-		String regex = (allowNumbers) ? "[[^\\w ][_]]" : "[[^\\w ][\\d_]]";
-		StringBuilder buffer = new StringBuilder();
+	/* Amount of added documents buffered before they are written on a segment */
+	private static final int DEFAULT_FLUSH_THRESHOLD = 1000;
+	
+	/* Amount of segments of about the same size that are merged into one */
+	private static final int MERGE_FACTOR = 8;
+	
+	/* A segment with a greater share of deleted documents is rewritten without them */
+	private static final double MAX_DELETED_RATIO = 0.3;
+	
+	/* Amount of terms a wildcard is expanded to at most */
+	private static final int DEFAULT_MAX_EXPANSIONS = 128;
+	
+	/* Bytes taken by the cached results at most */
+	private static final long DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+	
+	/* Replaced as a whole on every change, never modified */
+	private final AtomicReference<IndexSnapshot> snapshot = new AtomicReference<IndexSnapshot>();
+	
+	private EntityIndex entities;
+	private PositionalIndex positions;
+	
+	/* null if results aren't cached */
+	private volatile QueryCache cache = new QueryCache(DEFAULT_CACHE_SIZE);
+	
+	/* The documents added but not queryable yet, the ones buffered and the ones being flushed. Guarded by writeLock */
+	private final Object writeLock = new Object();
+	private Batch pending;
+	private final List<Batch> flushing = new ArrayList<Batch>();
+	private int nextDocumentId = -1;
+	
+	private volatile int flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+	private volatile int maxExpansions = DEFAULT_MAX_EXPANSIONS;
+	
+	/* Flushes and merges, one at a time. Created on the first flush */
+	private ExecutorService background;
+	private Future<?> lastFlush;
+	
+	/**
+	 * Indexes all files from a given folder that are not hidden, or all the documents of a zip archive.
+	 * <pre>All the files on this folder must be text otherwise must be hidden.</pre>
+	 * 
+	 * @param path The path to the folder (or archive) to be indexed.
+	 * @throws IOException If an IO fault occurs.
+	 */
+	public Indexer(String path) throws IOException {
+		this(CorpusSource.open(path));
+	}
+	
+	/**
+	 * Indexes all the documents of a corpus. The documents receive IDs in the same order they are
+	 * read from the source, starting from <code>INITIAL_ID_COUNTER</code>.
+	 * 
+	 * @param corpus The documents to be indexed.
+	 * @throws IOException If an IO fault occurs while reading the corpus.
+	 */
+	public Indexer(CorpusSource corpus) throws IOException {
+		Map<String, PostingListBuilder> building = new HashMap<String, PostingListBuilder>();
+		List<String> documentNames = new ArrayList<String>();
+		int[] docId = {INITIAL_ID_COUNTER};
 		
-		Files.readAllLines(textFilePath).forEach(line -> {
-			//get rid of tabs
-			line = line.replaceAll("\t", " ");
-			
-			//get rid of more than 1 whitespace and HTML tags
-			line = line.trim().replaceAll("\\s{2,}", " ").replaceAll("<.*>", "");
+		HtmlTokeniser tokeniser = new HtmlTokeniser(false, true);
+		
+		corpus.forEach(document -> {
+			documentNames.add(baseName(document.getName()));
 			
-			if (line.length() > 0) {
-				//removing all non-alphabetic characters and multiple spaces
-				line = line.replaceAll(regex, "");
-				
-				String[] words = line.split(" ");
-				
-				for (int i = 0; i < words.length; i++) {
-					if (words[i].length() == 0) continue;
-				
-					//uncomment this to normalise all the words to lower case (NER may fail) 
-					words[i] = words[i].toLowerCase();
-					buffer.append(words[i]);
-					
-					buffer.append("\n");	
-				}
+			// fail silently
+			try {
+				// add word to the inverted index and update it
+				tokeniser.tokenise(document.openReader(), (word, length) -> addPosting(building, new String(word, 0, length), docId[0]));
+			} catch (IOException e) {
+				System.err.println("Error while indexing file " + document.getName());
 			}
+			
+			docId[0]++;
 		});
 		
-		return buffer.toString();
+		snapshot.set(IndexSnapshot.of(encode(building, documentNames, INITIAL_ID_COUNTER)));
 	}
 	
 	/**
-	 * Indexes all files from a given folder that are not hidden. 
-	 * <pre>All the files on this folder must be text otherwise must be hidden.</pre>
+	 * Does the same as <code>Indexer(String)</code>, but if <code>path</code> is a folder, its files are indexed
+	 * by <code>parallelism</code> threads. The sorted list of files is split in slices, each one indexed on its own
+	 * partial index, and the partial indexes are merged in the order of their slices. The documents receive
+	 * exactly the same IDs as on a sequential build. Zip archives can only be read sequentially, so they are
+	 * indexed as <code>Indexer(String)</code> does.
 	 * 
-	 * @param path The path to the folder to be indexed.
+	 * @param path The path to the folder (or archive) to be indexed.
+	 * @param parallelism The amount of threads. If it is lesser than 1, one thread per available processor is used.
 	 * @throws IOException If an IO fault occurs.
 	 */
-	public Indexer(String path) throws IOException {
-		invertedIndex = new HashMap<String, BitSet>();
-		docId = INITIAL_ID_COUNTER;
+	public Indexer(String path, int parallelism) throws IOException {
+		CorpusSource corpus = CorpusSource.open(path);
+		
+		if (!(corpus instanceof FolderCorpus)) {
+			snapshot.set(new Indexer(corpus).snapshot.get());
+			return;
+		}
+		
+		List<File> files = ((FolderCorpus) corpus).listDocuments();
+		
+		if (parallelism < 1)
+			parallelism = Runtime.getRuntime().availableProcessors();
+		
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		Map<String, PostingListBuilder> building;
+		
+		try {
+			building = pool.invoke(new IndexTask(files, 0, files.size()));
+		}
+		finally {
+			pool.shutdown();
+		}
+		
+		List<String> documentNames = new ArrayList<String>(files.size());
+		for (File file : files)
+			documentNames.add(baseName(file.getName()));
+		
+		snapshot.set(IndexSnapshot.of(encode(building, documentNames, INITIAL_ID_COUNTER)));
+	}
+	
+	private static void addPosting(Map<String, PostingListBuilder> building, String word, int document) {
+		PostingListBuilder documents = building.get(word);
+		
+		if (documents == null) {
+			documents = new PostingListBuilder();
+			building.put(word, documents);
+		}
+		
+		documents.add(document);
+	}
+	
+	/*
+	 * Encodes each term on the container that suits it best
+	 */
+	private static Segment encode(Map<String, PostingListBuilder> building, List<String> documentNames, int firstDocumentId) {
+		Map<String, PostingList> invertedIndex = new HashMap<String, PostingList>(building.size() * 2);
+		
+		for (Entry<String, PostingListBuilder> entry : building.entrySet())
+			invertedIndex.put(entry.getKey(), entry.getValue().build());
+		
+		return new MemorySegment(invertedIndex, DocumentNameStore.of(documentNames), firstDocumentId);
+	}
+	
+	private Indexer(Segment segment) {
+		snapshot.set(IndexSnapshot.of(segment));
+	}
+	
+	/**
+	 * Opens an index saved by <code>save()</code>. The file is mapped instead of read, so opening it takes
+	 * about the same time whatever the size of the index, and the posting lists are loaded by the OS
+	 * as they are queried.
+	 * 
+	 * @param path The path to the index file.
+	 * @return The index.
+	 * @throws IOException If the file can't be mapped or isn't an index of a supported version.
+	 */
+	public static Indexer open(String path) throws IOException {
+		return new Indexer(MappedSegment.open(Paths.get(path)));
+	}
+	
+	/**
+	 * Writes this index to a file that can be opened by <code>open()</code>. The documents added are flushed
+	 * and all the segments are merged into one, which is written on a temporary file first, which then
+	 * replaces <code>path</code>.
+	 * 
+	 * @param path The path to the index file.
+	 * @throws IOException If there's a fault while writing the file.
+	 */
+	public void save(String path) throws IOException {
+		flush();
+		
+		IndexSnapshot current = snapshot.get();
+		Segment whole = current.segments.get(0);
+		int deleted = current.deleted(whole.firstDocumentId(), current.nextDocumentId());
+		
+		// the documents deleted before the segment was written are already out of its postings
+		if (whole.deletedDocuments() != null)
+			deleted -= whole.deletedDocuments().cardinality();
 		
-		Files.list(new File(path).toPath()).forEach(filePath -> {
-			String purgedFile = "";
+		if (current.segments.size() > 1 || deleted > 0) {
+			whole = MemorySegment.merge(current.segments, current.deleted);
 			
-			// skip hidden files
-			if (filePath.getFileName().toString().indexOf(".") == 0) return;
+			Segment merged = whole;
+			snapshot.updateAndGet(latest -> latest.withMerged(current.segments, merged));
+		}
+		
+		MappedSegment.write(whole, Paths.get(path));
+	}
+	
+	/**
+	 * Adds a document to the index. It is given the ID that follows the last one of the index, and it can
+	 * be queried once it is flushed, which happens on the background as soon as <code>getFlushThreshold()</code>
+	 * documents are waiting, or when <code>flush()</code> is called. If there already is a document with
+	 * the same name, it is deleted, so the new one replaces it.
+	 * 
+	 * @param name The file name of the document.
+	 * @param text The text of the document, which is read but not closed.
+	 * @throws IOException If an IO fault occurs while reading the text. The document is deleted then.
+	 */
+	public void addDocument(String name, Reader text) throws IOException {
+		HtmlTokeniser tokeniser = new HtmlTokeniser(false, true);
+		String baseName = baseName(name);
+		
+		// the text is read before the lock is taken, so a slow reader doesn't hold back the other writers
+		Set<String> terms = new HashSet<String>();
+		
+		try {
+			tokeniser.tokenise(text, (word, length) -> terms.add(new String(word, 0, length)));
+		} catch (IOException e) {
+			deleteDocument(baseName);
+			throw e;
+		}
+		
+		synchronized (writeLock) {
+			deleteDocument(baseName);
 			
-			// fail silently
-			try {
-				purgedFile = readFile(filePath, false);
-			} catch (Exception e) {
-				System.err.println("Error while indexing file " + filePath);
+			if (nextDocumentId < 0)
+				nextDocumentId = snapshot.get().nextDocumentId();
+			
+			if (pending == null)
+				pending = new Batch(nextDocumentId);
+			
+			Batch batch = pending;
+			int docId = nextDocumentId++;
+			batch.add(baseName, docId);
+			
+			for (String term : terms)
+				addPosting(batch.building, term, docId);
+			
+			if (batch.names.size() >= flushThreshold)
+				flushInBackground();
+		}
+	}
+	
+	/**
+	 * Deletes a document from the index. It stops matching the queries at once, although it only leaves the
+	 * segment it is on when the segment is merged.
+	 * 
+	 * @param name The file name of the document, with or without its extension.
+	 * @return <code>true</code> if the document was on the index, including the ones added but not flushed yet.
+	 */
+	public boolean deleteDocument(String name) {
+		name = baseName(name);
+		
+		synchronized (writeLock) {
+			int docId = (pending == null) ? -1 : pending.remove(name);
+			
+			// the batches being flushed are newer than the segments, and the names can't be changed anymore
+			for (int i = flushing.size() - 1; i >= 0 && docId < 0; i--) {
+				Integer flushed = flushing.get(i).ids.get(name);
+				
+				if (flushed != null && !snapshot.get().deleted.get(flushed))
+					docId = flushed;
 			}
 			
-			// add word to the inverted index and update it
-			for (String word : purgedFile.split("\\n")) {
-				if (invertedIndex.containsKey(word))
-					invertedIndex.get(word).set(docId, true);
-				else {
-					BitSet documents = new BitSet(docId + 1);
-					documents.set(docId);
-					
-					invertedIndex.put(word, documents);
-				}
+			if (docId < 0)
+				docId = snapshot.get().documentId(name);
+			
+			if (docId < 0) return false;
+			
+			int deleted = docId;
+			snapshot.updateAndGet(current -> current.withDeleted(deleted));
+			return true;
+		}
+	}
+	
+	/**
+	 * Makes all the documents added so far queryable, waiting for them to be written on a segment.
+	 */
+	public void flush() {
+		Future<?> flushing;
+		
+		synchronized (writeLock) {
+			if (pending != null)
+				flushInBackground();
+			
+			flushing = lastFlush;
+		}
+		
+		if (flushing == null) return;
+		
+		try {
+			flushing.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("The added documents couldn't be flushed.", e.getCause());
+		}
+	}
+	
+	/**
+	 * @return The amount of added documents buffered before they are written on a segment.
+	 */
+	public int getFlushThreshold() {
+		return flushThreshold;
+	}
+	
+	/**
+	 * @param documents The amount of added documents buffered before they are written on a segment.
+	 * Values lesser than 1 are ignored.
+	 */
+	public void setFlushThreshold(int documents) {
+		if (documents < 1) return;
+		
+		flushThreshold = documents;
+	}
+	
+	/**
+	 * @return The greatest amount of terms a wildcard is expanded to.
+	 */
+	public int getMaxExpansions() {
+		return maxExpansions;
+	}
+	
+	/**
+	 * @param terms The greatest amount of terms a wildcard is expanded to. If more terms match, the first ones
+	 * in alphabetical order are queried. Values lesser than 1 are ignored.
+	 */
+	public void setMaxExpansions(int terms) {
+		if (terms < 1) return;
+		
+		maxExpansions = terms;
+		clearCache();
+	}
+	
+	/**
+	 * Replaces the query cache by an empty one, whose counters start from 0.
+	 * @param bytes The greatest amount of bytes taken by the cached results, or 0 to evaluate every query.
+	 * Negative values are ignored.
+	 */
+	public void setQueryCacheSize(long bytes) {
+		if (bytes < 0) return;
+		
+		cache = (bytes == 0) ? null : new QueryCache(bytes);
+	}
+	
+	/**
+	 * @return The amount of queries whose result was read from the cache.
+	 */
+	public long getCacheHits() {
+		QueryCache current = cache;
+		return (current == null) ? 0 : current.hits();
+	}
+	
+	/**
+	 * @return The amount of queries that were evaluated because their result wasn't cached.
+	 */
+	public long getCacheMisses() {
+		QueryCache current = cache;
+		return (current == null) ? 0 : current.misses();
+	}
+	
+	/**
+	 * @return The amount of results dropped from the cache to make room for others. The results dropped because
+	 * the index changed aren't counted.
+	 */
+	public long getCacheEvictions() {
+		QueryCache current = cache;
+		return (current == null) ? 0 : current.evictions();
+	}
+	
+	private void clearCache() {
+		QueryCache current = cache;
+		
+		if (current != null)
+			current.clear();
+	}
+	
+	/**
+	 * @return The amount of documents that can be queried, the deleted ones and the ones not flushed yet left out.
+	 */
+	public int getDocumentCount() {
+		return snapshot.get().documentCount();
+	}
+	
+	/*
+	 * Hands the buffered documents to the background thread, which encodes them on a segment, publishes it
+	 * and merges the segments. Must be called holding writeLock
+	 */
+	private void flushInBackground() {
+		Batch batch = pending;
+		pending = null;
+		flushing.add(batch);
+		
+		if (background == null)
+			background = Executors.newSingleThreadExecutor(task -> {
+				Thread thread = new Thread(task, "indexer-flush");
+				thread.setDaemon(true);
+				return thread;
+			});
+		
+		lastFlush = background.submit(() -> {
+			Segment flushed = encode(batch.building, batch.names, batch.firstDocumentId);
+			snapshot.updateAndGet(current -> current.withSegment(flushed));
+			
+			synchronized (writeLock) {
+				flushing.remove(batch);
 			}
 			
-			docId++;
+			merge();
 		});
 	}
 	
+	/*
+	 * The merge policy, run on the background thread after each flush. Each segment has a level, the amount
+	 * of times its documents could have been merged: log(documents / flushThreshold) in base MERGE_FACTOR.
+	 * Whenever the last MERGE_FACTOR segments have the same level they are merged into one of the next level,
+	 * so each document is merged O(log n) times. A segment with more than MAX_DELETED_RATIO of its documents
+	 * deleted is rewritten on its own
+	 */
+	private void merge() {
+		while (true) {
+			IndexSnapshot current = snapshot.get();
+			List<Segment> merged = null;
+			
+			for (Segment segment : current.segments) {
+				int documents = segment.documentNames().size();
+				int deleted = current.deleted(segment.firstDocumentId(), segment.firstDocumentId() + documents);
+				
+				// the documents deleted before the segment was written are already out of its postings
+				if (segment.deletedDocuments() != null) {
+					documents -= segment.deletedDocuments().cardinality();
+					deleted -= segment.deletedDocuments().cardinality();
+				}
+				
+				if (deleted > 0 && deleted > documents * MAX_DELETED_RATIO) {
+					merged = new ArrayList<Segment>(1);
+					merged.add(segment);
+					break;
+				}
+			}
+			
+			int count = current.segments.size();
+			
+			if (merged == null && count >= MERGE_FACTOR) {
+				List<Segment> last = current.segments.subList(count - MERGE_FACTOR, count);
+				int level = level(current, last.get(0));
+				
+				for (Segment segment : last)
+					if (level(current, segment) != level)
+						level = -1;
+				
+				if (level >= 0)
+					merged = new ArrayList<Segment>(last);
+			}
+			
+			if (merged == null) return;
+			
+			List<Segment> segments = merged;
+			Segment into = MemorySegment.merge(segments, current.deleted);
+			
+			// deletions made meanwhile are kept, as the snapshot being replaced may not be current anymore
+			snapshot.updateAndGet(latest -> latest.withMerged(segments, into));
+		}
+	}
+	
+	private int level(IndexSnapshot current, Segment segment) {
+		int documents = segment.documentNames().size();
+		documents -= current.deleted(segment.firstDocumentId(), segment.firstDocumentId() + documents);
+		
+		int level = 0;
+		for (long size = (long) flushThreshold * MERGE_FACTOR; documents >= size; size *= MERGE_FACTOR)
+			level++;
+		
+		return level;
+	}
+	
+	/**
+	 * Makes the entities of <code>entities</code> queryable through this index, by their keys.
+	 * @param entities An entity index whose document IDs match the ones of this index, usually built
+	 * with <code>getDocumentId</code>.
+	 */
+	public void attachEntityIndex(EntityIndex entities) {
+		this.entities = entities;
+		clearCache();
+	}
+	
+	/**
+	 * Makes phrases and NEAR queryable through <code>query()</code>.
+	 * @param positions A positional index whose document IDs match the ones of this index, usually built
+	 * with <code>getDocumentId</code>.
+	 */
+	public void attachPositionalIndex(PositionalIndex positions) {
+		this.positions = positions;
+		clearCache();
+	}
+	
+	/**
+	 * @param name The file name of a document, with or without its extension.
+	 * @return The ID given to the document, or -1 if it wasn't indexed.
+	 */
+	public int getDocumentId(String name) {
+		return snapshot.get().documentId(baseName(name));
+	}
+	
+	/**
+	 * Returns the file name of a document, read from the compressed name store of the index, so it doesn't
+	 * depend on the files being numbered nor on the corpus being available.
+	 * @param docId The ID of a document, as returned by the queries.
+	 * @return The file name of the document, without its extension, or <code>null</code> if there is no
+	 * document with that ID or it was deleted.
+	 */
+	public String getDocumentName(int docId) {
+		return snapshot.get().documentName(docId);
+	}
+	
+	private static String baseName(String name) {
+		int extension = name.lastIndexOf('.');
+		return (extension > 0) ? name.substring(0, extension) : name;
+	}
+	
+	/*
+	 * The documents of a term on a snapshot, which may be an entity key if an entity index is attached, or a
+	 * wildcard. The deleted documents are included, they are left out of the result of the whole query.
+	 * Returns null if there are none
+	 */
+	private Postings postings(IndexSnapshot current, String term) {
+		if (entities != null && EntityIndex.isEntityKey(term))
+			return entities.postings(term);
+		
+		if (TermDictionary.isWildcard(term))
+			return TermDictionary.isExpandable(term) ? current.expand(term, maxExpansions) : null;
+		
+		return current.postings(term);
+	}
+	
+	/*
+	 * The documents of a query result that weren't deleted, formatted. Returns null if there are none
+	 */
+	private static String format(IndexSnapshot current, PostingIterator documents) {
+		return PostingList.format(current.deleted.isEmpty() ? documents : PostingIterators.live(documents, current.deleted));
+	}
+	
 	/**
 	 * Returns a list with the ID of the documents that contains the term <code>word</code>.
 	 * This method is case insensitive.
@@ -110,9 +613,11 @@ public class Indexer {
 		word = isInvalidString(word);
 		if (word == null)
 			throw new IndexerException("Invalid empty query.");
-
-		if (invertedIndex.containsKey(word))
-			return invertedIndex.get(word).toString();
+		
+		IndexSnapshot current = snapshot.get();
+		Postings documents = postings(current, word);
+		if (documents != null)
+			return format(current, documents.iterator());
 		return null;
 	}
 	
@@ -124,30 +629,28 @@ public class Indexer {
 	 * @throws IndexerException if any element of the query is an empty string or <code>null</code>. 
 	 */
 	public String andQuery(String[] words) throws IndexerException {
-		BitSet result = null;
+		IndexSnapshot current = snapshot.get();
+		List<PostingIterator> iterators = new ArrayList<PostingIterator>();
+		boolean missing = false;
 		
 		for (int i = 0; i < words.length; i++) {
 			
-			words[i] = isInvalidString(words[i]);
-			if (words[i] == null)
+			String word = isInvalidString(words[i]);
+			if (word == null)
 				throw new IndexerException("The term number " + i + " is invalid.");
 			
-			// 0 (AND) X = 0; X = anything
-			if (!invertedIndex.containsKey(words[i])) {
-				if (result != null) 
-					result.clear();
-			}
-			else {
-				if (result == null)
-					result = (BitSet) invertedIndex.get(words[i]).clone();
-				else
-					result.and(invertedIndex.get(words[i]));
-			}
+			Postings documents = postings(current, word);
+			
+			if (documents == null)
+				missing = true;
+			else
+				iterators.add(documents.iterator());
 		}
 		
-		if (result == null || result.cardinality() == 0) return null;
+		// 0 (AND) X = 0; X = anything
+		if (missing || iterators.isEmpty()) return null;
 		
-		return result.toString();
+		return format(current, PostingIterators.and(iterators));
 	}
 	
 	/**
@@ -158,25 +661,24 @@ public class Indexer {
 	 * @throws IndexerException if any element of the query is an empty string or <code>null</code>. 
 	 */
 	public String orQuery(String[] words) throws IndexerException {
-		BitSet result = null;
+		IndexSnapshot current = snapshot.get();
+		List<PostingIterator> iterators = new ArrayList<PostingIterator>();
 		
 		for (int i = 0; i < words.length; i++) {
-			words[i] = isInvalidString(words[i]);
-			if (words[i] == null)
+			String word = isInvalidString(words[i]);
+			if (word == null)
 				throw new IndexerException("The term number " + i + " is invalid.");
 			
+			Postings documents = postings(current, word);
+			
 			// 0 (OR) X = X; X = anything
-			if (invertedIndex.containsKey(words[i])) {
-				if (result == null)
-					result = (BitSet) invertedIndex.get(words[i]).clone();
-				else
-					result.or(invertedIndex.get(words[i]));
-			}
+			if (documents != null)
+				iterators.add(documents.iterator());
 		}
 		
-		if (result == null || result.cardinality() == 0) return null;
+		if (iterators.isEmpty()) return null;
 		
-		return result.toString();
+		return format(current, PostingIterators.or(iterators));
 	}
 	
 	/**
@@ -190,32 +692,92 @@ public class Indexer {
 		if (words.length < 2)
 			throw new IndexerException("At least two terms must be queried");
 		
-		words[0] = isInvalidString(words[0]);
-		if (words[0] == null)
+		String first = isInvalidString(words[0]);
+		if (first == null)
 			throw new IndexerException("The first term of the query is invalid.");
-			
-		BitSet toReturn = (BitSet) invertedIndex.get(words[0]).clone();
-		if (toReturn == null) return null;
+		
+		IndexSnapshot current = snapshot.get();
+		Postings include = postings(current, first);
+		if (include == null) return null;
+		
+		List<PostingIterator> excluded = new ArrayList<PostingIterator>();
 		
 		for (int i = 1; i < words.length; i++) {
-			words[i] = isInvalidString(words[i]);
-			if (words[i] == null)
+			String word = isInvalidString(words[i]);
+			if (word == null)
 				throw new IndexerException("The term number " + i + " is invalid.");
 			
-			if (!invertedIndex.containsKey(words[i]))
-				continue;
-			
-			//finds ~B
-			BitSet currentSearch = (BitSet) invertedIndex.get(words[i]).clone();
-			currentSearch.flip(0, currentSearch.size());
-			
-			//computes A & ~B
-			toReturn.and(currentSearch);
+			Postings documents = postings(current, word);
+			if (documents != null)
+				excluded.add(documents.iterator());
 		}
 		
-		// complying with Javadoc
-		if (toReturn.cardinality() == 0) return null;
-		return toReturn.toString();
+		if (excluded.isEmpty())
+			return format(current, include.iterator());
+		
+		// A & ~B, without ever building ~B
+		return format(current, PostingIterators.andNot(include.iterator(), PostingIterators.or(excluded)));
+	}
+	
+	/**
+	 * Returns a list with the ID of all the documents that match a boolean query, which may mix AND, OR and
+	 * NOT with parentheses, as in <code>heart (attack OR failure) NOT surgery</code>. Operands with no operator
+	 * between them are AND-ed. If a positional index is attached, the query may also have phrases and proximity
+	 * operators, as in <code>"heart attack" NOT surgery</code> or <code>heart NEAR/3 failure</code>. The query
+	 * is planned before it is evaluated, so its cost depends on its most selective terms instead of its most
+	 * frequent ones.
+	 * @param query The query, case insensitive.
+	 * @return A String with the ID of each matched document. If none is found, <code>null</code>
+	 * is returned.
+	 * @throws IndexerException if the query is empty or malformed, or has a phrase but no positional index is attached.
+	 */
+	public String query(String query) throws IndexerException {
+		PostingIterator documents = compile(query).apply(null);
+		return (documents == null) ? null : PostingList.format(documents);
+	}
+	
+	/**
+	 * Evaluates a query of the language of <code>query()</code>, without collecting the matched documents:
+	 * they are read from the posting lists as the result is iterated or paged, so the memory taken by the
+	 * result depends on the size of the page and not on the amount of documents that match.
+	 * @param query The query, case insensitive.
+	 * @return The documents that match the query, which may be none.
+	 * @throws IndexerException if the query is empty or malformed, or has a phrase but no positional index is attached.
+	 */
+	public QueryResult search(String query) throws IndexerException {
+		return new QueryResult(compile(query));
+	}
+	
+	/*
+	 * Parses a query, giving a new plan of it on each call, or its cached result, checking the deadline it is
+	 * given, if any. All the plans read the snapshot that was current when the query was parsed, so every page
+	 * of a result is taken from the same documents, and the cache entries belong to that snapshot
+	 */
+	private Function<PostingIterators.Deadline, PostingIterator> compile(String query) throws IndexerException {
+		QueryNode root = QueryParser.parse(query);
+		
+		if (positions == null && root.needsPositions())
+			throw new IndexerException("Phrases and NEAR can only be queried on an index with positions.");
+		
+		IndexSnapshot current = snapshot.get();
+		Function<String, PositionList> positionLists = (positions == null) ? null : positions::positions;
+		QueryCache results = cache;
+		String key = root.canonical();
+		
+		// the cache counts the query once, on its first read
+		AtomicBoolean read = new AtomicBoolean();
+		
+		return deadline -> {
+			PostingIterator cached = (results == null) ? null : results.get(current.version, key, read.compareAndSet(false, true));
+			if (cached != null) return (deadline == null) ? cached : PostingIterators.withDeadline(cached, deadline);
+			
+			PostingIterator documents = new QueryPlanner(term -> postings(current, term), current::universe, positionLists, deadline).plan(root);
+			
+			if (documents != null && !current.deleted.isEmpty())
+				documents = PostingIterators.live(documents, current.deleted);
+			
+			return (results == null) ? documents : results.record(current.version, key, documents);
+		};
 	}
 	
 	/*
@@ -236,9 +798,117 @@ public class Indexer {
 	public String toString() {
 		StringBuilder buffer = new StringBuilder();
 		
-		for (Entry<String, BitSet> entry : invertedIndex.entrySet())
-			buffer.append(entry.getKey() + " -> " + entry.getValue() + '\n');
+		for (Segment segment : snapshot.get().segments)
+			segment.forEachTerm((term, documents) -> buffer.append(term + " -> " + documents + '\n'));
 		
 		return buffer.toString();
 	}
+	
+	/*
+	 * Documents added one after the other, which are written on the same segment
+	 */
+	private static class Batch {
+		final Map<String, PostingListBuilder> building = new HashMap<String, PostingListBuilder>();
+		final List<String> names = new ArrayList<String>();
+		final int firstDocumentId;
+		
+		/* The ID of each name that wasn't deleted */
+		final Map<String, Integer> ids = new HashMap<String, Integer>();
+		
+		Batch(int firstDocumentId) {
+			this.firstDocumentId = firstDocumentId;
+		}
+		
+		void add(String name, int docId) {
+			names.add(name);
+			ids.put(name, docId);
+		}
+		
+		/*
+		 * Forgets the name of a document, so the name of a live document is never repeated on a segment.
+		 * Returns the ID of the document, or -1 if it isn't on this batch
+		 */
+		int remove(String name) {
+			Integer docId = ids.remove(name);
+			if (docId == null) return -1;
+			
+			names.set(docId - firstDocumentId, "");
+			return docId;
+		}
+	}
+	
+	/*
+	 * Indexes files[from, to) on a partial index. The document IDs depend only on the position of each file
+	 */
+	private static class IndexTask extends RecursiveTask<Map<String, PostingListBuilder>> {
+		private static final long serialVersionUID = 1L;
+		
+		private final List<File> files;
+		private final int from, to;
+		
+		IndexTask(List<File> files, int from, int to) {
+			this.files = files;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected Map<String, PostingListBuilder> compute() {
+			if (to - from <= FILES_PER_TASK) {
+				Map<String, PostingListBuilder> building = new HashMap<String, PostingListBuilder>();
+				HtmlTokeniser tokeniser = new HtmlTokeniser(false, true);
+				
+				for (int i = from; i < to; i++) {
+					int docId = INITIAL_ID_COUNTER + i;
+					
+					// fail silently, as the sequential build does
+					try {
+						tokeniser.tokenise(files.get(i).toPath(), (word, length) -> addPosting(building, new String(word, 0, length), docId));
+					} catch (IOException e) {
+						System.err.println("Error while indexing file " + files.get(i).getName());
+					}
+				}
+				
+				return building;
+			}
+			
+			int middle = (from + to) >>> 1;
+			IndexTask left = new IndexTask(files, from, middle);
+			left.fork();
+			
+			Map<String, PostingListBuilder> right = new IndexTask(files, middle, to).compute();
+			return merge(left.join(), right);
+		}
+		
+		/*
+		 * All the documents of left come before the ones of right, so appending keeps the lists sorted.
+		 * The terms of the smallest map are moved into the biggest one
+		 */
+		private static Map<String, PostingListBuilder> merge(Map<String, PostingListBuilder> left, 
+				Map<String, PostingListBuilder> right) {
+			if (left.size() >= right.size()) {
+				for (Entry<String, PostingListBuilder> entry : right.entrySet()) {
+					PostingListBuilder documents = left.get(entry.getKey());
+					
+					if (documents == null)
+						left.put(entry.getKey(), entry.getValue());
+					else
+						documents.addAll(entry.getValue());
+				}
+				
+				return left;
+			}
+			
+			for (Entry<String, PostingListBuilder> entry : left.entrySet()) {
+				PostingListBuilder documents = right.get(entry.getKey());
+				
+				if (documents != null)
+					entry.getValue().addAll(documents);
+				
+				right.put(entry.getKey(), entry.getValue());
+			}
+			
+			return right;
+		}
+	}
 }
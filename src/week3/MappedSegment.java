@@ -0,0 +1,316 @@
+package week3;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * A segment read from a file through <code>FileChannel.map()</code>. Opening it only checks its header:
+ * terms are found by a binary search over the term table on the mapped file and their posting lists are
+ * read straight from it, so the heap holds no per-term object and the pages are shared, through the
+ * OS page cache, by every process that maps the same file.
+ *
+ * Layout, all integers big endian:
+ * - header: int magic, int version, int first document ID, int documents, int terms,
+ *   int term table offset, int names offset, int deleted documents offset (0 if there are none), int file length;
+ * - the posting lists, one after the other, as encoded by <code>PostingList</code>;
+ * - the terms, each one as an unsigned short length followed by its UTF-8 bytes;
+ * - the term table, sorted by the bytes of the terms: terms x (int term offset, int postings offset, int postings length);
+ * - the document names, in the order of their IDs, front coded as written by <code>DocumentNameStore</code>;
+ * - the deleted documents, if there are any, as encoded by <code>PostingList</code>.
+ *
+ * A single mapping is limited to 2 GB, which is also the limit of a segment file.
+ *
+ * @author Luiz Felix
+ */
+class MappedSegment implements Segment {
+	private static final int MAGIC = 0x494E5853;
+	private static final int VERSION = 3;
+	private static final int HEADER_SIZE = 36;
+	private static final int TABLE_ENTRY_SIZE = 12;
+	
+	private final ByteBuffer buffer;
+	private final int firstDocumentId;
+	private final int termCount;
+	private final int termTable;
+	private final DocumentNameStore documentNames;
+	private final PostingList deletedDocuments;
+	
+	/* Only built if a wildcard is queried, on any thread. It is kept on the heap, not on the file */
+	private volatile TermDictionary terms;
+	
+	private MappedSegment(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+			throw new IOException("Not an index segment.");
+		if (buffer.getInt(4) != VERSION)
+			throw new IOException("Unsupported index segment version " + buffer.getInt(4) + ".");
+		if (buffer.getInt(32) != buffer.limit())
+			throw new IOException("Truncated index segment.");
+		
+		this.firstDocumentId = buffer.getInt(8);
+		this.termCount = buffer.getInt(16);
+		this.termTable = buffer.getInt(20);
+		
+		int deleted = buffer.getInt(28);
+		
+		ByteBuffer names = buffer.duplicate();
+		names.position(buffer.getInt(24));
+		names.limit((deleted == 0) ? buffer.limit() : deleted);
+		this.documentNames = new DocumentNameStore(names.slice());
+		
+		if (deleted == 0)
+			this.deletedDocuments = null;
+		else {
+			ByteBuffer slice = buffer.duplicate();
+			slice.position(deleted);
+			this.deletedDocuments = PostingList.open(slice.slice());
+		}
+	}
+	
+	/**
+	 * Maps a segment file.
+	 * @param path The path to the file.
+	 * @return The segment, which reads from the mapped file.
+	 * @throws IOException If the file can't be mapped or isn't a segment of a supported version.
+	 */
+	static MappedSegment open(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Index segments are limited to 2 GB.");
+			
+			// the mapping stays valid once the channel is closed
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new MappedSegment(mapped);
+		}
+	}
+	
+	/**
+	 * Writes a segment to a temporary file, which then replaces <code>path</code>, so a reader never maps
+	 * a half-written segment.
+	 * @param segment The segment to be written.
+	 * @param path Where to write it.
+	 * @throws IOException If there's a fault while writing the file.
+	 */
+	static void write(Segment segment, Path path) throws IOException {
+		List<byte[]> terms = new ArrayList<>(segment.termCount());
+		List<PostingList> postings = new ArrayList<>(segment.termCount());
+		
+		segment.forEachTerm((term, documents) -> {
+			terms.add(term.getBytes(StandardCharsets.UTF_8));
+			postings.add(documents);
+		});
+		
+		// sorting the positions, so the terms and their postings stay together
+		Integer[] order = new Integer[terms.size()];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		
+		Arrays.sort(order, (a, b) -> compare(terms.get(a), terms.get(b)));
+		
+		ByteBuffer documentNames = segment.documentNames().encoded();
+		
+		// all the offsets are known beforehand, so the file is written in a single pass
+		long postingsSize = 0;
+		long termsSize = 0;
+		
+		for (int i = 0; i < order.length; i++) {
+			postingsSize += postings.get(i).sizeInBytes();
+			termsSize += 2 + checkLength(terms.get(i));
+		}
+		
+		long termTable = HEADER_SIZE + postingsSize + termsSize;
+		long names = termTable + (long) TABLE_ENTRY_SIZE * order.length;
+		PostingList deletedDocuments = segment.deletedDocuments();
+		long deleted = (deletedDocuments == null) ? 0 : names + documentNames.remaining();
+		long length = names + documentNames.remaining() + ((deletedDocuments == null) ? 0 : deletedDocuments.sizeInBytes());
+		
+		if (length > Integer.MAX_VALUE)
+			throw new IOException("Index segments are limited to 2 GB.");
+		
+		Path temporary = path.toAbsolutePath().resolveSibling(path.getFileName() + ".tmp");
+		
+		try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeInt(segment.firstDocumentId());
+			output.writeInt(segment.documentNames().size());
+			output.writeInt(order.length);
+			output.writeInt((int) termTable);
+			output.writeInt((int) names);
+			output.writeInt((int) deleted);
+			output.writeInt((int) length);
+			
+			for (Integer i : order) {
+				ByteBuffer encoded = postings.get(i).encoded();
+				output.write(toArray(encoded));
+			}
+			
+			for (Integer i : order) {
+				output.writeShort(terms.get(i).length);
+				output.write(terms.get(i));
+			}
+			
+			int postingsOffset = HEADER_SIZE;
+			int termOffset = (int) (HEADER_SIZE + postingsSize);
+			
+			for (Integer i : order) {
+				int size = postings.get(i).sizeInBytes();
+				
+				output.writeInt(termOffset);
+				output.writeInt(postingsOffset);
+				output.writeInt(size);
+				
+				termOffset += 2 + terms.get(i).length;
+				postingsOffset += size;
+			}
+			
+			output.write(toArray(documentNames));
+			
+			if (deletedDocuments != null)
+				output.write(toArray(deletedDocuments.encoded()));
+		}
+		
+		Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	private static int checkLength(byte[] bytes) throws IOException {
+		if (bytes.length > 0xFFFF)
+			throw new IOException("Terms are limited to 65535 bytes.");
+		
+		return bytes.length;
+	}
+	
+	private static byte[] toArray(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+	
+	/*
+	 * Unsigned byte order, which is also the order of the code points of UTF-8 strings
+	 */
+	static int compare(byte[] a, byte[] b) {
+		int length = Math.min(a.length, b.length);
+		
+		for (int i = 0; i < length; i++)
+			if (a[i] != b[i])
+				return (a[i] & 0xFF) - (b[i] & 0xFF);
+		
+		return a.length - b.length;
+	}
+	
+	/*
+	 * Compares the term on the given entry of the term table with key
+	 */
+	private int compare(int entry, byte[] key) {
+		int offset = buffer.getInt(termTable + TABLE_ENTRY_SIZE * entry);
+		int length = buffer.getShort(offset) & 0xFFFF;
+		int common = Math.min(length, key.length);
+		
+		offset += 2;
+		
+		for (int i = 0; i < common; i++) {
+			int difference = (buffer.get(offset + i) & 0xFF) - (key[i] & 0xFF);
+			if (difference != 0) return difference;
+		}
+		
+		return length - key.length;
+	}
+	
+	/*
+	 * Decodes an unsigned short length followed by that many UTF-8 bytes
+	 */
+	private String readString(int offset) {
+		byte[] bytes = new byte[buffer.getShort(offset) & 0xFFFF];
+		
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = buffer.get(offset + 2 + i);
+		
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	private PostingList postingsAt(int entry) {
+		int offset = buffer.getInt(termTable + TABLE_ENTRY_SIZE * entry + 4);
+		int length = buffer.getInt(termTable + TABLE_ENTRY_SIZE * entry + 8);
+		
+		ByteBuffer slice = buffer.duplicate();
+		slice.position(offset);
+		slice.limit(offset + length);
+		
+		return PostingList.open(slice.slice());
+	}
+	
+	@Override
+	public PostingList postings(String term) {
+		byte[] key = term.getBytes(StandardCharsets.UTF_8);
+		int low = 0;
+		int high = termCount - 1;
+		
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int comparison = compare(middle, key);
+			
+			if (comparison < 0)
+				low = middle + 1;
+			else if (comparison > 0)
+				high = middle - 1;
+			else
+				return postingsAt(middle);
+		}
+		
+		return null;
+	}
+	
+	@Override
+	public int termCount() {
+		return termCount;
+	}
+	
+	@Override
+	public void forEachTerm(BiConsumer<String, PostingList> consumer) {
+		for (int entry = 0; entry < termCount; entry++)
+			consumer.accept(readString(buffer.getInt(termTable + TABLE_ENTRY_SIZE * entry)), postingsAt(entry));
+	}
+	
+	@Override
+	public TermDictionary terms() {
+		if (terms == null)
+			terms = TermDictionary.of(this);
+		
+		return terms;
+	}
+	
+	@Override
+	public DocumentNameStore documentNames() {
+		return documentNames;
+	}
+	
+	@Override
+	public PostingList deletedDocuments() {
+		return deletedDocuments;
+	}
+	
+	@Override
+	public int firstDocumentId() {
+		return firstDocumentId;
+	}
+	
+	@Override
+	public long sizeInBytes() {
+		return buffer.limit();
+	}
+}
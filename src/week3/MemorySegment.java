@@ -0,0 +1,155 @@
+package week3;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.function.BiConsumer;
+
+/**
+ * A segment built in memory by <code>Indexer</code>, with its terms on a <code>HashMap</code>, either from
+ * new documents or by merging segments.
+ *
+ * @author Luiz Felix
+ */
+class MemorySegment implements Segment {
+	private final Map<String, PostingList> invertedIndex;
+	private final DocumentNameStore documentNames;
+	private final int firstDocumentId;
+	private final PostingList deletedDocuments;
+	
+	/* Only built if a wildcard is queried, on any thread */
+	private volatile TermDictionary terms;
+	
+	/**
+	 * @param invertedIndex The documents of each term.
+	 * @param documentNames The names of the documents, in the order of their IDs.
+	 * @param firstDocumentId The ID of the first document.
+	 */
+	MemorySegment(Map<String, PostingList> invertedIndex, DocumentNameStore documentNames, int firstDocumentId) {
+		this(invertedIndex, documentNames, firstDocumentId, null);
+	}
+	
+	/**
+	 * @param invertedIndex The documents of each term.
+	 * @param documentNames The names of the documents, in the order of their IDs.
+	 * @param firstDocumentId The ID of the first document.
+	 * @param deletedDocuments The deleted documents, or <code>null</code> if there are none.
+	 */
+	MemorySegment(Map<String, PostingList> invertedIndex, DocumentNameStore documentNames, int firstDocumentId, 
+			PostingList deletedDocuments) {
+		this.invertedIndex = invertedIndex;
+		this.documentNames = documentNames;
+		this.firstDocumentId = firstDocumentId;
+		this.deletedDocuments = deletedDocuments;
+	}
+	
+	/**
+	 * Merges consecutive segments into one, leaving the deleted documents out of the posting lists. The
+	 * documents keep their IDs, so the deleted ones keep their place on the names, with an empty name, and
+	 * on the deleted list of the new segment.
+	 * @param segments Segments whose IDs follow each other, in increasing order of ID.
+	 * @param deleted The IDs of the deleted documents, which may cover other segments too.
+	 * @return The merged segment.
+	 */
+	static MemorySegment merge(List<Segment> segments, BitSet deleted) {
+		Map<String, PostingListBuilder> building = new HashMap<String, PostingListBuilder>();
+		List<String> names = new ArrayList<String>();
+		PostingListBuilder removed = new PostingListBuilder();
+		
+		int first = segments.get(0).firstDocumentId();
+		
+		for (Segment segment : segments) {
+			// the terms of each segment are added after the ones of the previous segment, so the lists stay sorted
+			segment.forEachTerm((term, documents) -> {
+				PostingIterator iterator = PostingIterators.live(documents.iterator(), deleted);
+				PostingListBuilder builder = null;
+				
+				for (int docId = iterator.nextDoc(); docId != PostingIterator.NO_MORE_DOCS; docId = iterator.nextDoc()) {
+					if (builder == null) {
+						builder = building.get(term);
+						
+						if (builder == null) {
+							builder = new PostingListBuilder();
+							building.put(term, builder);
+						}
+					}
+					
+					builder.add(docId);
+				}
+			});
+			
+			DocumentNameStore segmentNames = segment.documentNames();
+			
+			for (int i = 0; i < segmentNames.size(); i++) {
+				// the name of a deleted document is dropped, so it can't shadow a document added later with it
+				if (deleted.get(segment.firstDocumentId() + i)) {
+					names.add("");
+					removed.add(segment.firstDocumentId() + i);
+				}
+				else
+					names.add(segmentNames.name(i));
+			}
+		}
+		
+		Map<String, PostingList> invertedIndex = new HashMap<String, PostingList>(building.size() * 2);
+		
+		for (Entry<String, PostingListBuilder> entry : building.entrySet())
+			invertedIndex.put(entry.getKey(), entry.getValue().build());
+		
+		return new MemorySegment(invertedIndex, DocumentNameStore.of(names), first, 
+				(removed.size() == 0) ? null : removed.build());
+	}
+	
+	@Override
+	public PostingList postings(String term) {
+		return invertedIndex.get(term);
+	}
+	
+	@Override
+	public int termCount() {
+		return invertedIndex.size();
+	}
+	
+	@Override
+	public void forEachTerm(BiConsumer<String, PostingList> consumer) {
+		for (Entry<String, PostingList> entry : invertedIndex.entrySet())
+			consumer.accept(entry.getKey(), entry.getValue());
+	}
+	
+	@Override
+	public TermDictionary terms() {
+		if (terms == null)
+			terms = TermDictionary.of(this);
+		
+		return terms;
+	}
+	
+	@Override
+	public DocumentNameStore documentNames() {
+		return documentNames;
+	}
+	
+	@Override
+	public PostingList deletedDocuments() {
+		return deletedDocuments;
+	}
+	
+	@Override
+	public int firstDocumentId() {
+		return firstDocumentId;
+	}
+	
+	@Override
+	public long sizeInBytes() {
+		long size = 0;
+		
+		for (Entry<String, PostingList> entry : invertedIndex.entrySet())
+			size += entry.getKey().getBytes(StandardCharsets.UTF_8).length + entry.getValue().sizeInBytes();
+		
+		return size;
+	}
+}
@@ -0,0 +1,200 @@
+package week3;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stores the gaps between consecutive document IDs in blocks of <code>BLOCK_SIZE</code>. Each block is
+ * bit-packed with the width of its largest gap, so a block of close IDs takes a few bits per document.
+ * A skip table with the last ID of every block lets <code>advance()</code> jump over whole blocks
+ * without decoding them.
+ *
+ * Layout: header | int blocks | blocks x (int last ID, int offset of the block) | blocks x (byte width, packed gaps)
+ *
+ * @author Luiz Felix
+ */
+class PackedPostingList extends PostingList {
+	static final int BLOCK_SIZE = 128;
+	
+	private static final int SKIP_TABLE = HEADER_SIZE + 4;
+	
+	private final int blocks;
+	
+	PackedPostingList(ByteBuffer buffer) {
+		super(buffer);
+		this.blocks = buffer.getInt(HEADER_SIZE);
+	}
+	
+	/*
+	 * The OR of every (gap - 1) of documents[from, to), which is as wide as the largest one, previous
+	 * being the document before from
+	 */
+	private static int maxGap(int[] documents, int from, int to, int previous) {
+		int max = 0;
+		
+		for (int i = from; i < to; i++) {
+			max |= documents[i] - previous - 1;
+			previous = documents[i];
+		}
+		
+		return max;
+	}
+	
+	private static int width(int maxGap) {
+		return 32 - Integer.numberOfLeadingZeros(maxGap);
+	}
+	
+	static int encodedSize(int[] documents, int length) {
+		int blocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		long size = SKIP_TABLE + 8L * blocks;
+		int previous = -1;
+		
+		for (int from = 0; from < length; from += BLOCK_SIZE) {
+			int to = Math.min(length, from + BLOCK_SIZE);
+			int bits = (to - from) * width(maxGap(documents, from, to, previous));
+			
+			size += 1 + 4 * ((bits + 31) / 32);
+			previous = documents[to - 1];
+		}
+		
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+	
+	static ByteBuffer encode(int[] documents, int length, int size) {
+		ByteBuffer buffer = allocate(PACKED, length, size);
+		int blocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		buffer.putInt(HEADER_SIZE, blocks);
+		
+		int offset = SKIP_TABLE + 8 * blocks;
+		int previous = -1;
+		
+		for (int block = 0, from = 0; from < length; block++, from += BLOCK_SIZE) {
+			int to = Math.min(length, from + BLOCK_SIZE);
+			int width = width(maxGap(documents, from, to, previous));
+			
+			buffer.putInt(SKIP_TABLE + 8 * block, documents[to - 1]);
+			buffer.putInt(SKIP_TABLE + 8 * block + 4, offset);
+			buffer.put(offset++, (byte) width);
+			
+			// the gaps are written from the lowest bits up
+			long bits = 0;
+			int used = 0;
+			
+			for (int i = from; i < to; i++) {
+				bits |= (long) (documents[i] - previous - 1) << used;
+				previous = documents[i];
+				used += width;
+				
+				if (used >= 32) {
+					buffer.putInt(offset, (int) bits);
+					offset += 4;
+					bits >>>= 32;
+					used -= 32;
+				}
+			}
+			
+			if (used > 0) {
+				buffer.putInt(offset, (int) bits);
+				offset += 4;
+			}
+		}
+		
+		return buffer;
+	}
+	
+	private int lastDocument(int block) {
+		return buffer.getInt(SKIP_TABLE + 8 * block);
+	}
+	
+	@Override
+	public PostingIterator iterator() {
+		return new PostingIterator() {
+			private final int[] decoded = new int[BLOCK_SIZE];
+			private int block = -1;
+			private int blockLength;
+			private int position;
+			private int docId = -1;
+			
+			@Override
+			public int docId() {
+				return docId;
+			}
+			
+			@Override
+			public int nextDoc() {
+				if (docId == NO_MORE_DOCS) return docId;
+				
+				if (++position >= blockLength) {
+					if (block + 1 == blocks)
+						return docId = NO_MORE_DOCS;
+					
+					decode(block + 1);
+				}
+				
+				return docId = decoded[position];
+			}
+			
+			@Override
+			public int advance(int target) {
+				if (docId == NO_MORE_DOCS) return docId;
+				
+				if (block < 0 || lastDocument(block) < target) {
+					// binary search on the skip table for the first block that may hold target
+					int low = block + 1;
+					int high = blocks - 1;
+					
+					if (low > high || lastDocument(high) < target)
+						return docId = NO_MORE_DOCS;
+					
+					while (low < high) {
+						int middle = (low + high) >>> 1;
+						
+						if (lastDocument(middle) < target)
+							low = middle + 1;
+						else
+							high = middle;
+					}
+					
+					decode(low);
+				}
+				
+				// the current block has a document >= target, as its last one is
+				while (decoded[position] < target)
+					position++;
+				
+				return docId = decoded[position];
+			}
+			
+			@Override
+			public int cost() {
+				return cardinality;
+			}
+			
+			private void decode(int next) {
+				int offset = buffer.getInt(SKIP_TABLE + 8 * next + 4);
+				int width = buffer.get(offset++);
+				int mask = (1 << width) - 1;
+				int previous = (next == 0) ? -1 : lastDocument(next - 1);
+				
+				blockLength = (next == blocks - 1) ? cardinality - next * BLOCK_SIZE : BLOCK_SIZE;
+				block = next;
+				position = 0;
+				
+				long bits = 0;
+				int available = 0;
+				
+				for (int i = 0; i < blockLength; i++) {
+					if (available < width) {
+						bits |= (buffer.getInt(offset) & 0xFFFFFFFFL) << available;
+						offset += 4;
+						available += 32;
+					}
+					
+					previous += ((int) bits & mask) + 1;
+					decoded[i] = previous;
+					bits >>>= width;
+					available -= width;
+				}
+			}
+		};
+	}
+}
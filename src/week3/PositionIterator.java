@@ -0,0 +1,21 @@
+package week3;
+
+/**
+ * A posting iterator that also gives the positions of the term on the current document. The positions
+ * are only decoded when they are asked for, so the documents skipped by a conjunction cost nothing.
+ *
+ * @author Luiz Felix
+ */
+interface PositionIterator extends PostingIterator {
+	/**
+	 * @return The amount of times the term occurs on the current document.
+	 */
+	int frequency();
+	
+	/**
+	 * Gives the positions of the term on the current document, in increasing order. The first word of a
+	 * document is on the position 0.
+	 * @return The next position. It must not be called more than <code>frequency()</code> times per document.
+	 */
+	int nextPosition();
+}
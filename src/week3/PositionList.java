@@ -0,0 +1,163 @@
+package week3;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The documents of a term along with the positions it occurs on each of them. Document gaps, frequencies
+ * and position gaps are written as variable-length integers (7 bits per byte), and the positions of each
+ * document are preceded by their size in bytes, so a document can be skipped without decoding them.
+ * Documents are grouped in blocks of <code>BLOCK_SIZE</code>, and a skip table with the last ID and the
+ * offset of every block lets <code>advance()</code> jump over whole blocks.
+ *
+ * Layout: int documents | int blocks | blocks x (int last ID, int offset of the block)
+ *         | documents x (vint gap, vint frequency, vint size of the positions, frequency x vint position gap)
+ *
+ * @author Luiz Felix
+ */
+class PositionList {
+	static final int BLOCK_SIZE = 64;
+	
+	private static final int SKIP_TABLE = 8;
+	
+	private final ByteBuffer buffer;
+	private final int documents;
+	private final int blocks;
+	
+	PositionList(ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.documents = buffer.getInt(0);
+		this.blocks = buffer.getInt(4);
+	}
+	
+	/**
+	 * @return The amount of documents where the term occurs.
+	 */
+	int cardinality() {
+		return documents;
+	}
+	
+	/**
+	 * @return The amount of bytes taken by the encoded list.
+	 */
+	int sizeInBytes() {
+		return buffer.capacity();
+	}
+	
+	private int lastDocument(int block) {
+		return buffer.getInt(SKIP_TABLE + 8 * block);
+	}
+	
+	private int blockOffset(int block) {
+		return buffer.getInt(SKIP_TABLE + 8 * block + 4);
+	}
+	
+	/**
+	 * @return A new iterator over the documents and positions of the term.
+	 */
+	PositionIterator iterator() {
+		return new PositionIterator() {
+			private int index = -1;
+			private int offset = (blocks == 0) ? 0 : blockOffset(0);
+			private int docId = -1;
+			private int frequency;
+			
+			/* Where the next position of the current document is read from */
+			private int positionOffset;
+			private int position;
+			
+			@Override
+			public int docId() {
+				return docId;
+			}
+			
+			@Override
+			public int nextDoc() {
+				if (docId == NO_MORE_DOCS) return docId;
+				
+				if (++index == documents)
+					return docId = NO_MORE_DOCS;
+				
+				docId += readVInt();
+				frequency = readVInt();
+				int size = readVInt();
+				
+				// the positions are skipped, and only read by nextPosition()
+				positionOffset = offset;
+				position = -1;
+				offset += size;
+				
+				return docId;
+			}
+			
+			@Override
+			public int advance(int target) {
+				if (docId == NO_MORE_DOCS) return docId;
+				
+				int block = Math.max(index, 0) / BLOCK_SIZE;
+				
+				if (lastDocument(block) < target) {
+					// binary search on the skip table for the first block that may hold target
+					int low = block + 1;
+					int high = blocks - 1;
+					
+					if (low > high || lastDocument(high) < target)
+						return docId = NO_MORE_DOCS;
+					
+					while (low < high) {
+						int middle = (low + high) >>> 1;
+						
+						if (lastDocument(middle) < target)
+							low = middle + 1;
+						else
+							high = middle;
+					}
+					
+					// positioned right before the first document of the block
+					index = low * BLOCK_SIZE - 1;
+					offset = blockOffset(low);
+					docId = lastDocument(low - 1);
+				}
+				
+				// the current block has a document >= target, as its last one is
+				while (nextDoc() < target);
+				
+				return docId;
+			}
+			
+			@Override
+			public int cost() {
+				return documents;
+			}
+			
+			@Override
+			public int frequency() {
+				return frequency;
+			}
+			
+			@Override
+			public int nextPosition() {
+				int value = 0;
+				
+				for (int shift = 0; ; shift += 7) {
+					byte b = buffer.get(positionOffset++);
+					value |= (b & 0x7F) << shift;
+					
+					if (b >= 0) break;
+				}
+				
+				return position += value;
+			}
+			
+			private int readVInt() {
+				int value = 0;
+				
+				for (int shift = 0; ; shift += 7) {
+					byte b = buffer.get(offset++);
+					value |= (b & 0x7F) << shift;
+					
+					if (b >= 0) return value;
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,120 @@
+package week3;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Collects the positions of a term while the positional index is built, before they are encoded as a
+ * <code>PositionList</code>. Documents must be added in increasing order of ID, and the positions of each
+ * document in increasing order, which is how a corpus is read.
+ *
+ * @author Luiz Felix
+ */
+class PositionListBuilder {
+	/* The documents encoded so far, without the skip table */
+	private byte[] bytes = new byte[16];
+	private int length;
+	private int documents;
+	
+	/* The last ID and the offset of each block */
+	private int[] skipTable = new int[2];
+	
+	/* The positions on the current document, which are only encoded once it ends */
+	private int[] positions = new int[4];
+	private int frequency;
+	private int document = -1;
+	private int lastEncoded = -1;
+	
+	/**
+	 * @param docId The document where the term occurs.
+	 * @param position The position of the term on the document.
+	 * @throws IllegalArgumentException If the document comes before the last one added.
+	 */
+	void add(int docId, int position) {
+		if (docId != document) {
+			if (docId < document)
+				throw new IllegalArgumentException("Documents must be added in increasing order: " + docId + " after " + document + ".");
+			
+			flush();
+			document = docId;
+		}
+		
+		if (frequency == positions.length)
+			positions = Arrays.copyOf(positions, frequency * 2);
+		
+		positions[frequency++] = position;
+	}
+	
+	/**
+	 * @return The encoded list of all the documents and positions added.
+	 */
+	PositionList build() {
+		flush();
+		
+		int blocks = (documents + PositionList.BLOCK_SIZE - 1) / PositionList.BLOCK_SIZE;
+		int header = 8 + 8 * blocks;
+		ByteBuffer buffer = ByteBuffer.allocate(header + length);
+		
+		buffer.putInt(documents).putInt(blocks);
+		for (int block = 0; block < blocks; block++)
+			buffer.putInt(skipTable[2 * block]).putInt(header + skipTable[2 * block + 1]);
+		
+		buffer.put(bytes, 0, length);
+		buffer.clear();
+		
+		return new PositionList(buffer);
+	}
+	
+	/*
+	 * Encodes the current document, if there is one
+	 */
+	private void flush() {
+		if (frequency == 0) return;
+		
+		int block = documents / PositionList.BLOCK_SIZE;
+		if (documents % PositionList.BLOCK_SIZE == 0) {
+			if (skipTable.length < 2 * (block + 1))
+				skipTable = Arrays.copyOf(skipTable, skipTable.length * 2);
+			
+			skipTable[2 * block + 1] = length;
+		}
+		
+		skipTable[2 * block] = document;
+		
+		int size = 0;
+		for (int i = 0, previous = -1; i < frequency; previous = positions[i++])
+			size += sizeOf(positions[i] - previous);
+		
+		writeVInt(document - lastEncoded);
+		writeVInt(frequency);
+		writeVInt(size);
+		
+		for (int i = 0, previous = -1; i < frequency; previous = positions[i++])
+			writeVInt(positions[i] - previous);
+		
+		lastEncoded = document;
+		documents++;
+		frequency = 0;
+	}
+	
+	private static int sizeOf(int value) {
+		int size = 1;
+		
+		while ((value >>>= 7) != 0)
+			size++;
+		
+		return size;
+	}
+	
+	private void writeVInt(int value) {
+		if (length + 5 > bytes.length)
+			bytes = Arrays.copyOf(bytes, bytes.length * 2);
+		
+		while ((value & ~0x7F) != 0) {
+			bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		
+		bytes[length++] = (byte) value;
+	}
+}
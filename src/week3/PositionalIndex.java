@@ -0,0 +1,99 @@
+package week3;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.function.ToIntFunction;
+
+import parsing.CorpusSource;
+import parsing.HtmlTokeniser;
+
+/**
+ * Indexes the position of every word of a corpus, so <code>Indexer</code> can answer phrase and proximity
+ * queries, such as <code>"heart attack"</code> or <code>heart NEAR/3 failure</code>, once this index is
+ * attached to it. The words are read the same way <code>Indexer</code> reads them, and the first word
+ * of each document is on the position 0.
+ *
+ * It takes several times the memory of the document index, so it is only built when phrases are needed.
+ *
+ * @author Luiz Felix
+ */
+public class PositionalIndex {
+	private Map<String, PositionList> positionalIndex;
+	
+	/* The positions of each term while the corpus is read */
+	private Map<String, PositionListBuilder> building = new HashMap<String, PositionListBuilder>();
+	
+	/**
+	 * Indexes the positions of the words of a corpus, taking the ID of each document from <code>documentIds</code>,
+	 * usually <code>Indexer::getDocumentId</code>. The documents must be read in increasing order of ID, which
+	 * is the case when the corpus is the one the <code>Indexer</code> was built from.
+	 *
+	 * @param corpus The documents to be indexed.
+	 * @param documentIds Gives the ID of a document from its name, or a negative value if the document
+	 * is unknown, in which case it is not indexed.
+	 * @throws IOException If an IO fault occurs while reading the corpus.
+	 */
+	public PositionalIndex(CorpusSource corpus, ToIntFunction<String> documentIds) throws IOException {
+		HtmlTokeniser tokeniser = new HtmlTokeniser(false, true);
+		
+		corpus.forEach(document -> {
+			int docId = documentIds.applyAsInt(document.getName());
+			if (docId < 0) return;
+			
+			int[] position = {0};
+			
+			// fail silently, as Indexer does
+			try {
+				tokeniser.tokenise(document.openReader(), (word, length) -> addPosition(new String(word, 0, length), docId, position[0]++));
+			} catch (IOException e) {
+				System.err.println("Error while indexing the positions of file " + document.getName());
+			}
+		});
+		
+		positionalIndex = new HashMap<String, PositionList>(building.size() * 2);
+		
+		for (Entry<String, PositionListBuilder> entry : building.entrySet())
+			positionalIndex.put(entry.getKey(), entry.getValue().build());
+		
+		building = null;
+	}
+	
+	private void addPosition(String word, int docId, int position) {
+		PositionListBuilder positions = building.get(word);
+		
+		if (positions == null) {
+			positions = new PositionListBuilder();
+			building.put(word, positions);
+		}
+		
+		positions.add(docId, position);
+	}
+	
+	/*
+	 * The documents and positions of a term, or null if it never occurs
+	 */
+	PositionList positions(String term) {
+		return positionalIndex.get(term);
+	}
+	
+	/**
+	 * @return The amount of distinct terms.
+	 */
+	public int size() {
+		return positionalIndex.size();
+	}
+	
+	/**
+	 * @return The amount of bytes taken by the position lists.
+	 */
+	public long sizeInBytes() {
+		long size = 0;
+		
+		for (PositionList positions : positionalIndex.values())
+			size += positions.sizeInBytes();
+		
+		return size;
+	}
+}
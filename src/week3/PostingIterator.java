@@ -0,0 +1,38 @@
+package week3;
+
+/**
+ * Walks through the document IDs of a posting list, or of a combination of posting lists, in increasing
+ * order. Before the first call to <code>nextDoc()</code> or <code>advance()</code> the iterator is not
+ * positioned on any document.
+ *
+ * @author Luiz Felix
+ */
+interface PostingIterator {
+	/* Returned once the iterator is exhausted. It is greater than any document ID */
+	int NO_MORE_DOCS = Integer.MAX_VALUE;
+	
+	/**
+	 * @return The current document ID, -1 if the iterator wasn't positioned yet or <code>NO_MORE_DOCS</code>
+	 * if it is exhausted.
+	 */
+	int docId();
+	
+	/**
+	 * @return The next document ID, or <code>NO_MORE_DOCS</code> if there are no more documents.
+	 */
+	int nextDoc();
+	
+	/**
+	 * Moves to the first document whose ID is greater than or equal to <code>target</code>, skipping
+	 * over the documents in between without decoding them whenever possible.
+	 * @param target A document ID greater than the current one.
+	 * @return The ID of the document found, or <code>NO_MORE_DOCS</code> if there is none.
+	 */
+	int advance(int target);
+	
+	/**
+	 * @return An upper bound for the amount of documents this iterator may return, used to decide
+	 * the order in which iterators are combined.
+	 */
+	int cost();
+}
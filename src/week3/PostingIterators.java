@@ -0,0 +1,633 @@
+package week3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Combines posting iterators into the boolean operations of the queries. The combinations are
+ * iterators themselves, so they read straight from the compressed lists, and a combination of
+ * combinations evaluates a whole query tree without any intermediate list.
+ *
+ * @author Luiz Felix
+ */
+final class PostingIterators {
+	private PostingIterators() { }
+	
+	/* It is always exhausted, so it has no state and may be shared */
+	private static final PostingIterator EMPTY = new PostingIterator() {
+		@Override
+		public int docId() {
+			return NO_MORE_DOCS;
+		}
+		
+		@Override
+		public int nextDoc() {
+			return NO_MORE_DOCS;
+		}
+		
+		@Override
+		public int advance(int target) {
+			return NO_MORE_DOCS;
+		}
+		
+		@Override
+		public int cost() {
+			return 0;
+		}
+	};
+	
+	/**
+	 * @return An iterator over no documents.
+	 */
+	static PostingIterator empty() {
+		return EMPTY;
+	}
+	
+	/**
+	 * @param iterators The iterators to be intersected. They must not be positioned yet.
+	 * @return An iterator over the documents found on all the iterators.
+	 */
+	static PostingIterator and(List<PostingIterator> iterators) {
+		return (iterators.size() == 1) ? iterators.get(0) : new Conjunction(iterators);
+	}
+	
+	/**
+	 * @param iterators The iterators to be united. They must not be positioned yet.
+	 * @return An iterator over the documents found on at least one of the iterators.
+	 */
+	static PostingIterator or(List<PostingIterator> iterators) {
+		return (iterators.size() == 1) ? iterators.get(0) : new Disjunction(iterators);
+	}
+	
+	/**
+	 * @param include The documents to be returned. It must not be positioned yet.
+	 * @param exclude The documents to be left out. It must not be positioned yet.
+	 * @return An iterator over the documents of <code>include</code> that aren't on <code>exclude</code>.
+	 */
+	static PostingIterator andNot(PostingIterator include, PostingIterator exclude) {
+		return new Exclusion(include, exclude);
+	}
+	
+	/**
+	 * @param terms The iterators of the terms of a phrase, in the order of the phrase. They must not be positioned yet.
+	 * @return An iterator over the documents where the terms occur one right after the other.
+	 */
+	static PostingIterator phrase(List<PositionIterator> terms) {
+		return new Proximity(terms, 0, true);
+	}
+	
+	/**
+	 * @param terms The iterators of distinct terms. They must not be positioned yet.
+	 * @param distance The largest amount of positions between any two terms.
+	 * @return An iterator over the documents where all the terms occur at most <code>distance</code> positions
+	 * apart, in any order.
+	 */
+	static PostingIterator near(List<PositionIterator> terms, int distance) {
+		return new Proximity(terms, distance, false);
+	}
+	
+	/**
+	 * @param iterators Iterators over ranges of IDs that don't overlap, in increasing order of their ranges, such
+	 * as the ones of the segments of an index. They must not be positioned yet.
+	 * @return An iterator over the documents of all the iterators, one range after the other.
+	 */
+	static PostingIterator concat(List<PostingIterator> iterators) {
+		return (iterators.size() == 1) ? iterators.get(0) : new Concatenation(iterators);
+	}
+	
+	/**
+	 * @param iterator The iterator to be filtered. It must not be positioned yet.
+	 * @param deleted The IDs of the deleted documents, which must not change while the iterator is used.
+	 * @return An iterator over the documents of <code>iterator</code> that aren't deleted.
+	 */
+	static PostingIterator live(PostingIterator iterator, BitSet deleted) {
+		return (deleted.isEmpty()) ? iterator : new LiveDocuments(iterator, deleted);
+	}
+	
+	/**
+	 * @param iterator A leaf of a query, such as the iterator of a term, to be limited.
+	 * @param deadline The deadline of the query, shared by all its leaves.
+	 * @return An iterator over the same documents that throws <code>QueryTimeoutException</code> once
+	 * the deadline is reached.
+	 */
+	static PostingIterator withDeadline(PostingIterator iterator, Deadline deadline) {
+		return new TimedDocuments(iterator, deadline);
+	}
+	
+	/**
+	 * @param iterator A leaf of a phrase or a NEAR to be limited.
+	 * @param deadline The deadline of the query, shared by all its leaves.
+	 * @return An iterator over the same documents and positions that throws <code>QueryTimeoutException</code>
+	 * once the deadline is reached.
+	 */
+	static PositionIterator withDeadline(PositionIterator iterator, Deadline deadline) {
+		return new TimedPositions(iterator, deadline);
+	}
+	
+	/**
+	 * The time limit of one evaluation of a query. It is shared by all the leaves of the query, which are where its
+	 * work is done: a single move of the root may read whole lists, such as an intersection of long lists with few
+	 * documents in common, so the root may not move at all before the deadline. The clock is only read every
+	 * <code>CHECK_INTERVAL</code> moves of the leaves, so the check costs nothing next to decoding the lists.
+	 */
+	static final class Deadline {
+		private static final int CHECK_INTERVAL = 64;
+		
+		private final long deadline;
+		private int moves;
+		
+		/**
+		 * @param deadline The <code>System.nanoTime()</code> after which the query may no longer be read.
+		 */
+		Deadline(long deadline) {
+			this.deadline = deadline;
+		}
+		
+		void check() {
+			if (++moves % CHECK_INTERVAL == 0 && System.nanoTime() - deadline > 0)
+				throw new QueryTimeoutException("The query took longer than its deadline.");
+		}
+	}
+	
+	/*
+	 * Leapfrog intersection: the rarest iterator leads and the others are advanced to its documents,
+	 * so the cost depends on the rarest list and not on the most frequent one
+	 */
+	private static class Conjunction implements PostingIterator {
+		private final PostingIterator[] iterators;
+		private int docId = -1;
+		
+		Conjunction(List<PostingIterator> iterators) {
+			this.iterators = iterators.toArray(new PostingIterator[iterators.size()]);
+			Arrays.sort(this.iterators, Comparator.comparingInt(PostingIterator::cost));
+		}
+		
+		@Override
+		public int docId() {
+			return docId;
+		}
+		
+		@Override
+		public int nextDoc() {
+			return (docId == NO_MORE_DOCS) ? docId : align(iterators[0].nextDoc());
+		}
+		
+		@Override
+		public int advance(int target) {
+			return (docId == NO_MORE_DOCS) ? docId : align(iterators[0].advance(target));
+		}
+		
+		/*
+		 * Moves all the iterators to the first document, from candidate on, that is on all of them
+		 */
+		private int align(int candidate) {
+			int i = 1;
+			
+			while (candidate != NO_MORE_DOCS && i < iterators.length) {
+				int found = iterators[i].docId();
+				if (found < candidate)
+					found = iterators[i].advance(candidate);
+				
+				if (found == candidate)
+					i++;
+				else {
+					// the lead catches up and all the others are checked again
+					candidate = iterators[0].advance(found);
+					i = 1;
+				}
+			}
+			
+			return docId = candidate;
+		}
+		
+		@Override
+		public int cost() {
+			return iterators[0].cost();
+		}
+	}
+	
+	/*
+	 * Union on a min-heap of iterators, ordered by their current document
+	 */
+	private static class Disjunction implements PostingIterator {
+		private final PostingIterator[] heap;
+		private int size;
+		private int docId = -1;
+		private final int cost;
+		
+		Disjunction(List<PostingIterator> iterators) {
+			this.heap = iterators.toArray(new PostingIterator[iterators.size()]);
+			
+			long cost = 0;
+			for (PostingIterator iterator : heap)
+				cost += iterator.cost();
+			
+			this.cost = (int) Math.min(cost, Integer.MAX_VALUE);
+		}
+		
+		@Override
+		public int docId() {
+			return docId;
+		}
+		
+		@Override
+		public int nextDoc() {
+			if (docId == NO_MORE_DOCS) return docId;
+			if (docId < 0) return start(-1);
+			
+			// every iterator on the current document moves on
+			while (size > 0 && heap[0].docId() == docId) {
+				if (heap[0].nextDoc() == NO_MORE_DOCS)
+					heap[0] = heap[--size];
+				
+				siftDown(0);
+			}
+			
+			return docId = (size == 0) ? NO_MORE_DOCS : heap[0].docId();
+		}
+		
+		@Override
+		public int advance(int target) {
+			if (docId == NO_MORE_DOCS) return docId;
+			if (docId < 0) return start(target);
+			
+			while (size > 0 && heap[0].docId() < target) {
+				if (heap[0].advance(target) == NO_MORE_DOCS)
+					heap[0] = heap[--size];
+				
+				siftDown(0);
+			}
+			
+			return docId = (size == 0) ? NO_MORE_DOCS : heap[0].docId();
+		}
+		
+		/*
+		 * Positions every iterator and builds the heap
+		 */
+		private int start(int target) {
+			for (PostingIterator iterator : heap) {
+				int found = (target < 0) ? iterator.nextDoc() : iterator.advance(target);
+				
+				if (found != NO_MORE_DOCS)
+					heap[size++] = iterator;
+			}
+			
+			for (int i = size / 2 - 1; i >= 0; i--)
+				siftDown(i);
+			
+			return docId = (size == 0) ? NO_MORE_DOCS : heap[0].docId();
+		}
+		
+		private void siftDown(int position) {
+			PostingIterator moving = heap[position];
+			
+			while (true) {
+				int child = position * 2 + 1;
+				if (child >= size) break;
+				
+				if (child + 1 < size && heap[child + 1].docId() < heap[child].docId())
+					child++;
+				
+				if (moving.docId() <= heap[child].docId()) break;
+				
+				heap[position] = heap[child];
+				position = child;
+			}
+			
+			if (position < size)
+				heap[position] = moving;
+		}
+		
+		@Override
+		public int cost() {
+			return cost;
+		}
+	}
+	
+	/*
+	 * AND-NOT: the excluded iterator is only advanced to the documents of the included one, so no
+	 * complement is ever built
+	 */
+	private static class Exclusion implements PostingIterator {
+		private final PostingIterator include;
+		private final PostingIterator exclude;
+		private int docId = -1;
+		
+		Exclusion(PostingIterator include, PostingIterator exclude) {
+			this.include = include;
+			this.exclude = exclude;
+		}
+		
+		@Override
+		public int docId() {
+			return docId;
+		}
+		
+		@Override
+		public int nextDoc() {
+			return (docId == NO_MORE_DOCS) ? docId : skipExcluded(include.nextDoc());
+		}
+		
+		@Override
+		public int advance(int target) {
+			return (docId == NO_MORE_DOCS) ? docId : skipExcluded(include.advance(target));
+		}
+		
+		private int skipExcluded(int candidate) {
+			while (candidate != NO_MORE_DOCS) {
+				int excluded = exclude.docId();
+				if (excluded < candidate)
+					excluded = exclude.advance(candidate);
+				
+				if (excluded != candidate) break;
+				
+				candidate = include.nextDoc();
+			}
+			
+			return docId = candidate;
+		}
+		
+		@Override
+		public int cost() {
+			return include.cost();
+		}
+	}
+	
+	/*
+	 * Phrase and proximity matching: the documents of the terms are intersected first, and the positions
+	 * are only decoded on the documents that have all the terms
+	 */
+	private static class Proximity implements PostingIterator {
+		private final PositionIterator[] terms;
+		private final PostingIterator documents;
+		private final int distance;
+		private final boolean ordered;
+		
+		/* The positions of each term on the current candidate and the one compared */
+		private final int[][] positions;
+		private final int[] lengths;
+		private final int[] current;
+		
+		private int docId = -1;
+		
+		Proximity(List<PositionIterator> terms, int distance, boolean ordered) {
+			this.terms = terms.toArray(new PositionIterator[terms.size()]);
+			this.documents = and(new ArrayList<PostingIterator>(terms));
+			this.distance = distance;
+			this.ordered = ordered;
+			
+			positions = new int[this.terms.length][4];
+			lengths = new int[this.terms.length];
+			current = new int[this.terms.length];
+		}
+		
+		@Override
+		public int docId() {
+			return docId;
+		}
+		
+		@Override
+		public int nextDoc() {
+			return (docId == NO_MORE_DOCS) ? docId : match(documents.nextDoc());
+		}
+		
+		@Override
+		public int advance(int target) {
+			return (docId == NO_MORE_DOCS) ? docId : match(documents.advance(target));
+		}
+		
+		private int match(int candidate) {
+			while (candidate != NO_MORE_DOCS) {
+				decode();
+				
+				if (ordered ? matchesPhrase() : matchesWindow()) break;
+				
+				candidate = documents.nextDoc();
+			}
+			
+			return docId = candidate;
+		}
+		
+		private void decode() {
+			for (int i = 0; i < terms.length; i++) {
+				int frequency = terms[i].frequency();
+				
+				if (positions[i].length < frequency)
+					positions[i] = new int[Math.max(frequency, positions[i].length * 2)];
+				
+				for (int j = 0; j < frequency; j++)
+					positions[i][j] = terms[i].nextPosition();
+				
+				lengths[i] = frequency;
+				current[i] = 0;
+			}
+		}
+		
+		/*
+		 * Is there a position p of the first term such that the i-th term is on p + i?
+		 */
+		private boolean matchesPhrase() {
+			next:
+			for (int j = 0; j < lengths[0]; j++) {
+				int start = positions[0][j];
+				
+				for (int i = 1; i < terms.length; i++) {
+					// each term only moves forward, as the start does
+					while (current[i] < lengths[i] && positions[i][current[i]] < start + i)
+						current[i]++;
+					
+					if (current[i] == lengths[i]) return false;
+					if (positions[i][current[i]] != start + i) continue next;
+				}
+				
+				return true;
+			}
+			
+			return false;
+		}
+		
+		/*
+		 * Is there a window of at most distance + 1 positions with all the terms? The term on the lowest
+		 * position is moved forward until the window fits or a term runs out
+		 */
+		private boolean matchesWindow() {
+			while (true) {
+				int lowest = 0;
+				int max = -1;
+				
+				for (int i = 0; i < terms.length; i++) {
+					int position = positions[i][current[i]];
+					
+					if (position < positions[lowest][current[lowest]])
+						lowest = i;
+					max = Math.max(max, position);
+				}
+				
+				if (max - positions[lowest][current[lowest]] <= distance)
+					return true;
+				
+				if (++current[lowest] == lengths[lowest])
+					return false;
+			}
+		}
+		
+		@Override
+		public int cost() {
+			return documents.cost();
+		}
+	}
+	
+	/*
+	 * Counts each move of a leaf on the deadline of its query
+	 */
+	private static class TimedDocuments implements PostingIterator {
+		private final PostingIterator iterator;
+		final Deadline deadline;
+		
+		TimedDocuments(PostingIterator iterator, Deadline deadline) {
+			this.iterator = iterator;
+			this.deadline = deadline;
+		}
+		
+		@Override
+		public int docId() {
+			return iterator.docId();
+		}
+		
+		@Override
+		public int nextDoc() {
+			deadline.check();
+			return iterator.nextDoc();
+		}
+		
+		@Override
+		public int advance(int target) {
+			deadline.check();
+			return iterator.advance(target);
+		}
+		
+		@Override
+		public int cost() {
+			return iterator.cost();
+		}
+	}
+	
+	/*
+	 * The positions are counted too, as the documents of a phrase of common words may have many of them
+	 */
+	private static class TimedPositions extends TimedDocuments implements PositionIterator {
+		private final PositionIterator iterator;
+		
+		TimedPositions(PositionIterator iterator, Deadline deadline) {
+			super(iterator, deadline);
+			this.iterator = iterator;
+		}
+		
+		@Override
+		public int frequency() {
+			return iterator.frequency();
+		}
+		
+		@Override
+		public int nextPosition() {
+			deadline.check();
+			return iterator.nextPosition();
+		}
+	}
+	
+	/*
+	 * The iterators are read one after the other, as all the IDs of one come before the ones of the next
+	 */
+	private static class Concatenation implements PostingIterator {
+		private final PostingIterator[] iterators;
+		private int current;
+		private int docId = -1;
+		
+		Concatenation(List<PostingIterator> iterators) {
+			this.iterators = iterators.toArray(new PostingIterator[iterators.size()]);
+		}
+		
+		@Override
+		public int docId() {
+			return docId;
+		}
+		
+		@Override
+		public int nextDoc() {
+			while (current < iterators.length) {
+				int next = iterators[current].nextDoc();
+				if (next != NO_MORE_DOCS) return docId = next;
+				
+				current++;
+			}
+			
+			return docId = NO_MORE_DOCS;
+		}
+		
+		@Override
+		public int advance(int target) {
+			// an iterator whose range ends before target is exhausted by its skip table, without decoding
+			while (current < iterators.length) {
+				int next = iterators[current].advance(target);
+				if (next != NO_MORE_DOCS) return docId = next;
+				
+				current++;
+			}
+			
+			return docId = NO_MORE_DOCS;
+		}
+		
+		@Override
+		public int cost() {
+			int cost = 0;
+			for (PostingIterator iterator : iterators)
+				cost += iterator.cost();
+			
+			return cost;
+		}
+	}
+	
+	/*
+	 * Skips the deleted documents, which stay on the posting lists until their segment is merged
+	 */
+	private static class LiveDocuments implements PostingIterator {
+		private final PostingIterator iterator;
+		private final BitSet deleted;
+		private int docId = -1;
+		
+		LiveDocuments(PostingIterator iterator, BitSet deleted) {
+			this.iterator = iterator;
+			this.deleted = deleted;
+		}
+		
+		@Override
+		public int docId() {
+			return docId;
+		}
+		
+		@Override
+		public int nextDoc() {
+			return docId = skipDeleted(iterator.nextDoc());
+		}
+		
+		@Override
+		public int advance(int target) {
+			return docId = skipDeleted(iterator.advance(target));
+		}
+		
+		private int skipDeleted(int candidate) {
+			while (candidate != NO_MORE_DOCS && deleted.get(candidate))
+				candidate = iterator.nextDoc();
+			
+			return candidate;
+		}
+		
+		@Override
+		public int cost() {
+			return iterator.cost();
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package week3;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An immutable, sorted list of document IDs stored on a <code>ByteBuffer</code>. Each list is written
+ * in the container that takes the least space for its documents:
+ * - <code>PackedPostingList</code>, the gaps between IDs bit-packed in blocks, for sparse terms;
+ * - <code>BitmapPostingList</code>, one bit per document, for terms found on most documents;
+ * - <code>RunPostingList</code>, intervals of consecutive IDs, for terms found on long ranges of documents.
+ *
+ * The buffer may live on the heap or be mapped from a file. Lists are only read with absolute
+ * accesses, so a list can be iterated by several threads at the same time.
+ *
+ * @author Luiz Felix
+ */
+abstract class PostingList implements Postings {
+	/* The first byte of every list tells its container */
+	static final byte PACKED = 0;
+	static final byte BITMAP = 1;
+	static final byte RUNS = 2;
+	
+	/* Container type and cardinality */
+	static final int HEADER_SIZE = 5;
+	
+	final ByteBuffer buffer;
+	final int cardinality;
+	
+	PostingList(ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.cardinality = buffer.getInt(1);
+	}
+	
+	/**
+	 * @return A new iterator over the documents of this list.
+	 */
+	@Override
+	public abstract PostingIterator iterator();
+	
+	/**
+	 * @return The amount of documents on this list.
+	 */
+	@Override
+	public int cardinality() {
+		return cardinality;
+	}
+	
+	/**
+	 * @return The amount of bytes taken by the encoded list.
+	 */
+	int sizeInBytes() {
+		return buffer.limit();
+	}
+	
+	/**
+	 * @return A read-only view of the encoded list, from position 0 to its end.
+	 */
+	ByteBuffer encoded() {
+		return buffer.asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Reads a list previously written by <code>of()</code>.
+	 * @param buffer The encoded list, from position 0 to its limit.
+	 * @return The list, which reads straight from <code>buffer</code>.
+	 */
+	static PostingList open(ByteBuffer buffer) {
+		switch (buffer.get(0)) {
+			case PACKED: return new PackedPostingList(buffer);
+			case BITMAP: return new BitmapPostingList(buffer);
+			case RUNS: return new RunPostingList(buffer);
+			default: throw new IllegalArgumentException("Unknown posting list container " + buffer.get(0));
+		}
+	}
+	
+	/**
+	 * Encodes a list of documents on the smallest container.
+	 * @param documents The document IDs, sorted and without repetitions.
+	 * @param length The amount of IDs on <code>documents</code>.
+	 * @return The encoded list.
+	 */
+	static PostingList of(int[] documents, int length) {
+		if (length == 0)
+			throw new IllegalArgumentException("A posting list must have at least one document.");
+		
+		int packed = PackedPostingList.encodedSize(documents, length);
+		int bitmap = BitmapPostingList.encodedSize(documents, length);
+		int runs = RunPostingList.encodedSize(documents, length);
+		
+		if (runs <= packed && runs <= bitmap)
+			return new RunPostingList(RunPostingList.encode(documents, length, runs));
+		if (bitmap < packed)
+			return new BitmapPostingList(BitmapPostingList.encode(documents, length, bitmap));
+		
+		return new PackedPostingList(PackedPostingList.encode(documents, length, packed));
+	}
+	
+	/*
+	 * Writes the header common to all the containers
+	 */
+	static ByteBuffer allocate(byte container, int cardinality, int size) {
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.put(0, container);
+		buffer.putInt(1, cardinality);
+		return buffer;
+	}
+	
+	/**
+	 * Formats the documents of an iterator the same way <code>BitSet.toString()</code> does.
+	 * @param documents The documents to be formatted.
+	 * @return A String such as <code>{1, 4, 9}</code>, or <code>null</code> if there are no documents.
+	 */
+	static String format(PostingIterator documents) {
+		int docId = documents.nextDoc();
+		if (docId == PostingIterator.NO_MORE_DOCS) return null;
+		
+		StringBuilder buffer = new StringBuilder();
+		buffer.append('{').append(docId);
+		
+		while ((docId = documents.nextDoc()) != PostingIterator.NO_MORE_DOCS)
+			buffer.append(", ").append(docId);
+		
+		return buffer.append('}').toString();
+	}
+	
+	/*
+	 * Overwriting toString for debug purposes
+	 */
+	public String toString() {
+		return format(iterator());
+	}
+}
@@ -0,0 +1,69 @@
+package week3;
+
+import java.util.Arrays;
+
+/**
+ * Collects the documents of a term while the index is built, before they are encoded as a <code>PostingList</code>.
+ * IDs are usually added in increasing order, and the same ID may be added several times in a row; any other
+ * order is also accepted, at the cost of a sort when the list is built.
+ *
+ * @author Luiz Felix
+ */
+class PostingListBuilder {
+	private int[] documents = new int[4];
+	private int length;
+	private boolean sorted = true;
+	
+	/**
+	 * @param docId A document where the term occurs.
+	 */
+	void add(int docId) {
+		if (length > 0) {
+			int last = documents[length - 1];
+			
+			// a term usually occurs several times on the same document
+			if (last == docId) return;
+			if (last > docId) sorted = false;
+		}
+		
+		if (length == documents.length)
+			documents = Arrays.copyOf(documents, length * 2);
+		
+		documents[length++] = docId;
+	}
+	
+	/**
+	 * Adds all the documents of another builder.
+	 * @param other The builder whose documents are added.
+	 */
+	void addAll(PostingListBuilder other) {
+		for (int i = 0; i < other.length; i++)
+			add(other.documents[i]);
+	}
+	
+	/**
+	 * @return The amount of documents added so far, which may count repetitions if they weren't added in order.
+	 */
+	int size() {
+		return length;
+	}
+	
+	/**
+	 * @return The encoded list of all the distinct documents added.
+	 */
+	PostingList build() {
+		if (!sorted) {
+			Arrays.sort(documents, 0, length);
+			
+			int unique = 0;
+			for (int i = 0; i < length; i++)
+				if (unique == 0 || documents[unique - 1] != documents[i])
+					documents[unique++] = documents[i];
+			
+			length = unique;
+			sorted = true;
+		}
+		
+		return PostingList.of(documents, length);
+	}
+}
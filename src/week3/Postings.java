@@ -0,0 +1,19 @@
+package week3;
+
+/**
+ * The documents of a term, as the query planner sees them: either a single <code>PostingList</code> or
+ * the lists of the term on every segment of an index.
+ *
+ * @author Luiz Felix
+ */
+interface Postings {
+	/**
+	 * @return A new iterator over the documents.
+	 */
+	PostingIterator iterator();
+	
+	/**
+	 * @return The amount of documents, or an upper bound of it if some of them may have been deleted.
+	 */
+	int cardinality();
+}
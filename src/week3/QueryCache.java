@@ -0,0 +1,177 @@
+package week3;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The documents of the queries evaluated last, so a query that is repeated while the index doesn't change
+ * isn't evaluated again. Queries are keyed by <code>QueryNode.canonical()</code>, so <code>a AND b</code>
+ * and <code>b a</code> share their entry, and each result is kept as a <code>PostingList</code>, on the
+ * container that takes the least space for it, as the lists of the terms are.
+ *
+ * The cache is bounded by the bytes its entries take: the least recently used entries are evicted once the
+ * bound is exceeded, and a result that would take more than the whole cache isn't kept. The entries belong
+ * to a version of the index, the one of an <code>IndexSnapshot</code>: they are all dropped as soon as a newer
+ * version is queried. Queries on an older version, such as the pages of a result read after a document was
+ * added, neither read nor fill the cache, and drop nothing. <code>clear()</code> drops the entries for anything
+ * else that changes the results.
+ *
+ * All the methods are synchronized, as lookups reorder the entries.
+ *
+ * @author Luiz Felix
+ */
+class QueryCache {
+	/* Estimate of the bytes taken by an entry besides its list and the characters of its key */
+	private static final int ENTRY_OVERHEAD = 96;
+	
+	private final long maxBytes;
+	
+	/* In access order, so the first entry is the least recently used one. An empty result is a null list */
+	private final LinkedHashMap<String, PostingList> entries = new LinkedHashMap<String, PostingList>(16, 0.75f, true);
+	
+	private long version;
+	private int epoch;
+	private long bytes;
+	
+	private long hits;
+	private long misses;
+	private long evictions;
+	
+	/**
+	 * @param maxBytes The greatest amount of bytes the entries take.
+	 */
+	QueryCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * @param version The version of the index the query is evaluated on. Versions only grow as the index changes.
+	 * @param query The canonical form of the query.
+	 * @param counted <code>true</code> if the lookup is counted on the hits or the misses. A result may be read
+	 * several times, by each page for instance, but only its first read is counted, so they count queries.
+	 * @return A new iterator over the documents of the query, or <code>null</code> if they aren't cached.
+	 */
+	synchronized PostingIterator get(long version, String query, boolean counted) {
+		if (version > this.version) {
+			entries.clear();
+			bytes = 0;
+			this.version = version;
+		}
+		else if (version < this.version) {
+			if (counted) misses++;
+			return null;
+		}
+		
+		PostingList documents = entries.get(query);
+		
+		if (documents == null && !entries.containsKey(query)) {
+			if (counted) misses++;
+			return null;
+		}
+		
+		if (counted) hits++;
+		return (documents == null) ? PostingIterators.empty() : documents.iterator();
+	}
+	
+	/**
+	 * Reads the documents of a query that wasn't cached and caches them. The whole result is read at once, even
+	 * if only its first page is asked for, as the pages of a result rarely reach its end: a result that was only
+	 * cached once it was read to its end would seldom be cached at all. Reading stops as soon as the result
+	 * can't fit on the cache, and nothing is cached then.
+	 * @param version The version of the index the query is evaluated on.
+	 * @param query The canonical form of the query.
+	 * @param documents The documents of the query, which may be <code>null</code> if there are none.
+	 * @return An iterator over the same documents as <code>documents</code>.
+	 */
+	PostingIterator record(long version, String query, PostingIterator documents) {
+		int epoch;
+		
+		synchronized (this) {
+			// an older version can't be cached, so its result is read as it is asked for
+			if (version != this.version) return documents;
+			
+			epoch = this.epoch;
+		}
+		
+		if (documents == null) {
+			put(version, epoch, query, null);
+			return null;
+		}
+		
+		PostingListBuilder recorded = new PostingListBuilder();
+		
+		for (int docId = documents.nextDoc(); docId != PostingIterator.NO_MORE_DOCS; docId = documents.nextDoc()) {
+			recorded.add(docId);
+			
+			// the documents read so far, then the ones left, which come after them
+			if (4L * recorded.size() > maxBytes)
+				return PostingIterators.concat(Arrays.asList(recorded.build().iterator(), documents));
+		}
+		
+		PostingList result = (recorded.size() == 0) ? null : recorded.build();
+		put(version, epoch, query, result);
+		
+		return (result == null) ? PostingIterators.empty() : result.iterator();
+	}
+	
+	/**
+	 * Drops every entry, for a change of the index that doesn't create a new version of it. Results being
+	 * recorded when the cache is cleared aren't cached.
+	 */
+	synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+		epoch++;
+	}
+	
+	synchronized long hits() {
+		return hits;
+	}
+	
+	synchronized long misses() {
+		return misses;
+	}
+	
+	synchronized long evictions() {
+		return evictions;
+	}
+	
+	/**
+	 * @return The bytes taken by the entries, as estimated for the eviction.
+	 */
+	synchronized long sizeInBytes() {
+		return bytes;
+	}
+	
+	private synchronized void put(long version, int epoch, String query, PostingList documents) {
+		// the index changed while the query was evaluated
+		if (version != this.version || epoch != this.epoch) return;
+		
+		long size = size(query, documents);
+		if (size > maxBytes) return;
+		
+		// two threads may have evaluated the same query
+		boolean replaced = entries.containsKey(query);
+		PostingList previous = entries.put(query, documents);
+		
+		if (replaced)
+			bytes -= size(query, previous);
+		
+		bytes += size;
+		
+		Iterator<Map.Entry<String, PostingList>> eldest = entries.entrySet().iterator();
+		
+		while (bytes > maxBytes) {
+			Map.Entry<String, PostingList> entry = eldest.next();
+			bytes -= size(entry.getKey(), entry.getValue());
+			eldest.remove();
+			evictions++;
+		}
+	}
+	
+	private static long size(String query, PostingList documents) {
+		return ENTRY_OVERHEAD + 2L * query.length() + ((documents == null) ? 0 : documents.sizeInBytes());
+	}
+}
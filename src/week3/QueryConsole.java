@@ -1,25 +1,153 @@
 package week3;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
 
+import parsing.CorpusSource;
+
 public class QueryConsole {
 	private final static String PATH = "corpus";
 	
-	private static void displayResults(String result) {
-		if (result != null)
-			System.out.println(result);
+	/* Used when the corpus wasn't extracted */
+	private final static String ARCHIVE_PATH = "corpus.zip";
+	
+	/* The output of week2.Tokeniser, indexed when it exists */
+	private final static String ANNOTATED_PATH = "korpus";
+	
+	/* Saved index, mapped on the next starts while it is newer than the corpus */
+	private final static String INDEX_PATH = "corpus.index";
+	
+	/* Argument that builds the positional index on start */
+	private final static String POSITIONS_OPTION = "-positions";
+	
+	/* Amount of documents printed at once; an empty line prints the next ones */
+	private final static int PAGE_SIZE = 20;
+	
+	/* Prints the amount of documents of the last query, which reads all of them */
+	private final static String COUNT_COMMAND = ":count";
+	
+	/*
+	 * Prints the ID and the file name of the documents [offset, offset + PAGE_SIZE) of a result. One more document
+	 * is read to know whether there is a next page, so the whole result is only read to count it on its last page.
+	 * Returns true if there is a next page
+	 */
+	private static boolean displayResults(Indexer index, QueryResult result, int offset) {
+		int[] page = result.page(offset, PAGE_SIZE + 1);
+		boolean more = page.length > PAGE_SIZE;
+		
+		if (page.length == 0 && offset == 0) {
+			System.out.println("No results match this query.");
+			return false;
+		}
+		
+		for (int i = 0; i < Math.min(page.length, PAGE_SIZE); i++)
+			System.out.println(page[i] + "\t" + index.getDocumentName(page[i]));
+		
+		int last = offset + Math.min(page.length, PAGE_SIZE);
+		
+		if (more)
+			System.out.println("Documents " + (offset + 1) + "-" + last + ". Press enter for the next ones, or type " + 
+					COUNT_COMMAND + " for the amount of documents.");
 		else
-			System.out.println("No results match this query.");	
+			System.out.println("Documents " + (offset + 1) + "-" + last + " of " + last + ".");
+		
+		return more;
+	}
+	
+	/*
+	 * A word as a term of the query language, quoted so that words such as "or" aren't taken as operators
+	 */
+	private static String term(String word) {
+		return '"' + word + '"';
+	}
+	
+	/*
+	 * The query language version of the flat "and/or/not term term..." commands
+	 */
+	private static String join(String[] words, String operator) {
+		StringBuilder query = new StringBuilder(term(words[1]));
+		
+		for (int i = 2; i < words.length; i++)
+			query.append(operator).append(term(words[i]));
+		
+		return query.toString();
+	}
+	
+	/*
+	 * Prints how long the index took to be ready and how much of the heap it takes
+	 */
+	private static void report(String mode, long start) {
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		long heap = (runtime.totalMemory() - runtime.freeMemory()) / 1024;
+		
+		System.out.println("Index " + mode + " in " + elapsed + " ms, " + heap + " KB of heap in use.");
+	}
+	
+	/*
+	 * The last change of a corpus. Editing a document of a folder doesn't change the folder, so its documents
+	 * are looked at as well, as the corpus source visits them; the folder changes when one is added or removed
+	 */
+	private static long lastModified(File corpus) {
+		long lastModified = corpus.lastModified();
+		File[] children = corpus.listFiles();
+		
+		if (children != null)
+			for (File child : children)
+				if (!child.getName().startsWith(".") && child.isFile())
+					lastModified = Math.max(lastModified, child.lastModified());
+		
+		return lastModified;
+	}
+	
+	/*
+	 * Maps the saved index while it is newer than the corpus, otherwise builds and saves it, and attaches
+	 * the other indexes that are available
+	 */
+	static Indexer openIndex(boolean positions) throws IOException {
+		String corpusPath = (new File(PATH).isDirectory()) ? PATH : ARCHIVE_PATH;
+		File saved = new File(INDEX_PATH);
+		long start = System.nanoTime();
+		Indexer index = null;
+		
+		if (saved.isFile() && saved.lastModified() >= lastModified(new File(corpusPath))) {
+			// an index saved by an older version is built again
+			try {
+				index = Indexer.open(INDEX_PATH);
+				report("mapped from " + INDEX_PATH + " (" + saved.length() / 1024 + " KB)", start);
+			} catch (IOException e) {
+				System.out.println(INDEX_PATH + " can't be mapped: " + e.getMessage());
+			}
+		}
+		
+		if (index == null) {
+			// a folder is indexed by one thread per processor; an archive can only be read by one
+			index = new Indexer(corpusPath, 0);
+			report("built in memory from " + corpusPath, start);
+			index.save(INDEX_PATH);
+		}
+		
+		if (positions)
+			index.attachPositionalIndex(new PositionalIndex(CorpusSource.open(corpusPath), index::getDocumentId));
+		
+		// entities are queried as "type:surface_form", e.g. "and location:united_states computer"
+		if (new File(ANNOTATED_PATH).isDirectory())
+			index.attachEntityIndex(new EntityIndex(CorpusSource.open(ANNOTATED_PATH), index::getDocumentId));
+		
+		return index;
 	}
 	
 	public static void main(String args[]) {
 		Indexer index = null;
 		
 		try {
-			index = new Indexer(PATH);
+			// phrases and NEAR are only queryable if the console is started with "-positions"
+			index = openIndex(Arrays.asList(args).contains(POSITIONS_OPTION));
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -28,29 +156,52 @@ public class QueryConsole {
 		
 		Scanner keyboard = new Scanner(System.in);
 		
+		QueryResult result = null;
+		int offset = 0;
+		boolean more = false;
+		
 		do {
-			String[] input = keyboard.nextLine().toLowerCase().split(" ");
+			String line = keyboard.nextLine().toLowerCase();
+			String[] input = line.trim().split("\\s+");
+			
+			// the flat "and/or/not term term..." commands are kept as they were
+			boolean nested = line.contains("(") || line.contains(")") || line.contains("\"");
 			
 			try {
-				String result = null;
-				
-				if (input.length == 1 && input[0].equals("exit"))
+				if (line.trim().isEmpty()) {
+					// the next page of the last query
+					if (result != null && more)
+						more = displayResults(index, result, offset += PAGE_SIZE);
+					continue;
+				}
+				else if (input.length == 1 && input[0].equals("exit"))
 					break;
-				else if (input.length == 1)
-					displayResults(index.simpleQuery(input[0]));
+				else if (input.length == 1 && input[0].equals(COUNT_COMMAND)) {
+					if (result != null)
+						System.out.println(result.count() + " documents match this query.");
+					continue;
+				}
+				else if (input.length == 1 && !nested)
+					result = index.search(term(input[0]));
+				else if (nested)
+					result = index.search(line);
 				else if (input[0].equals("and"))
-					displayResults(index.andQuery(Arrays.copyOfRange(input, 1, input.length)));
+					result = index.search(join(input, " AND "));
 				else if (input[0].equals("or"))
-					displayResults(index.orQuery(Arrays.copyOfRange(input, 1, input.length)));
-				else if (input[0].equals("not"))
-					displayResults(index.notQuery(Arrays.copyOfRange(input, 1, input.length)));
+					result = index.search(join(input, " OR "));
+				else if (input[0].equals("not") && input.length > 2)
+					result = index.search(join(input, " NOT "));
 				else
-					System.out.println("Invalid query.");
+					// anything else is a nested query, e.g. "heart (attack or failure) not surgery" or "not surgery"
+					result = index.search(line);
+				
+				offset = 0;
+				more = displayResults(index, result, offset);
 			}
 			catch (IndexerException ex) {
 				System.out.println("Invalid query.");
 			}
-			
+		
 		} while(true);
 	}
 }
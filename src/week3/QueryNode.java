@@ -0,0 +1,192 @@
+package week3;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * A node of the tree of a parsed query. Nodes are immutable; the children of <code>And</code> and
+ * <code>Or</code> are never of the same type as their parent, as the parser flattens them.
+ *
+ * @author Luiz Felix
+ */
+abstract class QueryNode {
+	
+	/**
+	 * @return <code>true</code> if the node, or any node below it, can only be evaluated with a positional index.
+	 */
+	boolean needsPositions() {
+		return false;
+	}
+	
+	/**
+	 * @return The query written with the operands of AND and OR, and the terms of NEAR, sorted and without
+	 * repetitions, so queries that only differ on those orders, and always match the same documents, are
+	 * written the same way.
+	 */
+	String canonical() {
+		return toString();
+	}
+	
+	/* A single term, lower cased, or a wildcard matching several terms */
+	static class Term extends QueryNode {
+		final String term;
+		
+		Term(String term) {
+			this.term = term;
+		}
+		
+		@Override
+		public String toString() {
+			return term;
+		}
+	}
+	
+	/* The documents that match all the children */
+	static class And extends QueryNode {
+		final List<QueryNode> children;
+		
+		And(List<QueryNode> children) {
+			this.children = Collections.unmodifiableList(children);
+		}
+		
+		@Override
+		boolean needsPositions() {
+			return anyNeedsPositions(children);
+		}
+		
+		@Override
+		String canonical() {
+			return joinSorted(children, " AND ");
+		}
+		
+		@Override
+		public String toString() {
+			return join(children, " AND ");
+		}
+	}
+	
+	/* The documents that match at least one of the children */
+	static class Or extends QueryNode {
+		final List<QueryNode> children;
+		
+		Or(List<QueryNode> children) {
+			this.children = Collections.unmodifiableList(children);
+		}
+		
+		@Override
+		boolean needsPositions() {
+			return anyNeedsPositions(children);
+		}
+		
+		@Override
+		String canonical() {
+			return joinSorted(children, " OR ");
+		}
+		
+		@Override
+		public String toString() {
+			return join(children, " OR ");
+		}
+	}
+	
+	/* The documents where the terms occur one right after the other, in order */
+	static class Phrase extends QueryNode {
+		final List<String> terms;
+		
+		Phrase(List<String> terms) {
+			this.terms = Collections.unmodifiableList(terms);
+		}
+		
+		@Override
+		boolean needsPositions() {
+			return true;
+		}
+		
+		@Override
+		public String toString() {
+			return '"' + String.join(" ", terms) + '"';
+		}
+	}
+	
+	/* The documents where all the terms occur at most distance positions apart, in any order */
+	static class Near extends QueryNode {
+		final int distance;
+		final List<String> terms;
+		
+		Near(int distance, List<String> terms) {
+			this.distance = distance;
+			this.terms = Collections.unmodifiableList(terms);
+		}
+		
+		@Override
+		boolean needsPositions() {
+			return true;
+		}
+		
+		@Override
+		String canonical() {
+			return String.join(" NEAR/" + distance + " ", new TreeSet<String>(terms));
+		}
+		
+		@Override
+		public String toString() {
+			return String.join(" NEAR/" + distance + " ", terms);
+		}
+	}
+	
+	/* The documents that don't match the child */
+	static class Not extends QueryNode {
+		final QueryNode child;
+		
+		Not(QueryNode child) {
+			this.child = child;
+		}
+		
+		@Override
+		boolean needsPositions() {
+			return child.needsPositions();
+		}
+		
+		@Override
+		String canonical() {
+			return "NOT (" + child.canonical() + ")";
+		}
+		
+		@Override
+		public String toString() {
+			return "NOT " + ((child instanceof Term || child instanceof Phrase) ? child : "(" + child + ")");
+		}
+	}
+	
+	private static boolean anyNeedsPositions(List<QueryNode> children) {
+		for (QueryNode child : children)
+			if (child.needsPositions())
+				return true;
+		
+		return false;
+	}
+	
+	private static String joinSorted(List<QueryNode> children, String operator) {
+		TreeSet<String> operands = new TreeSet<String>();
+		
+		for (QueryNode child : children)
+			operands.add((child instanceof And || child instanceof Or) ? "(" + child.canonical() + ")" : child.canonical());
+		
+		return String.join(operator, operands);
+	}
+	
+	private static String join(List<QueryNode> children, String operator) {
+		StringBuilder buffer = new StringBuilder();
+		
+		for (QueryNode child : children) {
+			if (buffer.length() > 0)
+				buffer.append(operator);
+			
+			boolean group = child instanceof And || child instanceof Or;
+			buffer.append(group ? "(" : "").append(child).append(group ? ")" : "");
+		}
+		
+		return buffer.toString();
+	}
+}
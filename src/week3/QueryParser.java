@@ -0,0 +1,256 @@
+package week3;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the query language of <code>Indexer.query()</code> into a tree of <code>QueryNode</code>s.
+ * The operators are case insensitive and NOT binds tighter than AND, which binds tighter than OR:
+ *
+ * <pre>
+ * or      := and ("OR" and)*
+ * and     := not (["AND"] not)*       two operands with no operator between them are AND-ed
+ * not     := "NOT" not | near
+ * near    := primary ("NEAR/"k term)* the terms are at most k positions apart, in any order
+ * primary := "(" or ")" | '"' term+ '"' | term
+ * </pre>
+ *
+ * So <code>heart (attack OR failure) NOT surgery</code> is <code>heart AND (attack OR failure) AND NOT surgery</code>.
+ * Operators inside quotes are words of the phrase, and a chain of NEAR must use the same distance and
+ * single terms only. A term with a <code>*</code>, such as <code>diabet*</code> or <code>*itis</code>, is a
+ * wildcard, which can't be used inside a phrase nor with NEAR.
+ *
+ * @author Luiz Felix
+ */
+class QueryParser {
+	private static final String AND = "and";
+	private static final String OR = "or";
+	private static final String NOT = "not";
+	private static final String NEAR = "near/";
+	private static final String QUOTE = "\"";
+	
+	private final List<String> tokens;
+	private int position;
+	
+	private QueryParser(List<String> tokens) {
+		this.tokens = tokens;
+	}
+	
+	/**
+	 * @param query The text of the query.
+	 * @return The root of the tree of the query.
+	 * @throws IndexerException If the query is empty or malformed.
+	 */
+	static QueryNode parse(String query) throws IndexerException {
+		if (query == null)
+			throw new IndexerException("Invalid empty query.");
+		
+		QueryParser parser = new QueryParser(tokenise(query));
+		if (parser.tokens.isEmpty())
+			throw new IndexerException("Invalid empty query.");
+		
+		QueryNode root = parser.parseOr();
+		
+		if (parser.position < parser.tokens.size())
+			throw new IndexerException("Unexpected '" + parser.tokens.get(parser.position) + "' on the query.");
+		
+		return root;
+	}
+	
+	/*
+	 * Splits the query on whitespaces, parentheses and quotes, which are tokens themselves
+	 */
+	private static List<String> tokenise(String query) {
+		List<String> tokens = new ArrayList<String>();
+		StringBuilder token = new StringBuilder();
+		
+		for (int i = 0; i < query.length(); i++) {
+			char c = query.charAt(i);
+			
+			if (Character.isWhitespace(c) || c == '(' || c == ')' || c == '"') {
+				if (token.length() > 0) {
+					tokens.add(token.toString().toLowerCase());
+					token.setLength(0);
+				}
+				
+				if (!Character.isWhitespace(c))
+					tokens.add(String.valueOf(c));
+			}
+			else
+				token.append(c);
+		}
+		
+		if (token.length() > 0)
+			tokens.add(token.toString().toLowerCase());
+		
+		return tokens;
+	}
+	
+	private String peek() {
+		return (position < tokens.size()) ? tokens.get(position) : null;
+	}
+	
+	private QueryNode parseOr() throws IndexerException {
+		List<QueryNode> children = new ArrayList<QueryNode>();
+		add(children, parseAnd(), QueryNode.Or.class);
+		
+		while (OR.equals(peek())) {
+			position++;
+			add(children, parseAnd(), QueryNode.Or.class);
+		}
+		
+		return (children.size() == 1) ? children.get(0) : new QueryNode.Or(children);
+	}
+	
+	private QueryNode parseAnd() throws IndexerException {
+		List<QueryNode> children = new ArrayList<QueryNode>();
+		add(children, parseNot(), QueryNode.And.class);
+		
+		while (true) {
+			String next = peek();
+			
+			if (AND.equals(next))
+				position++;
+			else if (next == null || next.equals(")") || next.equals(OR))
+				break;
+			
+			add(children, parseNot(), QueryNode.And.class);
+		}
+		
+		return (children.size() == 1) ? children.get(0) : new QueryNode.And(children);
+	}
+	
+	private QueryNode parseNot() throws IndexerException {
+		if (!NOT.equals(peek()))
+			return parseNear();
+		
+		position++;
+		QueryNode child = parseNot();
+		
+		// NOT NOT x = x
+		return (child instanceof QueryNode.Not) ? ((QueryNode.Not) child).child : new QueryNode.Not(child);
+	}
+	
+	private QueryNode parseNear() throws IndexerException {
+		QueryNode first = parsePrimary();
+		int distance = distance(peek());
+		
+		if (distance < 0)
+			return first;
+		
+		List<String> terms = new ArrayList<String>();
+		terms.add(nearOperand(first));
+		
+		while (distance(peek()) >= 0) {
+			if (distance(peek()) != distance)
+				throw new IndexerException("A chain of NEAR must use the same distance, as in \"a NEAR/3 b NEAR/3 c\".");
+			
+			position++;
+			String term = nearOperand(parsePrimary());
+			
+			// a term repeated on a NEAR would match itself
+			if (!terms.contains(term))
+				terms.add(term);
+		}
+		
+		return (terms.size() == 1) ? new QueryNode.Term(terms.get(0)) : new QueryNode.Near(distance, terms);
+	}
+	
+	/*
+	 * The k of a "near/k" token, or -1 if the token isn't a NEAR
+	 */
+	private static int distance(String token) {
+		if (token == null || !token.startsWith(NEAR) || token.length() == NEAR.length())
+			return -1;
+		
+		for (int i = NEAR.length(); i < token.length(); i++)
+			if (!Character.isDigit(token.charAt(i)))
+				return -1;
+		
+		try {
+			return Integer.parseInt(token.substring(NEAR.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	private static String nearOperand(QueryNode node) throws IndexerException {
+		if (!(node instanceof QueryNode.Term) || TermDictionary.isWildcard(((QueryNode.Term) node).term))
+			throw new IndexerException("NEAR can only be applied to single terms, as in \"a NEAR/3 b\".");
+		
+		return ((QueryNode.Term) node).term;
+	}
+	
+	private QueryNode parsePhrase() throws IndexerException {
+		List<String> terms = new ArrayList<String>();
+		
+		for (String token = peek(); !QUOTE.equals(token); token = peek()) {
+			if (token == null)
+				throw new IndexerException("Missing '\"' on the query.");
+			if (token.equals("(") || token.equals(")"))
+				throw new IndexerException("Unexpected '" + token + "' inside a phrase.");
+			
+			terms.add(token);
+			position++;
+		}
+		
+		position++;
+		
+		if (terms.isEmpty())
+			throw new IndexerException("Invalid empty phrase.");
+		
+		if (terms.size() == 1)
+			return term(terms.get(0));
+		
+		for (String term : terms)
+			if (TermDictionary.isWildcard(term))
+				throw new IndexerException("Wildcards can't be used inside a phrase.");
+		
+		return new QueryNode.Phrase(terms);
+	}
+	
+	private QueryNode parsePrimary() throws IndexerException {
+		String token = peek();
+		
+		if (token == null)
+			throw new IndexerException("The query ends where a term was expected.");
+		if (token.equals(")") || token.equals(AND) || token.equals(OR) || distance(token) >= 0)
+			throw new IndexerException("Unexpected '" + token + "' where a term was expected.");
+		
+		position++;
+		
+		if (token.equals(QUOTE))
+			return parsePhrase();
+		
+		if (!token.equals("("))
+			return term(token);
+		
+		QueryNode group = parseOr();
+		
+		if (!")".equals(peek()))
+			throw new IndexerException("Missing ')' on the query.");
+		
+		position++;
+		return group;
+	}
+	
+	/*
+	 * A term, checking that a wildcard can be expanded without scanning the whole dictionary
+	 */
+	private static QueryNode term(String token) throws IndexerException {
+		if (TermDictionary.isWildcard(token) && !TermDictionary.isExpandable(token))
+			throw new IndexerException("The wildcard '" + token + "' needs a prefix, or 3 characters in a row (2 at its end).");
+		
+		return new QueryNode.Term(token);
+	}
+	
+	/*
+	 * Adds a child to an operator, merging it if it is the same operator: (a AND b) AND c = a AND b AND c
+	 */
+	private static void add(List<QueryNode> children, QueryNode child, Class<? extends QueryNode> operator) {
+		if (operator.isInstance(child))
+			children.addAll((child instanceof QueryNode.And) ? ((QueryNode.And) child).children : ((QueryNode.Or) child).children);
+		else
+			children.add(child);
+	}
+}
@@ -0,0 +1,235 @@
+package week3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Turns a query tree into a tree of posting iterators, choosing the cheapest way to evaluate it:
+ * - the operands of an AND are ordered by their estimated amount of documents, so the rarest one leads
+ *   the intersection and the frequent ones are only advanced to its documents;
+ * - an AND with an operand that matches nothing matches nothing, without the other operands being looked up;
+ * - operands of an OR that match nothing are dropped;
+ * - NOT operands of an AND are subtracted from the other operands (AND-NOT), so no complement is built;
+ * - phrases and NEAR are intersected on their documents first, and the positions are only read on the
+ *   documents that have all their terms;
+ * - a NOT with nothing to subtract from, such as <code>NOT a</code> or <code>a OR NOT b</code>, is subtracted
+ *   from the universe, the list of every document of the index, which is streamed like any other list.
+ *
+ * The estimates come from the cardinality of the posting lists: a term costs its document frequency,
+ * an AND, a phrase and a NEAR cost their cheapest operand and an OR the sum of its operands.
+ *
+ * With a deadline, each list read by the plan checks it as it moves, so a query is stopped wherever its
+ * work is done, even if the root of the plan doesn't move.
+ *
+ * @author Luiz Felix
+ */
+class QueryPlanner {
+	private final Function<String, Postings> index;
+	private final Supplier<PostingList> universe;
+	private final Function<String, PositionList> positions;
+	private final PostingIterators.Deadline deadline;
+	
+	/* Each term is looked up once, even if the query repeats it */
+	private final Map<String, Postings> lookedUp = new HashMap<String, Postings>();
+	private final Map<String, PositionList> positionsLookedUp = new HashMap<String, PositionList>();
+	
+	/**
+	 * @param index Gives the documents of a term, or <code>null</code> if it isn't indexed.
+	 * @param universe Gives all the documents of the index, or <code>null</code> if it has none. It is only
+	 * asked for when a negation has nothing else to be subtracted from.
+	 * @param positions Gives the documents and positions of a term, or <code>null</code> if it isn't indexed.
+	 * It may be <code>null</code> itself if there is no positional index, so phrases can't be queried.
+	 * @param deadline The deadline of the evaluation of the plan, or <code>null</code> if it has none.
+	 */
+	QueryPlanner(Function<String, Postings> index, Supplier<PostingList> universe, Function<String, PositionList> positions,
+			PostingIterators.Deadline deadline) {
+		this.index = index;
+		this.universe = universe;
+		this.positions = positions;
+		this.deadline = deadline;
+	}
+	
+	/**
+	 * @param query The root of a query tree.
+	 * @return An iterator over the documents that match the query, or <code>null</code> if none does.
+	 * @throws IllegalStateException If the query has a phrase or a NEAR but there is no positional index,
+	 * which <code>QueryNode.needsPositions()</code> tells beforehand.
+	 */
+	PostingIterator plan(QueryNode query) {
+		if (query instanceof QueryNode.Term) {
+			Postings documents = postings(((QueryNode.Term) query).term);
+			return (documents == null) ? null : timed(documents.iterator());
+		}
+		
+		if (query instanceof QueryNode.Or) {
+			List<PostingIterator> iterators = new ArrayList<PostingIterator>();
+			
+			// 0 (OR) X = X
+			for (QueryNode child : ((QueryNode.Or) query).children) {
+				PostingIterator iterator = plan(child);
+				if (iterator != null)
+					iterators.add(iterator);
+			}
+			
+			return (iterators.isEmpty()) ? null : PostingIterators.or(iterators);
+		}
+		
+		if (query instanceof QueryNode.And)
+			return planAnd(((QueryNode.And) query).children);
+		
+		if (query instanceof QueryNode.Phrase)
+			return planPositions(((QueryNode.Phrase) query).terms, -1);
+		
+		if (query instanceof QueryNode.Near)
+			return planPositions(((QueryNode.Near) query).terms, ((QueryNode.Near) query).distance);
+		
+		return planAnd(Collections.singletonList(query));
+	}
+	
+	/*
+	 * A phrase if distance is negative, a NEAR otherwise. A missing term matches nothing, as on an AND
+	 */
+	private PostingIterator planPositions(List<String> terms, int distance) {
+		if (positions == null)
+			throw new IllegalStateException("Phrases and NEAR can only be queried on an index with positions.");
+		
+		List<PositionIterator> iterators = new ArrayList<PositionIterator>();
+		
+		for (String term : terms) {
+			PositionList list = positions(term);
+			if (list == null) return null;
+			
+			iterators.add(timed(list.iterator()));
+		}
+		
+		return (distance < 0) ? PostingIterators.phrase(iterators) : PostingIterators.near(iterators, distance);
+	}
+	
+	private PostingIterator planAnd(List<QueryNode> children) {
+		List<QueryNode> included = new ArrayList<QueryNode>();
+		List<QueryNode> excluded = new ArrayList<QueryNode>();
+		
+		for (QueryNode child : children) {
+			if (child instanceof QueryNode.Not)
+				excluded.add(((QueryNode.Not) child).child);
+			else
+				included.add(child);
+		}
+		
+		// NOT a = U (AND) NOT a
+		if (included.isEmpty()) {
+			PostingList documents = universe.get();
+			return (documents == null) ? null : subtract(timed(documents.iterator()), excluded);
+		}
+		
+		// the cheapest operands first, stopping at the first one that matches nothing: 0 (AND) X = 0
+		included.sort(Comparator.comparingLong(this::cost));
+		
+		if (cost(included.get(0)) == 0)
+			return null;
+		
+		List<PostingIterator> iterators = new ArrayList<PostingIterator>();
+		
+		for (QueryNode child : included) {
+			PostingIterator iterator = plan(child);
+			if (iterator == null) return null;
+			
+			iterators.add(iterator);
+		}
+		
+		return subtract(PostingIterators.and(iterators), excluded);
+	}
+	
+	/*
+	 * A (AND) NOT (B (OR) C): the excluded documents are only advanced to the included ones
+	 */
+	private PostingIterator subtract(PostingIterator result, List<QueryNode> excluded) {
+		List<PostingIterator> subtracted = new ArrayList<PostingIterator>();
+		
+		for (QueryNode child : excluded) {
+			PostingIterator iterator = plan(child);
+			if (iterator != null)
+				subtracted.add(iterator);
+		}
+		
+		return (subtracted.isEmpty()) ? result : PostingIterators.andNot(result, PostingIterators.or(subtracted));
+	}
+	
+	private PostingIterator timed(PostingIterator iterator) {
+		return (deadline == null) ? iterator : PostingIterators.withDeadline(iterator, deadline);
+	}
+	
+	private PositionIterator timed(PositionIterator iterator) {
+		return (deadline == null) ? iterator : PostingIterators.withDeadline(iterator, deadline);
+	}
+	
+	/*
+	 * Upper bound of the amount of documents matched by a node, which is only looked up, never iterated
+	 */
+	private long cost(QueryNode query) {
+		if (query instanceof QueryNode.Term) {
+			Postings documents = postings(((QueryNode.Term) query).term);
+			return (documents == null) ? 0 : documents.cardinality();
+		}
+		
+		if (query instanceof QueryNode.Or) {
+			long cost = 0;
+			for (QueryNode child : ((QueryNode.Or) query).children)
+				cost += cost(child);
+			
+			return cost;
+		}
+		
+		if (query instanceof QueryNode.And) {
+			long cost = Long.MAX_VALUE;
+			for (QueryNode child : ((QueryNode.And) query).children)
+				cost = Math.min(cost, cost(child));
+			
+			return cost;
+		}
+		
+		if (query instanceof QueryNode.Phrase)
+			return cost(((QueryNode.Phrase) query).terms);
+		
+		if (query instanceof QueryNode.Near)
+			return cost(((QueryNode.Near) query).terms);
+		
+		// a negation may match every document but the ones of its child
+		PostingList documents = universe.get();
+		return (documents == null) ? 0 : documents.cardinality();
+	}
+	
+	/*
+	 * The cheapest term of a phrase or a NEAR, taken from the document index, which is cheaper to look up
+	 */
+	private long cost(List<String> terms) {
+		long cost = Long.MAX_VALUE;
+		
+		for (String term : terms) {
+			Postings documents = postings(term);
+			cost = Math.min(cost, (documents == null) ? 0 : documents.cardinality());
+		}
+		
+		return cost;
+	}
+	
+	private PositionList positions(String term) {
+		if (!positionsLookedUp.containsKey(term))
+			positionsLookedUp.put(term, positions.apply(term));
+		
+		return positionsLookedUp.get(term);
+	}
+	
+	private Postings postings(String term) {
+		if (!lookedUp.containsKey(term))
+			lookedUp.put(term, index.apply(term));
+		
+		return lookedUp.get(term);
+	}
+}
@@ -0,0 +1,141 @@
+package week3;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.Function;
+
+/**
+ * The documents that match a query, read from the posting lists as they are asked for instead of being
+ * collected up front. Iterating, counting or reading a page of the result only keeps the current position
+ * of each posting list in memory, plus the page itself, whatever the amount of documents that match.
+ *
+ * The result may be read several times; each read evaluates the query again over the index, unless the index
+ * has a query cache: a result that isn't cached is then read whole on its first read, as long as it fits on
+ * the cache, and the next reads, the ones of the next pages for instance, are taken from the cache.
+ *
+ * @author Luiz Felix
+ */
+public class QueryResult {
+	private final Function<PostingIterators.Deadline, PostingIterator> documents;
+	
+	/* The System.nanoTime() after which the result may no longer be read, if timed */
+	private final boolean timed;
+	private final long deadline;
+	
+	/* Computed on the first call to count() */
+	private int count = -1;
+	
+	/**
+	 * @param documents Evaluates the query, giving a new iterator over its documents on each call, or
+	 * <code>null</code> if no document matches. The iterator checks the deadline it is given, if any.
+	 */
+	QueryResult(Function<PostingIterators.Deadline, PostingIterator> documents) {
+		this(documents, false, 0);
+	}
+	
+	private QueryResult(Function<PostingIterators.Deadline, PostingIterator> documents, boolean timed, long deadline) {
+		this.documents = documents;
+		this.timed = timed;
+		this.deadline = deadline;
+	}
+	
+	/**
+	 * Returns the same result, limited in time. The deadline covers every read of the result, such as a
+	 * call to <code>count()</code> or <code>page()</code>, which throw <code>QueryTimeoutException</code>
+	 * once it is reached instead of going on. It is checked by every posting list the query reads, so even
+	 * a read that finds few documents, but walks through long lists to find them, is stopped.
+	 * @param deadline The <code>System.nanoTime()</code> after which the result may no longer be read.
+	 * @return The limited result.
+	 */
+	public QueryResult withDeadline(long deadline) {
+		return new QueryResult(documents, true, deadline);
+	}
+	
+	private PostingIterator open() {
+		PostingIterator iterator = documents.apply((timed) ? new PostingIterators.Deadline(deadline) : null);
+		return (iterator == null) ? PostingIterators.empty() : iterator;
+	}
+	
+	/**
+	 * @return A new iterator over the ID of each matched document, in increasing order.
+	 */
+	public PrimitiveIterator.OfInt iterator() {
+		PostingIterator iterator = open();
+		
+		return new PrimitiveIterator.OfInt() {
+			private int next = iterator.nextDoc();
+			
+			@Override
+			public boolean hasNext() {
+				return next != PostingIterator.NO_MORE_DOCS;
+			}
+			
+			@Override
+			public int nextInt() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				
+				int current = next;
+				next = iterator.nextDoc();
+				return current;
+			}
+		};
+	}
+	
+	/**
+	 * @return The amount of matched documents, counted without keeping any of them.
+	 */
+	public int count() {
+		if (count < 0) {
+			PostingIterator iterator = open();
+			int counted = 0;
+			
+			while (iterator.nextDoc() != PostingIterator.NO_MORE_DOCS)
+				counted++;
+			
+			count = counted;
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * @return <code>true</code> if no document matches the query.
+	 */
+	public boolean isEmpty() {
+		return (count < 0) ? !iterator().hasNext() : count == 0;
+	}
+	
+	/**
+	 * Returns a slice of the matched documents, in increasing order of ID.
+	 * @param offset The amount of documents skipped.
+	 * @param limit The largest amount of documents returned.
+	 * @return The ID of up to <code>limit</code> documents, starting from the document number <code>offset</code>.
+	 * The array is empty if <code>offset</code> is beyond the last document.
+	 * @throws IllegalArgumentException If <code>offset</code> or <code>limit</code> is negative.
+	 */
+	public int[] page(int offset, int limit) {
+		if (offset < 0 || limit < 0)
+			throw new IllegalArgumentException("Invalid page: offset " + offset + ", limit " + limit + ".");
+		
+		PostingIterator iterator = open();
+		int docId = iterator.nextDoc();
+		
+		for (int i = 0; i < offset && docId != PostingIterator.NO_MORE_DOCS; i++)
+			docId = iterator.nextDoc();
+		
+		// the page only grows as documents are found, so a huge limit costs nothing by itself
+		int[] page = new int[Math.min(limit, 16)];
+		int length = 0;
+		
+		for (; length < limit && docId != PostingIterator.NO_MORE_DOCS; docId = iterator.nextDoc()) {
+			if (length == page.length)
+				page = Arrays.copyOf(page, (int) Math.min((long) limit, 2L * length));
+			
+			page[length++] = docId;
+		}
+		
+		return (length == page.length) ? page : Arrays.copyOf(page, length);
+	}
+}
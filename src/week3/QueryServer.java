@@ -0,0 +1,261 @@
+package week3;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Answers the queries of <code>Indexer.search()</code> over HTTP, on a fixed pool of worker threads:
+ *
+ * <pre>
+ * GET /search?q=heart+(attack+OR+failure)&amp;offset=0&amp;limit=20&amp;count=true
+ * </pre>
+ *
+ * The answer is plain text: the amount of matched documents on the first line, then the ID and the file
+ * name of each document of the page, separated by a tab. Counting the documents reads all of them, so unless
+ * <code>count=true</code> is given, the amount is only exact on the last page; on the others it is the least
+ * amount there may be, followed by <code>+</code>, such as <code>21+</code>. Invalid queries are answered with 400, and the
+ * counters of the server are on <code>GET /stats</code>.
+ *
+ * Requests are accepted by the thread of the HTTP server, which only hands them to the workers. At most
+ * <code>queueCapacity</code> requests wait for a worker; the ones beyond it are answered at once with 503,
+ * so a burst can't pile up unbounded work. A request that waits or runs for longer than the timeout is
+ * answered with 504, and its query stops reading the posting lists.
+ *
+ * The index is shared by all the workers and must not be changed (such as by attaching another index to
+ * it) while the server runs. Queries keep no state on it, so they don't need any lock.
+ *
+ * @author Luiz Felix
+ */
+public class QueryServer {
+	public static final int DEFAULT_PORT = 8080;
+	public static final int DEFAULT_QUEUE_CAPACITY = 64;
+	public static final long DEFAULT_TIMEOUT_MILLIS = 2000;
+	
+	/* Size of a page when the request doesn't set it, and the largest one */
+	private static final int DEFAULT_LIMIT = 20;
+	private static final int MAX_LIMIT = 1000;
+	
+	static {
+		// the headers and the body of an answer go on separate packets, which without this wait for the
+		// delayed ACK of the client: about 40 ms per request on a keep-alive connection
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+	
+	private final Indexer index;
+	private final HttpServer server;
+	private final ThreadPoolExecutor workers;
+	private final long timeout;
+	
+	private final AtomicLong answered = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong timedOut = new AtomicLong();
+	private final AtomicLong invalid = new AtomicLong();
+	
+	/**
+	 * Creates a server, which only accepts requests once started.
+	 * @param index The index to be queried.
+	 * @param port The port to listen on, or 0 for any free one.
+	 * @param threads The amount of workers. If it is lesser than 1, one thread per available processor is used.
+	 * @param queueCapacity The amount of requests that may wait for a worker. If it is lesser than 1,
+	 * <code>DEFAULT_QUEUE_CAPACITY</code> is used.
+	 * @param timeoutMillis How long a request may wait and run. If it is lesser than 1, <code>DEFAULT_TIMEOUT_MILLIS</code> is used.
+	 * @throws IOException If the port can't be bound.
+	 */
+	public QueryServer(Indexer index, int port, int threads, int queueCapacity, long timeoutMillis) throws IOException {
+		if (threads < 1)
+			threads = Runtime.getRuntime().availableProcessors();
+		if (queueCapacity < 1)
+			queueCapacity = DEFAULT_QUEUE_CAPACITY;
+		if (timeoutMillis < 1)
+			timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+		
+		this.index = index;
+		this.timeout = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadPoolExecutor.AbortPolicy());
+		
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/search", this::admit);
+		server.createContext("/stats", exchange -> send(exchange, 200, stats()));
+		
+		// no executor: the requests are read by the thread of the server, which hands them to the workers
+		server.setExecutor(null);
+	}
+	
+	public void start() {
+		server.start();
+	}
+	
+	/**
+	 * Stops accepting requests and waits for the ones being answered.
+	 * @param delaySeconds How long to wait for the requests being answered.
+	 */
+	public void stop(int delaySeconds) {
+		server.stop(delaySeconds);
+		workers.shutdown();
+		
+		try {
+			workers.awaitTermination(delaySeconds, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * @return The port the server listens on.
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+	
+	/*
+	 * Runs on the thread of the server, so it must not block: the request either gets a place on the queue
+	 * or is turned down
+	 */
+	private void admit(HttpExchange exchange) throws IOException {
+		long admitted = System.nanoTime();
+		
+		try {
+			workers.execute(() -> answer(exchange, admitted));
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			send(exchange, 503, "The server is busy, try again later.\n");
+		}
+	}
+	
+	private void answer(HttpExchange exchange, long admitted) {
+		long deadline = admitted + timeout;
+		
+		try {
+			// the client already gave up, there's no point in running the query
+			if (System.nanoTime() - deadline > 0) {
+				timedOut.incrementAndGet();
+				send(exchange, 504, "The request waited too long for a worker.\n");
+				return;
+			}
+			
+			Map<String, String> parameters = parameters(exchange.getRequestURI().getRawQuery());
+			int offset = parse(parameters.get("offset"), 0);
+			int limit = Math.min(parse(parameters.get("limit"), DEFAULT_LIMIT), MAX_LIMIT);
+			
+			QueryResult result;
+			
+			try {
+				result = index.search(parameters.get("q")).withDeadline(deadline);
+			} catch (IndexerException e) {
+				invalid.incrementAndGet();
+				send(exchange, 400, e.getMessage() + '\n');
+				return;
+			}
+			
+			// one more document tells whether this is the last page
+			int[] page = result.page(offset, limit + 1);
+			int length = Math.min(page.length, limit);
+			
+			StringBuilder body = new StringBuilder();
+			
+			if ("true".equals(parameters.get("count")) || (page.length == 0 && offset > 0))
+				body.append(result.count()).append('\n');
+			else if (page.length > limit)
+				body.append(offset + limit + 1).append("+\n");
+			else
+				body.append(offset + length).append('\n');
+			
+			for (int i = 0; i < length; i++)
+				body.append(page[i]).append('\t').append(index.getDocumentName(page[i])).append('\n');
+			
+			answered.incrementAndGet();
+			send(exchange, 200, body.toString());
+		} catch (QueryTimeoutException e) {
+			timedOut.incrementAndGet();
+			send(exchange, 504, e.getMessage() + '\n');
+		} catch (RuntimeException e) {
+			send(exchange, 500, "Internal error: " + e + '\n');
+		}
+	}
+	
+	private String stats() {
+		return "answered " + answered.get() + "\nrejected " + rejected.get() + "\ntimed out " + timedOut.get() + 
+				"\ninvalid " + invalid.get() + "\nqueued " + workers.getQueue().size() + "\nactive " + workers.getActiveCount() + 
+				"\ncache hits " + index.getCacheHits() + "\ncache misses " + index.getCacheMisses() + 
+				"\ncache evictions " + index.getCacheEvictions() + '\n';
+	}
+	
+	/*
+	 * Fails silently: a client that went away can't be told anything
+	 */
+	private static void send(HttpExchange exchange, int status, String body) {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		
+		try (OutputStream output = exchange.getResponseBody()) {
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+			exchange.sendResponseHeaders(status, bytes.length);
+			output.write(bytes);
+		} catch (IOException e) {
+			exchange.close();
+		}
+	}
+	
+	private static Map<String, String> parameters(String query) {
+		Map<String, String> parameters = new HashMap<String, String>();
+		if (query == null) return parameters;
+		
+		for (String parameter : query.split("&")) {
+			int separator = parameter.indexOf('=');
+			if (separator < 0) continue;
+			
+			try {
+				parameters.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"), 
+						URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+			} catch (UnsupportedEncodingException | IllegalArgumentException e) {
+				// a malformed parameter is left out
+			}
+		}
+		
+		return parameters;
+	}
+	
+	/*
+	 * A non negative number, or the default value if it is missing or invalid
+	 */
+	private static int parse(String value, int defaultValue) {
+		try {
+			int number = Integer.parseInt(value);
+			return (number < 0) ? defaultValue : number;
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+	
+	/**
+	 * Serves the index of the corpus as <code>QueryConsole</code> does, mapping the saved index if there is one.
+	 * Arguments: [port] [threads] [queue capacity] [timeout in ms]
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = (args.length > 0) ? parse(args[0], DEFAULT_PORT) : DEFAULT_PORT;
+		int threads = (args.length > 1) ? parse(args[1], 0) : 0;
+		int queueCapacity = (args.length > 2) ? parse(args[2], DEFAULT_QUEUE_CAPACITY) : DEFAULT_QUEUE_CAPACITY;
+		long timeout = (args.length > 3) ? parse(args[3], (int) DEFAULT_TIMEOUT_MILLIS) : DEFAULT_TIMEOUT_MILLIS;
+		
+		Indexer index = QueryConsole.openIndex(false);
+		QueryServer server = new QueryServer(index, port, threads, queueCapacity, timeout);
+		server.start();
+		
+		System.out.println("Serving queries on http://localhost:" + server.getPort() + "/search?q=...");
+	}
+}
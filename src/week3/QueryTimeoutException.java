@@ -0,0 +1,14 @@
+package week3;
+
+/**
+ * Thrown while a <code>QueryResult</code> is read past its deadline, as set by <code>QueryResult.withDeadline()</code>.
+ *
+ * @author Luiz Felix
+ */
+public class QueryTimeoutException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+	
+	public QueryTimeoutException(String message) {
+		super (message);
+	}
+}
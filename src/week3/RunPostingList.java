@@ -0,0 +1,122 @@
+package week3;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stores the intervals of consecutive document IDs as their first and last IDs. It is the smallest
+ * container for terms that cover long ranges of the corpus, such as the ones of a crawl of a single site.
+ *
+ * Layout: header | int runs | runs x (int first ID, int last ID)
+ *
+ * @author Luiz Felix
+ */
+class RunPostingList extends PostingList {
+	private static final int RUN_TABLE = HEADER_SIZE + 4;
+	
+	private final int runs;
+	
+	RunPostingList(ByteBuffer buffer) {
+		super(buffer);
+		this.runs = buffer.getInt(HEADER_SIZE);
+	}
+	
+	private static int countRuns(int[] documents, int length) {
+		int runs = 1;
+		
+		for (int i = 1; i < length; i++)
+			if (documents[i] != documents[i - 1] + 1)
+				runs++;
+		
+		return runs;
+	}
+	
+	static int encodedSize(int[] documents, int length) {
+		return (int) Math.min(RUN_TABLE + 8L * countRuns(documents, length), Integer.MAX_VALUE);
+	}
+	
+	static ByteBuffer encode(int[] documents, int length, int size) {
+		ByteBuffer buffer = allocate(RUNS, length, size);
+		buffer.putInt(HEADER_SIZE, countRuns(documents, length));
+		
+		int offset = RUN_TABLE;
+		buffer.putInt(offset, documents[0]);
+		
+		for (int i = 1; i < length; i++)
+			if (documents[i] != documents[i - 1] + 1) {
+				buffer.putInt(offset + 4, documents[i - 1]);
+				offset += 8;
+				buffer.putInt(offset, documents[i]);
+			}
+		
+		buffer.putInt(offset + 4, documents[length - 1]);
+		return buffer;
+	}
+	
+	private int first(int run) {
+		return buffer.getInt(RUN_TABLE + 8 * run);
+	}
+	
+	private int last(int run) {
+		return buffer.getInt(RUN_TABLE + 8 * run + 4);
+	}
+	
+	@Override
+	public PostingIterator iterator() {
+		return new PostingIterator() {
+			private int run = 0;
+			private int docId = -1;
+			
+			@Override
+			public int docId() {
+				return docId;
+			}
+			
+			@Override
+			public int nextDoc() {
+				if (docId == NO_MORE_DOCS) return docId;
+				
+				if (docId < 0)
+					return docId = first(0);
+				
+				if (docId < last(run))
+					return ++docId;
+				
+				return docId = (++run == runs) ? NO_MORE_DOCS : first(run);
+			}
+			
+			@Override
+			public int advance(int target) {
+				if (docId == NO_MORE_DOCS) return docId;
+				
+				if (last(run) < target) {
+					// binary search for the first run that ends at or after target
+					int low = run + 1;
+					int high = runs - 1;
+					
+					if (low > high || last(high) < target) {
+						run = runs;
+						return docId = NO_MORE_DOCS;
+					}
+					
+					while (low < high) {
+						int middle = (low + high) >>> 1;
+						
+						if (last(middle) < target)
+							low = middle + 1;
+						else
+							high = middle;
+					}
+					
+					run = low;
+				}
+				
+				return docId = Math.max(target, first(run));
+			}
+			
+			@Override
+			public int cost() {
+				return cardinality;
+			}
+		};
+	}
+}
@@ -0,0 +1,53 @@
+package week3;
+
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable set of terms and their posting lists, either built in memory or read from a file
+ * written by <code>MappedSegment.write()</code>.
+ *
+ * @author Luiz Felix
+ */
+interface Segment {
+	/**
+	 * @param term A lower cased term.
+	 * @return The documents of the term, or <code>null</code> if it isn't on this segment.
+	 */
+	PostingList postings(String term);
+	
+	/**
+	 * @return The amount of distinct terms.
+	 */
+	int termCount();
+	
+	/**
+	 * @param consumer Receives every term and its documents.
+	 */
+	void forEachTerm(BiConsumer<String, PostingList> consumer);
+	
+	/**
+	 * @return The sorted terms of the segment, which expand wildcard terms. It is built on the first call.
+	 */
+	TermDictionary terms();
+	
+	/**
+	 * @return The file names of the documents, without extension, in the order of their IDs.
+	 */
+	DocumentNameStore documentNames();
+	
+	/**
+	 * @return The documents of the segment that were deleted, which keep their IDs and names but are on no
+	 * posting list, or <code>null</code> if there are none.
+	 */
+	PostingList deletedDocuments();
+	
+	/**
+	 * @return The ID of the first document of the segment.
+	 */
+	int firstDocumentId();
+	
+	/**
+	 * @return The amount of bytes taken by the posting lists and the term dictionary.
+	 */
+	long sizeInBytes();
+}
@@ -0,0 +1,203 @@
+package week3;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * The terms of a segment, sorted by their bytes, which expands wildcard terms such as <code>diabet*</code>
+ * or <code>*itis</code> into the terms they match without scanning the whole vocabulary. The terms are
+ * front coded on a <code>DocumentNameStore</code>, so a prefix is a range of positions found by a binary
+ * search. The other wildcards are resolved by a k-gram index: each term is padded with <code>BOUNDARY</code>
+ * on both ends and split into its substrings of <code>K</code> characters, and each k-gram keeps the
+ * positions of the terms that have it on a <code>PostingList</code>. The terms that have all the k-grams
+ * of a pattern are only candidates, e.g. <code>*ab*ba*</code> and <code>abba</code>, so each one is checked
+ * against the pattern.
+ *
+ * A wildcard needs either a prefix or a run of <code>K</code> characters, counting its ends, to be expanded;
+ * <code>isExpandable()</code> tells whether it has one.
+ *
+ * @author Luiz Felix
+ */
+class TermDictionary {
+	/* Matches any sequence of characters, including an empty one */
+	static final char WILDCARD = '*';
+	
+	private static final int K = 3;
+	private static final char BOUNDARY = '$';
+	
+	private final DocumentNameStore terms;
+	private final Map<String, PostingList> grams;
+	
+	private TermDictionary(DocumentNameStore terms, Map<String, PostingList> grams) {
+		this.terms = terms;
+		this.grams = grams;
+	}
+	
+	/**
+	 * @param segment A segment.
+	 * @return The dictionary of the terms of the segment.
+	 */
+	static TermDictionary of(Segment segment) {
+		List<byte[]> bytes = new ArrayList<byte[]>(segment.termCount());
+		segment.forEachTerm((term, documents) -> bytes.add(term.getBytes(StandardCharsets.UTF_8)));
+		
+		// the order of the store, so the position of a term is its rank
+		bytes.sort(MappedSegment::compare);
+		
+		List<String> sorted = new ArrayList<String>(bytes.size());
+		Map<String, PostingListBuilder> building = new HashMap<String, PostingListBuilder>();
+		
+		for (byte[] term : bytes) {
+			String padded = BOUNDARY + new String(term, StandardCharsets.UTF_8) + BOUNDARY;
+			
+			for (int i = 0; i + K <= padded.length(); i++) {
+				String gram = padded.substring(i, i + K);
+				PostingListBuilder positions = building.get(gram);
+				
+				if (positions == null) {
+					positions = new PostingListBuilder();
+					building.put(gram, positions);
+				}
+				
+				// a term that repeats a k-gram is added once, as the builder ignores repetitions in a row
+				positions.add(sorted.size());
+			}
+			
+			sorted.add(padded.substring(1, padded.length() - 1));
+		}
+		
+		Map<String, PostingList> grams = new HashMap<String, PostingList>(building.size() * 2);
+		for (Entry<String, PostingListBuilder> entry : building.entrySet())
+			grams.put(entry.getKey(), entry.getValue().build());
+		
+		return new TermDictionary(DocumentNameStore.of(sorted), grams);
+	}
+	
+	/**
+	 * @param term A term of a query.
+	 * @return <code>true</code> if the term has a <code>WILDCARD</code>.
+	 */
+	static boolean isWildcard(String term) {
+		return term.indexOf(WILDCARD) >= 0;
+	}
+	
+	/**
+	 * @param pattern A wildcard term.
+	 * @return <code>true</code> if the pattern has a prefix or a k-gram, so it can be expanded without
+	 * scanning the whole dictionary.
+	 */
+	static boolean isExpandable(String pattern) {
+		return pattern.charAt(0) != WILDCARD || !grams(pattern).isEmpty();
+	}
+	
+	/**
+	 * Finds the terms that match a pattern, in the order of their bytes.
+	 * @param pattern A lower cased wildcard term, for which <code>isExpandable()</code> is <code>true</code>.
+	 * @param limit The greatest amount of terms returned. The first ones are returned if more terms match.
+	 * @return The terms that match the pattern, which may be none.
+	 */
+	List<String> expand(String pattern, int limit) {
+		List<String> matched = new ArrayList<String>();
+		int star = pattern.indexOf(WILDCARD);
+		List<String> patternGrams = grams(pattern);
+		
+		// a trailing wildcard is a range of the dictionary, where every term matches
+		if (star > 0 && (star == pattern.length() - 1 || patternGrams.isEmpty())) {
+			String prefix = pattern.substring(0, star);
+			
+			for (int i = terms.lowerBound(prefix); i < terms.size() && matched.size() < limit; i++) {
+				String term = terms.name(i);
+				if (!term.startsWith(prefix)) break;
+				
+				if (matches(term, pattern))
+					matched.add(term);
+			}
+			
+			return matched;
+		}
+		
+		if (patternGrams.isEmpty()) return matched;
+		
+		List<PostingIterator> iterators = new ArrayList<PostingIterator>(patternGrams.size());
+		
+		for (String gram : patternGrams) {
+			PostingList positions = grams.get(gram);
+			
+			// no term has the k-gram, so none matches
+			if (positions == null) return matched;
+			
+			iterators.add(positions.iterator());
+		}
+		
+		PostingIterator candidates = PostingIterators.and(iterators);
+		
+		for (int i = candidates.nextDoc(); i != PostingIterator.NO_MORE_DOCS && matched.size() < limit; i = candidates.nextDoc()) {
+			String term = terms.name(i);
+			
+			if (matches(term, pattern))
+				matched.add(term);
+		}
+		
+		return matched;
+	}
+	
+	/**
+	 * @return The amount of bytes taken by the terms and the k-grams.
+	 */
+	long sizeInBytes() {
+		long size = terms.sizeInBytes();
+		
+		for (PostingList positions : grams.values())
+			size += positions.sizeInBytes();
+		
+		return size;
+	}
+	
+	/*
+	 * The distinct k-grams of the runs of characters of the padded pattern
+	 */
+	private static List<String> grams(String pattern) {
+		List<String> grams = new ArrayList<String>();
+		
+		for (String run : (BOUNDARY + pattern + BOUNDARY).split("\\" + WILDCARD))
+			for (int i = 0; i + K <= run.length(); i++)
+				if (!grams.contains(run.substring(i, i + K)))
+					grams.add(run.substring(i, i + K));
+		
+		return grams;
+	}
+	
+	/*
+	 * Matches a term against a pattern, backtracking to the last wildcard on a mismatch
+	 */
+	static boolean matches(String term, String pattern) {
+		int t = 0, p = 0;
+		int star = -1, resume = 0;
+		
+		while (t < term.length()) {
+			if (p < pattern.length() && pattern.charAt(p) == WILDCARD) {
+				star = p++;
+				resume = t;
+			}
+			else if (p < pattern.length() && pattern.charAt(p) == term.charAt(t)) {
+				p++;
+				t++;
+			}
+			else if (star >= 0) {
+				p = star + 1;
+				t = ++resume;
+			}
+			else
+				return false;
+		}
+		
+		while (p < pattern.length() && pattern.charAt(p) == WILDCARD)
+			p++;
+		
+		return p == pattern.length();
+	}
+}
@@ -0,0 +1,169 @@
+package week3;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import parsing.CorpusSource;
+
+/**
+ * A simple class to test the incremental indexing against an index built at once. The documents of a corpus
+ * are added one by one to an empty index while other threads query it, then some of them are deleted, and
+ * the queries of both indexes, the one saved and opened again included, must match. The amounts of
+ * mismatches are printed after each step.
+ * Arguments: corpus path [flush threshold] [seed]
+ * @author Luiz Felix
+ */
+public class TestLiveIndexing {
+	private static final String[] WORDS = {"computer", "algorithm", "the", "of", "zzz", "matrix", "language", "system",
+			"program", "data", "sort", "compiler", "list", "tree", "graph", "error"};
+	
+	private static final int READERS = 3;
+	
+	public static void main(String args[]) throws IOException, IndexerException, InterruptedException {
+		if (args.length < 1) {
+			System.out.println("Usage: TestLiveIndexing <corpus path> [flush threshold] [seed]");
+			return;
+		}
+		
+		Random random = new Random((args.length > 2) ? Long.parseLong(args[2]) : 1);
+		Indexer full = new Indexer(args[0]);
+		
+		List<String> names = new ArrayList<String>();
+		List<String> texts = new ArrayList<String>();
+		
+		CorpusSource.open(args[0]).forEach(document -> {
+			names.add(document.getName());
+			texts.add(read(document.openReader()));
+		});
+		
+		Path empty = Files.createTempDirectory("empty");
+		Indexer live = new Indexer(empty.toString());
+		live.setFlushThreshold((args.length > 1) ? Integer.parseInt(args[1]) : 37);
+		
+		// the results read while the documents are added must always be sorted and counted right
+		AtomicBoolean done = new AtomicBoolean();
+		AtomicInteger errors = new AtomicInteger();
+		List<Thread> readers = new ArrayList<Thread>();
+		
+		for (int i = 0; i < READERS; i++) {
+			Thread reader = new Thread(() -> {
+				Random words = new Random();
+				
+				while (!done.get()) {
+					try {
+						QueryResult result = live.search(WORDS[words.nextInt(WORDS.length)] + " OR NOT " + WORDS[words.nextInt(WORDS.length)]);
+						int[] documents = result.page(0, Integer.MAX_VALUE);
+						
+						for (int j = 1; j < documents.length; j++)
+							if (documents[j - 1] >= documents[j])
+								errors.incrementAndGet();
+						
+						if (documents.length != result.count())
+							errors.incrementAndGet();
+					} catch (IndexerException | RuntimeException e) {
+						e.printStackTrace();
+						errors.incrementAndGet();
+					}
+				}
+			});
+			
+			reader.start();
+			readers.add(reader);
+		}
+		
+		for (int i = 0; i < names.size(); i++)
+			live.addDocument(names.get(i), new StringReader(texts.get(i)));
+		live.flush();
+		
+		done.set(true);
+		for (Thread reader : readers)
+			reader.join();
+		
+		System.out.println(errors.get() + " errors on the queries read while adding");
+		System.out.println(mismatches(full, live, null, names.size()) + " mismatches after adding " + names.size() + " documents");
+		
+		BitSet deleted = new BitSet();
+		int wrongDeletes = 0;
+		
+		for (int i = 0; i < names.size() / 3; i++) {
+			int docId = 1 + random.nextInt(names.size());
+			
+			if (live.deleteDocument(names.get(docId - 1)) == deleted.get(docId))
+				wrongDeletes++;
+			
+			deleted.set(docId);
+		}
+		
+		live.flush();
+		
+		System.out.println(wrongDeletes + " wrong deletes, " + mismatches(full, live, deleted, names.size()) + " mismatches after deleting "
+				+ deleted.cardinality() + " documents");
+		
+		Path saved = Files.createTempFile("live", ".index");
+		live.save(saved.toString());
+		Indexer reopened = Indexer.open(saved.toString());
+		
+		System.out.println(mismatches(live, reopened, null, names.size()) + " mismatches after saving and opening again");
+		
+		Files.delete(saved);
+		Files.delete(empty);
+	}
+	
+	/*
+	 * Queries of pairs of words, with a negation, and the names of the documents. The documents deleted
+	 * from the second index are taken out of the results of the first one
+	 */
+	private static int mismatches(Indexer expected, Indexer found, BitSet deleted, int documents) throws IndexerException {
+		int mismatches = 0;
+		
+		for (String a : WORDS) {
+			for (String b : WORDS) {
+				String query = a + " (" + b + " OR NOT system)";
+				
+				if (!Objects.equals(live(expected.search(query), deleted), live(found.search(query), null)))
+					mismatches++;
+			}
+		}
+		
+		for (int docId = 1; docId <= documents; docId++) {
+			String name = (deleted != null && deleted.get(docId)) ? null : expected.getDocumentName(docId);
+			
+			if (!Objects.equals(name, found.getDocumentName(docId)))
+				mismatches++;
+		}
+		
+		return mismatches;
+	}
+	
+	private static BitSet live(QueryResult result, BitSet deleted) {
+		BitSet documents = new BitSet();
+		
+		for (int docId : result.page(0, Integer.MAX_VALUE))
+			documents.set(docId);
+		
+		if (deleted != null)
+			documents.andNot(deleted);
+		
+		return documents;
+	}
+	
+	private static String read(Reader reader) throws IOException {
+		StringBuilder text = new StringBuilder();
+		char[] buffer = new char[4096];
+		
+		for (int read = reader.read(buffer); read > 0; read = reader.read(buffer))
+			text.append(buffer, 0, read);
+		
+		return text.toString();
+	}
+}
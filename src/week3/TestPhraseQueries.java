@@ -0,0 +1,130 @@
+package week3;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import parsing.CorpusSource;
+import parsing.HtmlTokeniser;
+
+/**
+ * A simple class to test the phrase and NEAR queries of the positional index against a scan of the words of
+ * every document. The queries are random slices of the documents, some with a word replaced, so not all of
+ * them match, and random sets of their words for NEAR. The queries whose documents differ are printed.
+ * Arguments: corpus path [queries] [seed]
+ * @author Luiz Felix
+ */
+public class TestPhraseQueries {
+	public static void main(String args[]) throws IOException, IndexerException {
+		if (args.length < 1) {
+			System.out.println("Usage: TestPhraseQueries <corpus path> [queries] [seed]");
+			return;
+		}
+		
+		int queries = (args.length > 1) ? Integer.parseInt(args[1]) : 3000;
+		Random random = new Random((args.length > 2) ? Long.parseLong(args[2]) : 1);
+		
+		Indexer index = new Indexer(args[0]);
+		index.attachPositionalIndex(new PositionalIndex(CorpusSource.open(args[0]), index::getDocumentId));
+		
+		Map<Integer, List<String>> documents = words(args[0], index);
+		List<Integer> ids = new ArrayList<Integer>(documents.keySet());
+		int checked = 0, mismatches = 0;
+		
+		while (checked < queries) {
+			List<String> source = documents.get(ids.get(random.nextInt(ids.size())));
+			if (source.size() < 6) continue;
+			
+			int length = 2 + random.nextInt(3);
+			int start = random.nextInt(source.size() - length);
+			List<String> terms = new ArrayList<String>(source.subList(start, start + length));
+			
+			if (random.nextInt(3) == 0)
+				terms.set(random.nextInt(length), source.get(random.nextInt(source.size())));
+			
+			boolean near = random.nextBoolean();
+			int distance = 1 + random.nextInt(5);
+			
+			if (near) {
+				terms = new ArrayList<String>(new LinkedHashSet<String>(terms));
+				Collections.shuffle(terms, random);
+				
+				// the operators can't be quoted on a NEAR
+				if (terms.size() < 2 || terms.contains("and") || terms.contains("or") || terms.contains("not")) continue;
+			}
+			
+			Set<Integer> expected = new TreeSet<Integer>();
+			
+			for (Map.Entry<Integer, List<String>> document : documents.entrySet())
+				if (near ? hasNear(document.getValue(), terms, distance) : hasPhrase(document.getValue(), terms))
+					expected.add(document.getKey());
+			
+			String query = near ? String.join(" near/" + distance + " ", terms) : '"' + String.join(" ", terms) + '"';
+			Set<Integer> found = new TreeSet<Integer>();
+			
+			for (int docId : index.search(query).page(0, Integer.MAX_VALUE))
+				found.add(docId);
+			
+			if (!found.equals(expected)) {
+				mismatches++;
+				System.out.println("Mismatch on " + query + ": expected " + expected + ", found " + found);
+			}
+			
+			checked++;
+		}
+		
+		System.out.println(mismatches + " mismatches on " + checked + " queries");
+	}
+	
+	/*
+	 * The words of every document, as the indexes tokenise them
+	 */
+	private static Map<Integer, List<String>> words(String path, Indexer index) throws IOException {
+		Map<Integer, List<String>> documents = new TreeMap<Integer, List<String>>();
+		HtmlTokeniser tokeniser = new HtmlTokeniser(false, true);
+		
+		CorpusSource.open(path).forEach(document -> {
+			List<String> words = new ArrayList<String>();
+			tokeniser.tokenise(document.openReader(), (word, length) -> words.add(new String(word, 0, length)));
+			documents.put(index.getDocumentId(document.getName()), words);
+		});
+		
+		return documents;
+	}
+	
+	private static boolean hasPhrase(List<String> words, List<String> phrase) {
+		for (int i = 0; i + phrase.size() <= words.size(); i++)
+			if (words.subList(i, i + phrase.size()).equals(phrase))
+				return true;
+		
+		return false;
+	}
+	
+	/*
+	 * Whether a window of distance + 1 words, starting on one of the terms, has all of them
+	 */
+	private static boolean hasNear(List<String> words, List<String> terms, int distance) {
+		for (int i = 0; i < words.size(); i++) {
+			if (!terms.contains(words.get(i))) continue;
+			
+			Set<String> seen = new HashSet<String>();
+			
+			for (int j = i; j < words.size() && j - i <= distance; j++)
+				if (terms.contains(words.get(j)))
+					seen.add(words.get(j));
+			
+			if (seen.size() == terms.size())
+				return true;
+		}
+		
+		return false;
+	}
+}
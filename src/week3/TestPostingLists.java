@@ -0,0 +1,147 @@
+package week3;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A simple class to test the compressed posting lists against <code>BitSet</code>s. Random sets of documents,
+ * sparse, dense and made of runs, so every container is used, are built both ways, and the lists are checked
+ * on their iteration, their <code>advance()</code>, their encoding, and the AND, OR and AND-NOT of several of them.
+ * The amount of sets whose results differ is printed.
+ * Arguments: [sets] [seed]
+ *
+ * It lives on this package, as the posting lists aren't public.
+ * @author Luiz Felix
+ */
+public class TestPostingLists {
+	private static final int UNIVERSE = 1 << 16;
+	
+	public static void main(String args[]) {
+		int sets = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+		Random random = new Random((args.length > 1) ? Long.parseLong(args[1]) : 1);
+		int mismatches = 0;
+		
+		for (int i = 0; i < sets; i++) {
+			BitSet[] expected = new BitSet[2 + random.nextInt(3)];
+			PostingList[] lists = new PostingList[expected.length];
+			
+			for (int j = 0; j < expected.length; j++) {
+				expected[j] = randomSet(random);
+				lists[j] = build(expected[j]);
+			}
+			
+			BitSet and = (BitSet) expected[0].clone();
+			BitSet or = (BitSet) expected[0].clone();
+			BitSet andNot = (BitSet) expected[0].clone();
+			
+			for (int j = 1; j < expected.length; j++) {
+				and.and(expected[j]);
+				or.or(expected[j]);
+				andNot.andNot(expected[j]);
+			}
+			
+			boolean same = true;
+			
+			for (int j = 0; j < expected.length; j++) {
+				same &= lists[j].cardinality() == expected[j].cardinality();
+				same &= expected[j].equals(read(lists[j].iterator()));
+				same &= expected[j].equals(read(PostingList.open(lists[j].encoded()).iterator()));
+				same &= advances(lists[j], expected[j], random);
+			}
+			
+			same &= and.equals(read(PostingIterators.and(iterators(lists, 0))));
+			same &= or.equals(read(PostingIterators.or(iterators(lists, 0))));
+			same &= andNot.equals(read(PostingIterators.andNot(lists[0].iterator(), PostingIterators.or(iterators(lists, 1)))));
+			
+			if (!same) {
+				mismatches++;
+				System.out.println("Mismatch on set " + i);
+			}
+		}
+		
+		System.out.println(mismatches + " mismatches on " + sets + " sets");
+	}
+	
+	/*
+	 * One of the shapes each container is chosen for
+	 */
+	private static BitSet randomSet(Random random) {
+		BitSet documents = new BitSet();
+		
+		switch (random.nextInt(3)) {
+			case 0:
+				for (int i = 1 + random.nextInt(200); i > 0; i--)
+					documents.set(random.nextInt(UNIVERSE));
+				break;
+			case 1:
+				double density = 0.1 + 0.8 * random.nextDouble();
+				for (int docId = 0; docId < UNIVERSE; docId++)
+					if (random.nextDouble() < density)
+						documents.set(docId);
+				break;
+			default:
+				for (int i = 1 + random.nextInt(20); i > 0; i--) {
+					int start = random.nextInt(UNIVERSE);
+					documents.set(start, Math.min(UNIVERSE, start + 1 + random.nextInt(4000)));
+				}
+		}
+		
+		return documents;
+	}
+	
+	private static PostingList build(BitSet documents) {
+		PostingListBuilder builder = new PostingListBuilder();
+		
+		for (int docId = documents.nextSetBit(0); docId >= 0; docId = documents.nextSetBit(docId + 1))
+			builder.add(docId);
+		
+		return builder.build();
+	}
+	
+	private static BitSet read(PostingIterator iterator) {
+		BitSet documents = new BitSet();
+		
+		for (int docId = iterator.nextDoc(); docId != PostingIterator.NO_MORE_DOCS; docId = iterator.nextDoc())
+			documents.set(docId);
+		
+		return documents;
+	}
+	
+	/*
+	 * Advances to random targets past the current document, stepping with nextDoc() after each of them
+	 */
+	private static boolean advances(PostingList list, BitSet expected, Random random) {
+		PostingIterator iterator = list.iterator();
+		int docId = -1;
+		
+		while (docId != PostingIterator.NO_MORE_DOCS) {
+			int target = docId + 1 + random.nextInt(2000);
+			
+			docId = iterator.advance(target);
+			if (docId != next(expected, target)) return false;
+			if (docId == PostingIterator.NO_MORE_DOCS) break;
+			
+			int previous = docId;
+			docId = iterator.nextDoc();
+			if (docId != next(expected, previous + 1)) return false;
+		}
+		
+		return true;
+	}
+	
+	private static int next(BitSet documents, int from) {
+		int docId = documents.nextSetBit(from);
+		return (docId < 0) ? PostingIterator.NO_MORE_DOCS : docId;
+	}
+	
+	private static List<PostingIterator> iterators(PostingList[] lists, int from) {
+		List<PostingIterator> iterators = new ArrayList<PostingIterator>();
+		
+		for (int i = from; i < lists.length; i++)
+			iterators.add(lists[i].iterator());
+		
+		return iterators;
+	}
+}
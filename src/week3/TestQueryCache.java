@@ -0,0 +1,68 @@
+package week3;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A simple class to test the query cache against an index without one. Random queries are paged as the console
+ * and the server page them, and each page must be the same on both indexes. A query that is paged again must
+ * be read from the cache, even if its first read stopped at its first page. The amounts of mismatches and of
+ * repeated queries that missed the cache are printed.
+ * Arguments: corpus path [queries] [seed]
+ * @author Luiz Felix
+ */
+public class TestQueryCache {
+	private static final String[] WORDS = {"computer", "algorithm", "the", "of", "zzz", "matrix", "language", "system",
+			"program", "data", "sort", "compiler", "list", "tree", "graph", "error", "comput*"};
+	
+	private static final int PAGE_SIZE = 20;
+	
+	public static void main(String args[]) throws IOException, IndexerException {
+		if (args.length < 1) {
+			System.out.println("Usage: TestQueryCache <corpus path> [queries] [seed]");
+			return;
+		}
+		
+		int queries = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+		Random random = new Random((args.length > 2) ? Long.parseLong(args[2]) : 1);
+		
+		Indexer cached = new Indexer(args[0]);
+		Indexer plain = new Indexer(args[0]);
+		plain.setQueryCacheSize(0);
+		
+		Set<String> asked = new HashSet<String>();
+		int mismatches = 0, missed = 0;
+		
+		for (int i = 0; i < queries; i++) {
+			String query = WORDS[random.nextInt(WORDS.length)];
+			if (random.nextBoolean())
+				query += (random.nextBoolean() ? " OR " : " NOT ") + WORDS[random.nextInt(WORDS.length)];
+			
+			int offset = PAGE_SIZE * random.nextInt(4);
+			
+			// the default cache has room for every result of the corpus, so a query asked before must be a hit
+			boolean seen = !asked.add(query);
+			long hits = cached.getCacheHits();
+			
+			int[] page = cached.search(query).page(offset, PAGE_SIZE + 1);
+			
+			if (seen && cached.getCacheHits() == hits)
+				missed++;
+			
+			if (!Arrays.equals(page, plain.search(query).page(offset, PAGE_SIZE + 1)))
+				mismatches++;
+		}
+		
+		// a result larger than a page, read one page at a time
+		cached.search("the").page(0, PAGE_SIZE + 1);
+		long hits = cached.getCacheHits();
+		cached.search("the").page(0, PAGE_SIZE + 1);
+		
+		System.out.println(mismatches + " mismatches on " + queries + " queries, " + missed + " repeated queries missed the cache");
+		System.out.println("Repeated first page of \"the\": " + (cached.getCacheHits() - hits) + " hit");
+		System.out.println(cached.getCacheHits() + " hits, " + cached.getCacheMisses() + " misses, " + cached.getCacheEvictions() + " evictions");
+	}
+}